@@ -45,6 +45,7 @@ import uk.ac.cam.cl.dtg.teaching.exceptions.ExceptionHandler;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.ContainerEnvConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.TaskConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.WorkerConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerBackend;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.DockerContainerImpl;
@@ -57,10 +58,16 @@ import uk.ac.cam.cl.dtg.teaching.pottery.controllers.WorkerController;
 import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
 import uk.ac.cam.cl.dtg.teaching.pottery.database.PostgresDatabase;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.SharedSubmissionQueue;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.AdmissionControl;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.PartitionedWorker;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.StagedWorker;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.ThreadPerJobWorker;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.ThreadPoolWorker;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.WorkerAutoscaler;
 
 public class ApplicationModule implements Module {
 
@@ -98,9 +105,22 @@ public class ApplicationModule implements Module {
     binder.bind(TaskConfig.class).in(Singleton.class);
     binder.bind(RepoConfig.class).in(Singleton.class);
     binder.bind(ContainerEnvConfig.class).in(Singleton.class);
+    binder.bind(WorkerConfig.class).in(Singleton.class);
 
     binder.bind(Database.class).to(PostgresDatabase.class).in(Singleton.class);
-    binder.bind(Worker.class).to(ThreadPoolWorker.class).in(Singleton.class);
+    String workerType = context.getInitParameter("workerType");
+    if ("threadPerJob".equals(workerType)) {
+      binder.bind(Worker.class).to(ThreadPerJobWorker.class).in(Singleton.class);
+    } else if ("staged".equals(workerType)) {
+      binder.bind(Worker.class).to(StagedWorker.class).in(Singleton.class);
+    } else if ("partitioned".equals(workerType)) {
+      binder.bind(Worker.class).to(PartitionedWorker.class).in(Singleton.class);
+    } else {
+      binder.bind(Worker.class).to(ThreadPoolWorker.class).in(Singleton.class);
+    }
+    binder.bind(WorkerAutoscaler.class).in(Singleton.class);
+    binder.bind(AdmissionControl.class).in(Singleton.class);
+    binder.bind(SharedSubmissionQueue.class).in(Singleton.class);
     binder.bind(ContainerBackend.class).to(DockerContainerImpl.class).in(Singleton.class);
 
     binder.bind(GuiceDependencyController.class);
@@ -135,7 +155,10 @@ public class ApplicationModule implements Module {
   @PreDestroy
   public void preDestroy() {
     Injector injector = GuiceResteasyBootstrapServletContextListenerV3.getInjector();
+    injector.getInstance(WorkerAutoscaler.class).stop();
     injector.getInstance(Worker.class).stop();
+    // Stopped after the worker so that no other node claims a submission we are still testing
+    injector.getInstance(SharedSubmissionQueue.class).stop();
     injector.getInstance(ContainerManager.class).stop();
     injector.getInstance(Database.class).stop();
 
@@ -23,6 +23,10 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebInitParam;
@@ -78,11 +82,20 @@ public class GitServletV3 extends GitServlet {
                     try {
                       Task task = t.getTask(repoName);
                       BuilderInfo b = task.scheduleBuildTestingCopy(w);
+                      CompletableFuture<Integer> completion = task.getTestingCopyCompletion();
                       output.println("Waiting for testing build of task...");
                       int previousStatus = 0;
+                      boolean finished = false;
 
-                      while (previousStatus < 5) {
-                        Thread.sleep(1000);
+                      while (!finished && previousStatus < 5) {
+                        // Wake up at least once a second to report progress, but return as soon as
+                        // the build finishes
+                        try {
+                          completion.get(1, TimeUnit.SECONDS);
+                          finished = true;
+                        } catch (TimeoutException e) {
+                          // Still building
+                        }
                         int currentStatus = BuilderInfo.statusToInt(b.getStatus());
 
                         if (currentStatus >= 2 && previousStatus < 2) {
@@ -124,6 +137,8 @@ public class GitServletV3 extends GitServlet {
                               + " is retired");
                     } catch (InterruptedException e1) {
                       output.println("Interrupted waiting for completion");
+                    } catch (ExecutionException e) {
+                      output.println("Failed waiting for completion: " + e.getCause());
                     }
                   }
                 });
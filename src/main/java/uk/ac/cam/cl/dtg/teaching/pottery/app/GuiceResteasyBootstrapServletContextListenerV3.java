@@ -26,6 +26,10 @@ import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.annotation.WebListener;
 import org.jboss.resteasy.plugins.guice.GuiceResteasyBootstrapServletContextListener;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.SharedSubmissionQueue;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.WorkerAutoscaler;
 
 @WebListener
 public class GuiceResteasyBootstrapServletContextListenerV3
@@ -50,5 +54,13 @@ public class GuiceResteasyBootstrapServletContextListenerV3
   @Override
   protected void withInjector(Injector i) {
     injector = i;
+    SharedSubmissionQueue sharedQueue = i.getInstance(SharedSubmissionQueue.class);
+    if (sharedQueue.isEnabled()) {
+      // Pending submissions are claimed from the queue along with everything else
+      sharedQueue.start();
+    } else {
+      i.getInstance(RepoFactory.class).reschedulePendingSubmissions(i.getInstance(Worker.class));
+    }
+    i.getInstance(WorkerAutoscaler.class).start();
   }
 }
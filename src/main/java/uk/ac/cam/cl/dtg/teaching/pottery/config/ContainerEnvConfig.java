@@ -38,6 +38,24 @@ public class ContainerEnvConfig {
 
   private File tempDir;
 
+  private int maxConcurrentContainers = 0;
+
+  private long memoryBudgetMegabytes = 0;
+
+  private boolean parallelSteps = false;
+
+  private int warmPoolSize = 0;
+
+  private boolean sharedStepContainers = false;
+
+  private boolean diskQuota = false;
+
+  private String dockerHost = "localhost";
+
+  private int dockerPort = 2375;
+
+  private int dockerConnections = 8;
+
   @Inject
   public ContainerEnvConfig(@Named("localStoragePrefix") String prefix) {
     this.userName = System.getProperty("user.name");
@@ -82,4 +100,120 @@ public class ContainerEnvConfig {
   public File getTempRoot() {
     return tempDir;
   }
+
+  /**
+   * Maximum number of containers to run at once. Each container is expected to keep about one CPU
+   * busy so this is normally the number of cores available for testing. Zero means no limit.
+   */
+  public int getMaxConcurrentContainers() {
+    return maxConcurrentContainers;
+  }
+
+  @Inject(optional = true)
+  public void setMaxConcurrentContainers(
+      @Named("maxConcurrentContainers") int maxConcurrentContainers) {
+    this.maxConcurrentContainers = maxConcurrentContainers;
+  }
+
+  /**
+   * Memory available to containers. A container is only started if the memory limits of the
+   * running containers plus its own fit within this. Zero means no limit.
+   */
+  public long getMemoryBudgetMegabytes() {
+    return memoryBudgetMegabytes;
+  }
+
+  @Inject(optional = true)
+  public void setMemoryBudgetMegabytes(
+      @Named("containerMemoryBudgetMegabytes") long memoryBudgetMegabytes) {
+    this.memoryBudgetMegabytes = memoryBudgetMegabytes;
+  }
+
+  /**
+   * If true then the steps of a task are run concurrently wherever the bindings in their commands
+   * show that they are independent of each other.
+   */
+  public boolean isParallelSteps() {
+    return parallelSteps;
+  }
+
+  @Inject(optional = true)
+  public void setParallelSteps(@Named("containerParallelSteps") boolean parallelSteps) {
+    this.parallelSteps = parallelSteps;
+  }
+
+  /**
+   * Number of idle containers to keep started ahead of time for each kind of container that has
+   * been run recently. Zero disables the warm pool.
+   */
+  public int getWarmPoolSize() {
+    return warmPoolSize;
+  }
+
+  @Inject(optional = true)
+  public void setWarmPoolSize(@Named("containerWarmPoolSize") int warmPoolSize) {
+    this.warmPoolSize = warmPoolSize;
+  }
+
+  /**
+   * If true then consecutive steps of a submission which use the same image and mounts share a
+   * container, which is kept running between them. This only applies when the steps are run one
+   * after another.
+   */
+  public boolean isSharedStepContainers() {
+    return sharedStepContainers;
+  }
+
+  @Inject(optional = true)
+  public void setSharedStepContainers(
+      @Named("containerSharedStepContainers") boolean sharedStepContainers) {
+    this.sharedStepContainers = sharedStepContainers;
+  }
+
+  /**
+   * If true then the disk write limit of each container is also given to docker as a quota on the
+   * size of its writable layer, and disk usage is only polled occasionally as a fallback. This
+   * needs a storage driver which supports quotas, such as overlay2 on xfs with project quotas.
+   */
+  public boolean isDiskQuota() {
+    return diskQuota;
+  }
+
+  @Inject(optional = true)
+  public void setDiskQuota(@Named("containerDiskQuota") boolean diskQuota) {
+    this.diskQuota = diskQuota;
+  }
+
+  /** Host on which the docker daemon is listening. */
+  public String getDockerHost() {
+    return dockerHost;
+  }
+
+  @Inject(optional = true)
+  public void setDockerHost(@Named("dockerHost") String dockerHost) {
+    this.dockerHost = dockerHost;
+  }
+
+  /** TCP port on which the docker daemon is listening. */
+  public int getDockerPort() {
+    return dockerPort;
+  }
+
+  @Inject(optional = true)
+  public void setDockerPort(@Named("dockerPort") int dockerPort) {
+    this.dockerPort = dockerPort;
+  }
+
+  /**
+   * Size of the pool of connections to the docker daemon. Calls which find every connection busy
+   * wait for one, so this should be at least the number of containers run at once.
+   */
+  public int getDockerConnections() {
+    return dockerConnections;
+  }
+
+  @Inject(optional = true)
+  public void setDockerConnections(@Named("dockerConnections") int dockerConnections) {
+    this.dockerConnections = dockerConnections;
+  }
 }
@@ -18,6 +18,8 @@
 
 package uk.ac.cam.cl.dtg.teaching.pottery.config;
 
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
 import com.google.inject.Inject;
 import java.io.File;
 import javax.inject.Named;
@@ -26,6 +28,10 @@ public class RepoConfig {
 
   private File repoPrefix;
 
+  private ImmutableSet<String> submissionCacheTasks = ImmutableSet.of();
+
+  private int submissionCacheSize = 10_000;
+
   @Inject
   public RepoConfig(@Named("localStoragePrefix") String prefix) {
     this.repoPrefix = new File(prefix, "repos");
@@ -50,4 +56,30 @@ public class RepoConfig {
   public File getRepoTestingDir(String repoId) {
     return new File(getRepoTestingRoot(), repoId);
   }
+
+  /**
+   * True if the results of submissions to this task may be reused for later submissions of the
+   * same code. Only enable this for tasks whose tests always give the same result for the same
+   * code. The output step of these tasks isn't passed the repo, tag or timing of the submission.
+   */
+  public boolean isSubmissionCacheEnabled(String taskId) {
+    return submissionCacheTasks.contains(taskId);
+  }
+
+  /** Set the tasks whose results may be cached from a comma separated list of task IDs. */
+  @Inject(optional = true)
+  public void setSubmissionCacheTasks(@Named("submissionCacheTasks") String taskIds) {
+    this.submissionCacheTasks =
+        ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(taskIds));
+  }
+
+  /** Maximum number of results kept in the submission cache. */
+  public int getSubmissionCacheSize() {
+    return submissionCacheSize;
+  }
+
+  @Inject(optional = true)
+  public void setSubmissionCacheSize(@Named("submissionCacheSize") int submissionCacheSize) {
+    this.submissionCacheSize = submissionCacheSize;
+  }
 }
@@ -0,0 +1,274 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.config;
+
+import com.google.inject.Inject;
+import java.util.UUID;
+import javax.inject.Named;
+
+/**
+ * Configuration for the worker thread pool. All settings are optional context parameters and fall
+ * back to the defaults here if they are not given.
+ */
+public class WorkerConfig {
+
+  private int autoscaleMinThreads = 1;
+
+  private int autoscaleMaxThreads = 0;
+
+  private long autoscaleIntervalMs = 30_000;
+
+  private long autoscaleTargetWaitMs = 5_000;
+
+  private long autoscaleMaxCallTimeMs = 2_000;
+
+  private int checkoutThreads = 2;
+
+  private int persistThreads = 1;
+
+  private long fairRepoSpacingMs = 0;
+
+  private long fairTaskSpacingMs = 0;
+
+  private int maxInFlightPerRepo = 0;
+
+  private int maxInFlightPerTask = 0;
+
+  private long admissionMaxWaitMs = 0;
+
+  private int admissionMaxQueueDepth = 0;
+
+  private boolean sharedQueue = false;
+
+  private String nodeId = UUID.randomUUID().toString();
+
+  private long leaseMs = 60_000;
+
+  private long queuePollMs = 1_000;
+
+  private int partitionLanes = 4;
+
+  /** Smallest pool size the autoscaler will shrink to. */
+  public int getAutoscaleMinThreads() {
+    return autoscaleMinThreads;
+  }
+
+  @Inject(optional = true)
+  public void setAutoscaleMinThreads(@Named("workerAutoscaleMinThreads") int autoscaleMinThreads) {
+    this.autoscaleMinThreads = autoscaleMinThreads;
+  }
+
+  /** Largest pool size the autoscaler will grow to. Zero disables autoscaling. */
+  public int getAutoscaleMaxThreads() {
+    return autoscaleMaxThreads;
+  }
+
+  @Inject(optional = true)
+  public void setAutoscaleMaxThreads(@Named("workerAutoscaleMaxThreads") int autoscaleMaxThreads) {
+    this.autoscaleMaxThreads = autoscaleMaxThreads;
+  }
+
+  public boolean isAutoscaleEnabled() {
+    return autoscaleMaxThreads > 0;
+  }
+
+  /** How often the autoscaler reconsiders the pool size. */
+  public long getAutoscaleIntervalMs() {
+    return autoscaleIntervalMs;
+  }
+
+  @Inject(optional = true)
+  public void setAutoscaleIntervalMs(@Named("workerAutoscaleIntervalMs") long autoscaleIntervalMs) {
+    this.autoscaleIntervalMs = autoscaleIntervalMs;
+  }
+
+  /** The autoscaler adds threads while jobs wait longer than this before starting. */
+  public long getAutoscaleTargetWaitMs() {
+    return autoscaleTargetWaitMs;
+  }
+
+  @Inject(optional = true)
+  public void setAutoscaleTargetWaitMs(
+      @Named("workerAutoscaleTargetWaitMs") long autoscaleTargetWaitMs) {
+    this.autoscaleTargetWaitMs = autoscaleTargetWaitMs;
+  }
+
+  /**
+   * The autoscaler removes threads while calls to the container API take longer than this on
+   * average, since more concurrent containers would only slow it down further.
+   */
+  public long getAutoscaleMaxCallTimeMs() {
+    return autoscaleMaxCallTimeMs;
+  }
+
+  @Inject(optional = true)
+  public void setAutoscaleMaxCallTimeMs(
+      @Named("workerAutoscaleMaxCallTimeMs") long autoscaleMaxCallTimeMs) {
+    this.autoscaleMaxCallTimeMs = autoscaleMaxCallTimeMs;
+  }
+
+  /** Number of threads a staged worker uses for checking out submissions. */
+  public int getCheckoutThreads() {
+    return checkoutThreads;
+  }
+
+  @Inject(optional = true)
+  public void setCheckoutThreads(@Named("workerCheckoutThreads") int checkoutThreads) {
+    this.checkoutThreads = checkoutThreads;
+  }
+
+  /** Number of threads a staged worker uses for storing results. */
+  public int getPersistThreads() {
+    return persistThreads;
+  }
+
+  @Inject(optional = true)
+  public void setPersistThreads(@Named("workerPersistThreads") int persistThreads) {
+    this.persistThreads = persistThreads;
+  }
+
+  /**
+   * Minimum virtual time between consecutive jobs from the same repo. Larger values give a single
+   * busy repo a smaller share of the worker. Zero (the default) turns off fair sharing by repo.
+   */
+  public long getFairRepoSpacingMs() {
+    return fairRepoSpacingMs;
+  }
+
+  @Inject(optional = true)
+  public void setFairRepoSpacingMs(@Named("workerFairRepoSpacingMs") long fairRepoSpacingMs) {
+    this.fairRepoSpacingMs = fairRepoSpacingMs;
+  }
+
+  /**
+   * Minimum virtual time between consecutive jobs from the same task. Zero (the default) turns off
+   * fair sharing by task.
+   */
+  public long getFairTaskSpacingMs() {
+    return fairTaskSpacingMs;
+  }
+
+  @Inject(optional = true)
+  public void setFairTaskSpacingMs(@Named("workerFairTaskSpacingMs") long fairTaskSpacingMs) {
+    this.fairTaskSpacingMs = fairTaskSpacingMs;
+  }
+
+  /** Maximum number of jobs from one repo which may run at once. Zero means no limit. */
+  public int getMaxInFlightPerRepo() {
+    return maxInFlightPerRepo;
+  }
+
+  @Inject(optional = true)
+  public void setMaxInFlightPerRepo(@Named("workerMaxInFlightPerRepo") int maxInFlightPerRepo) {
+    this.maxInFlightPerRepo = maxInFlightPerRepo;
+  }
+
+  /** Maximum number of jobs from one task which may run at once. Zero means no limit. */
+  public int getMaxInFlightPerTask() {
+    return maxInFlightPerTask;
+  }
+
+  @Inject(optional = true)
+  public void setMaxInFlightPerTask(@Named("workerMaxInFlightPerTask") int maxInFlightPerTask) {
+    this.maxInFlightPerTask = maxInFlightPerTask;
+  }
+
+  /**
+   * New submissions are turned away while jobs are waiting longer than this before they start.
+   * Zero disables the check.
+   */
+  public long getAdmissionMaxWaitMs() {
+    return admissionMaxWaitMs;
+  }
+
+  @Inject(optional = true)
+  public void setAdmissionMaxWaitMs(@Named("workerAdmissionMaxWaitMs") long admissionMaxWaitMs) {
+    this.admissionMaxWaitMs = admissionMaxWaitMs;
+  }
+
+  /** New submissions are turned away while this many jobs are queued. Zero means no limit. */
+  public int getAdmissionMaxQueueDepth() {
+    return admissionMaxQueueDepth;
+  }
+
+  @Inject(optional = true)
+  public void setAdmissionMaxQueueDepth(
+      @Named("workerAdmissionMaxQueueDepth") int admissionMaxQueueDepth) {
+    this.admissionMaxQueueDepth = admissionMaxQueueDepth;
+  }
+
+  /**
+   * If true then submissions are queued in the database and claimed by whichever node sharing the
+   * database has capacity, rather than being tested by the node which received them.
+   */
+  public boolean isSharedQueue() {
+    return sharedQueue;
+  }
+
+  @Inject(optional = true)
+  public void setSharedQueue(@Named("workerSharedQueue") boolean sharedQueue) {
+    this.sharedQueue = sharedQueue;
+  }
+
+  /**
+   * Name this node uses to claim submissions from the shared queue. Set this to a stable value so
+   * that a restarted node gives up its old claims straight away rather than when they expire.
+   */
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  @Inject(optional = true)
+  public void setNodeId(@Named("workerNodeId") String nodeId) {
+    this.nodeId = nodeId;
+  }
+
+  /** How long a claim on a submission lasts unless the node renews it. */
+  public long getLeaseMs() {
+    return leaseMs;
+  }
+
+  @Inject(optional = true)
+  public void setLeaseMs(@Named("workerLeaseMs") long leaseMs) {
+    this.leaseMs = leaseMs;
+  }
+
+  /** How often a node renews its claims and looks for more submissions in the shared queue. */
+  public long getQueuePollMs() {
+    return queuePollMs;
+  }
+
+  @Inject(optional = true)
+  public void setQueuePollMs(@Named("workerQueuePollMs") long queuePollMs) {
+    this.queuePollMs = queuePollMs;
+  }
+
+  /**
+   * Number of single threaded lanes a partitioned worker divides repos between. Every job for a
+   * repo runs on the same lane.
+   */
+  public int getPartitionLanes() {
+    return partitionLanes;
+  }
+
+  @Inject(optional = true)
+  public void setPartitionLanes(@Named("workerPartitionLanes") int partitionLanes) {
+    this.partitionLanes = partitionLanes;
+  }
+}
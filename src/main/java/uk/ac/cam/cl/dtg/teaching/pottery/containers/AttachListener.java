@@ -24,8 +24,18 @@ import org.eclipse.jetty.websocket.api.WebSocketListener;
 class AttachListener implements WebSocketListener {
 
   private final StringBuilder output = new StringBuilder();
+  private final Runnable onClose;
   private boolean closed = false;
 
+  AttachListener() {
+    this(() -> {});
+  }
+
+  /** Create a listener which calls onClose when the stream closes or notifyClose is called. */
+  AttachListener(Runnable onClose) {
+    this.onClose = onClose;
+  }
+
   public String getOutput() {
     return output.toString();
   }
@@ -34,6 +44,7 @@ class AttachListener implements WebSocketListener {
   public synchronized void onWebSocketClose(int statusCode, String reason) {
     closed = true;
     this.notifyAll();
+    onClose.run();
   }
 
   @Override
@@ -43,6 +54,7 @@ class AttachListener implements WebSocketListener {
   public synchronized void onWebSocketError(Throwable cause) {
     closed = true;
     this.notifyAll();
+    onClose.run();
     throw new RuntimeException("WebSocket error attaching to container", cause);
   }
 
@@ -74,5 +86,6 @@ class AttachListener implements WebSocketListener {
   synchronized void notifyClose() {
     closed = true;
     this.notifyAll();
+    onClose.run();
   }
 }
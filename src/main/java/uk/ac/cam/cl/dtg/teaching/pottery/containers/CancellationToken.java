@@ -0,0 +1,70 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.containers;
+
+/**
+ * Allows the owner of some container work to abandon it. If a container is running when the token
+ * is cancelled then the backend kills it, otherwise no further containers are started.
+ */
+public class CancellationToken {
+
+  private boolean cancelled = false;
+
+  /** Action which stops the container currently running on behalf of this token. */
+  private Runnable onCancel = null;
+
+  /** Cancel the work, killing the running container if there is one. */
+  public void cancel() {
+    Runnable action;
+    synchronized (this) {
+      if (cancelled) {
+        return;
+      }
+      cancelled = true;
+      action = onCancel;
+      onCancel = null;
+    }
+    if (action != null) {
+      action.run();
+    }
+  }
+
+  public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Register the action which stops the running container. If the token has already been cancelled
+   * then the action is run straight away.
+   */
+  void setOnCancel(Runnable action) {
+    synchronized (this) {
+      if (!cancelled) {
+        onCancel = action;
+        return;
+      }
+    }
+    action.run();
+  }
+
+  /** Remove the action registered by setOnCancel once the container has stopped. */
+  synchronized void clearOnCancel() {
+    onCancel = null;
+  }
+}
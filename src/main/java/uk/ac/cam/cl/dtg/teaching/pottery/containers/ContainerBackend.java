@@ -18,6 +18,7 @@
 
 package uk.ac.cam.cl.dtg.teaching.pottery.containers;
 
+import com.google.common.collect.ImmutableMap;
 import uk.ac.cam.cl.dtg.teaching.docker.ApiUnavailableException;
 import uk.ac.cam.cl.dtg.teaching.pottery.Stoppable;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.ContainerExecutionException;
@@ -36,12 +37,43 @@ public interface ContainerBackend extends Stoppable {
 
   long getSmoothedCallTime();
 
+  /** Smoothed call time for each method of the container API which has been called. */
+  ImmutableMap<String, Long> getSmoothedCallTimes();
+
+  /** Smoothed average of how long after its deadline a container which timed out was killed. */
+  long getSmoothedTimeoutOvershoot();
+
   String getVersion() throws ApiUnavailableException;
 
   void setTimeoutMultiplier(int multiplier);
 
   String getInternalMountPath();
 
-  ContainerExecResponse executeContainer(ExecutionConfig executionConfig)
+  /**
+   * Run a container to completion. If the cancellation token is cancelled whilst the container is
+   * running then the container is killed and the response has status FAILED_CANCELLED.
+   */
+  ContainerExecResponse executeContainer(
+      ExecutionConfig executionConfig, CancellationToken cancellationToken)
       throws ContainerExecutionException, ApiUnavailableException;
+
+  /**
+   * Start a session for running several executions one after another. Backends which can't share
+   * containers between executions run each one in a container of its own.
+   */
+  default ContainerSession openSession() {
+    return new ContainerSession() {
+      @Override
+      public ContainerExecResponse execute(
+          ExecutionConfig executionConfig,
+          ExecutionConfig containerConfig,
+          CancellationToken cancellationToken)
+          throws ContainerExecutionException, ApiUnavailableException {
+        return executeContainer(executionConfig, cancellationToken);
+      }
+
+      @Override
+      public void close() {}
+    };
+  }
 }
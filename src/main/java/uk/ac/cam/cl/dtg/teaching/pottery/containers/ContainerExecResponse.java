@@ -29,6 +29,7 @@ public abstract class ContainerExecResponse {
     FAILED_OOM,
     FAILED_DISK,
     FAILED_TIMEOUT,
+    FAILED_CANCELLED,
     FAILED_UNKNOWN
   }
 
@@ -18,39 +18,53 @@
 
 package uk.ac.cam.cl.dtg.teaching.pottery.containers;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import uk.ac.cam.cl.dtg.teaching.docker.ApiUnavailableException;
 import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
 import uk.ac.cam.cl.dtg.teaching.pottery.Stoppable;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.ContainerEnvConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerExecResponse.Status;
+import uk.ac.cam.cl.dtg.teaching.pottery.containers.ExecutionPlans.StepPlan;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.ContainerExecutionException;
-import uk.ac.cam.cl.dtg.teaching.pottery.model.Execution;
-import uk.ac.cam.cl.dtg.teaching.pottery.model.Step;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.ContainerRestrictions;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.Submission;
-import uk.ac.cam.cl.dtg.teaching.pottery.model.TaskInfo;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskCopy;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.Job;
 
 @Singleton
 public class ContainerManager implements Stoppable {
 
+  protected static final Logger LOG = LoggerFactory.getLogger(ContainerManager.class);
+
   private static final String POTTERY_BINARIES_PATH = "/pottery-binaries";
 
   private static final String IMAGE_BINDING = "IMAGE";
@@ -60,15 +74,29 @@ public class ContainerManager implements Stoppable {
   private static final String STEP_BINDING = "STEP";
   private static final String SHARED_BINDING = "SHARED";
 
-  private static final String DEFAULT_EXECUTION = "default";
+  /** The bindings available to the commands which compile a task. */
+  static final ImmutableSet<String> COMPILATION_BINDINGS =
+      ImmutableSet.of(TASK_BINDING, IMAGE_BINDING);
+
+  /** The bindings available to steps, in addition to the results of earlier steps. */
+  static final ImmutableSet<String> STEP_BINDINGS =
+      ImmutableSet.of(
+          IMAGE_BINDING, SUBMISSION_BINDING, STEP_BINDING, SHARED_BINDING, VARIANT_BINDING);
 
-  private static final Pattern COMMAND_TOKENIZER =
-      Pattern.compile("([^\"' ]|\"([^\"\\\\]|\\\\.)*\"|'([^'\\\\]|\\\\.)*')+");
+  /** The bindings available to the output, in addition to the results of the steps. */
+  static final ImmutableSet<String> OUTPUT_BINDINGS =
+      ImmutableSet.of(IMAGE_BINDING, TASK_BINDING, SUBMISSION_BINDING, VARIANT_BINDING);
 
   private final ContainerEnvConfig config;
   private final ContainerBackend containerBackend;
   private final AtomicInteger tempDirCounter = new AtomicInteger(0);
 
+  /** Runs the steps of a task when they are allowed to run concurrently. */
+  private final ExecutorService stepExecutor = Executors.newCachedThreadPool();
+
+  /** Limits the containers running at once. Null if there is no limit. */
+  private final ContainerResourcePool resourcePool;
+
   /**
    * Construct a new container manager and worker pool. The connection to the container backend is
    * created lazily as needed.
@@ -77,13 +105,24 @@ public class ContainerManager implements Stoppable {
   public ContainerManager(ContainerEnvConfig config, ContainerBackend containerBackend) {
     this.config = config;
     this.containerBackend = containerBackend;
+    this.resourcePool =
+        config.getMaxConcurrentContainers() > 0 || config.getMemoryBudgetMegabytes() > 0
+            ? new ContainerResourcePool(
+                config.getMaxConcurrentContainers(), config.getMemoryBudgetMegabytes())
+            : null;
   }
 
   @Override
   public void stop() {
+    stepExecutor.shutdownNow();
     containerBackend.stop();
   }
 
+  /** The limit on the number of containers running at once, or zero if there is none. */
+  public int getMaxConcurrentContainers() {
+    return config.getMaxConcurrentContainers();
+  }
+
   public String getApiStatus() {
     return containerBackend.getApiStatus().name();
   }
@@ -92,6 +131,16 @@ public class ContainerManager implements Stoppable {
     return containerBackend.getSmoothedCallTime();
   }
 
+  /** Smoothed call time for each method of the container API. */
+  public ImmutableMap<String, Long> getSmoothedCallTimes() {
+    return containerBackend.getSmoothedCallTimes();
+  }
+
+  /** Smoothed average in milliseconds of how late containers which timed out were killed. */
+  public long getSmoothedTimeoutOvershoot() {
+    return containerBackend.getSmoothedTimeoutOvershoot();
+  }
+
   public String getVersion() throws ApiUnavailableException {
     return containerBackend.getVersion();
   }
@@ -105,46 +154,38 @@ public class ContainerManager implements Stoppable {
     containerBackend.setTimeoutMultiplier(multiplier);
   }
 
-  private static Pattern bindingRegex = Pattern.compile("@([a-zA-Z_][-a-zA-Z_0-9]*)@");
-
-  private ExecutionConfig.Builder applyBindings(String command,
+  private ExecutionConfig.Builder applyBindings(ExecutionPlan plan,
                                                 ImmutableMap<String, Binding> bindings,
                                                 Map<String, ContainerExecResponse> stepResults,
                                                 File containerTempDir)
       throws ContainerExecutionException {
     ExecutionConfig.Builder builder = ExecutionConfig.builder();
-    StringBuilder finalCommand = new StringBuilder();
-
-    Map<String, Binding> mutableBindings = new HashMap<String, Binding>(bindings);
+    Map<String, String> values = new HashMap<>();
 
-    Matcher regexMatcher = bindingRegex.matcher(command);
-    while (regexMatcher.find()) {
-      String name = regexMatcher.group(1);
+    for (String name : plan.getBindingNames()) {
       Binding binding;
-      if (mutableBindings.containsKey(name)) {
-        binding = mutableBindings.get(name);
+      if (bindings.containsKey(name)) {
+        binding = bindings.get(name);
       } else if (stepResults.containsKey(name)) {
         File stepFile = new File(containerTempDir, name);
         try (FileWriter w = new FileWriter(stepFile)) {
           w.write(stepResults.get(name).response());
         } catch (IOException e) {
           throw new ContainerExecutionException("Couldn't create temporary file for binding " + name
-              + " for command " + command, e);
+              + " for command " + plan, e);
         }
         binding = new FileBinding(stepFile, false);
-        mutableBindings.put(name, binding);
       } else {
+        // Can only happen if the step this refers to had no execution for the variant
         throw new ContainerExecutionException("Couldn't find a binding called " + name
-            + " for command " + command);
+            + " for command " + plan);
       }
       binding.applyBinding(builder, name);
-      regexMatcher.appendReplacement(finalCommand, binding.getMountPoint(name));
+      values.put(name, binding.getMountPoint(name));
     }
-    regexMatcher.appendTail(finalCommand);
 
-    Matcher matcher = COMMAND_TOKENIZER.matcher(finalCommand);
-    while (matcher.find()) {
-      builder.addCommand(matcher.group());
+    for (String argument : plan.getCommand(values)) {
+      builder.addCommand(argument);
     }
     return builder;
   }
@@ -160,24 +201,16 @@ public class ContainerManager implements Stoppable {
   class FileBinding extends Binding {
     private final File file;
     private final boolean readWrite;
-    private boolean needsApplying;
 
     FileBinding(File file, boolean readWrite) {
       this.file = file;
       this.readWrite = readWrite;
-      this.needsApplying = true;
     }
 
     @Override
     ExecutionConfig.Builder applyBinding(ExecutionConfig.Builder builder, String name) {
-      if (needsApplying) {
-        needsApplying = false;
-
-        return builder.addPathSpecification(
-            PathSpecification.create(file, getMountPoint(name), readWrite));
-      } else {
-        return builder;
-      }
+      return builder.addPathSpecification(
+          PathSpecification.create(file, getMountPoint(name), readWrite));
     }
 
     @Override
@@ -217,63 +250,135 @@ public class ContainerManager implements Stoppable {
 
   /**
    * Execute a command inside a container.
+   *
+   * @param warmable true if the read-write bindings belong to this execution alone (see {@link
+   *     ExecutionConfig#warmable()})
+   * @param shared the container to share with other steps, or null to run in a container of its
+   *     own
    */
-  private ContainerExecResponse execute(@Nonnull Execution execution,
+  private ContainerExecResponse execute(@Nonnull ExecutionPlan plan,
                                         Map<String, ContainerExecResponse> stepResults,
-                                        ImmutableMap<String, Binding> bindings)
+                                        ImmutableMap<String, Binding> bindings,
+                                        boolean warmable,
+                                        @Nullable SharedContainer shared,
+                                        CancellationToken cancellationToken)
       throws ApiUnavailableException {
-    File containerTempDir = new File(config.getTempRoot(),
-        String.valueOf(tempDirCounter.incrementAndGet()));
-    try (FileUtil.AutoDelete ignored = FileUtil.mkdirWithAutoDelete(containerTempDir)) {
-      return containerBackend.executeContainer(
-          applyBindings(execution.getProgram(), bindings, stepResults, containerTempDir)
-              .setImageName(execution.getImage())
-              .setContainerRestrictions(execution.getRestrictions())
+    File containerTempDir = shared != null
+        ? shared.tempDir
+        : new File(config.getTempRoot(), String.valueOf(tempDirCounter.incrementAndGet()));
+    // The temporary directory of a shared container belongs to the steps sharing it
+    try (FileUtil.AutoDelete ignored =
+             shared != null ? null : FileUtil.mkdirWithAutoDelete(containerTempDir)) {
+      ExecutionConfig executionConfig =
+          applyBindings(plan, bindings, stepResults, containerTempDir)
+              .setImageName(plan.getImage())
+              .setContainerRestrictions(plan.getRestrictions())
               .setLocalUserId(config.getUid())
-              .build());
+              .setWarmable(warmable)
+              .build();
+      long reservedMegabytes = acquireResources(shared != null
+          ? shared.containerConfig.containerRestrictions()
+          : plan.getRestrictions());
+      try {
+        if (cancellationToken.isCancelled()) {
+          return ContainerExecResponse.create(Status.FAILED_CANCELLED, "Cancelled", 0);
+        }
+        if (shared != null) {
+          return shared.session.execute(
+              executionConfig, shared.containerConfig, cancellationToken);
+        }
+        return containerBackend.executeContainer(executionConfig, cancellationToken);
+      } finally {
+        releaseResources(reservedMegabytes);
+      }
     } catch (ContainerExecutionException | IOException e) {
       return ContainerExecResponse.create(
           Status.FAILED_UNKNOWN, e.getMessage(), -1);
     }
   }
 
+  private long acquireResources(ContainerRestrictions restrictions)
+      throws ApiUnavailableException {
+    if (resourcePool == null) {
+      return 0;
+    }
+    try {
+      return resourcePool.acquire(restrictions.getRamLimitMegabytes());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ApiUnavailableException("Interrupted whilst waiting to start a container", e);
+    }
+  }
+
+  private void releaseResources(long reservedMegabytes) {
+    if (resourcePool != null) {
+      resourcePool.release(reservedMegabytes);
+    }
+  }
+
+  /** Number of jobs waiting for resources to start a container. */
+  public int getContainerQueueLength() {
+    return resourcePool == null ? 0 : resourcePool.getQueueLength();
+  }
+
+  /** Total of the memory limits of the containers which are running. */
+  public long getReservedMemoryMegabytes() {
+    return resourcePool == null ? 0 : resourcePool.getReservedMemoryMegabytes();
+  }
+
   /**
    * Run a compile task and get the response.
    */
   public ContainerExecResponse execTaskCompilation(
-      File taskDirHost, @Nonnull Execution execution)
+      File taskDirHost, @Nonnull ExecutionPlan plan)
       throws ApiUnavailableException {
     ImmutableMap<String, Binding> bindings = ImmutableMap.of(
         TASK_BINDING, new FileBinding(taskDirHost, true),
         IMAGE_BINDING, new ImageBinding(POTTERY_BINARIES_PATH));
     ImmutableMap<String, ContainerExecResponse> stepResults = ImmutableMap.of();
-    return execute(execution, stepResults, bindings);
+    return execute(plan, stepResults, bindings, false, null, new CancellationToken());
   }
 
   /**
    * Run a step and get the response.
    */
   public ContainerExecResponse execStep(
-      File taskStepsDirHost, File codeDirHost, @Nonnull Execution execution, String variant,
-      Map<String, ContainerExecResponse> stepResults)
+      File taskStepsDirHost, File codeDirHost, @Nonnull ExecutionPlan plan, String variant,
+      Map<String, ContainerExecResponse> stepResults, CancellationToken cancellationToken)
       throws ApiUnavailableException {
-    ImmutableMap<String, Binding> bindings = ImmutableMap.of(
+    return execStep(taskStepsDirHost, codeDirHost, plan, variant, stepResults, null,
+        cancellationToken);
+  }
+
+  private ContainerExecResponse execStep(
+      File taskStepsDirHost, File codeDirHost, @Nonnull ExecutionPlan plan, String variant,
+      Map<String, ContainerExecResponse> stepResults, @Nullable SharedContainer shared,
+      CancellationToken cancellationToken)
+      throws ApiUnavailableException {
+    ImmutableMap<String, Binding> bindings = stepBindings(taskStepsDirHost, codeDirHost, variant);
+    // The submission directory is the only read-write binding and steps which use it never run
+    // at the same time
+    return execute(plan, stepResults, bindings, true, shared, cancellationToken);
+  }
+
+  private ImmutableMap<String, Binding> stepBindings(
+      File taskStepsDirHost, File codeDirHost, String variant) {
+    return ImmutableMap.of(
         IMAGE_BINDING, new ImageBinding(POTTERY_BINARIES_PATH),
         SUBMISSION_BINDING, new FileBinding(codeDirHost, true),
         STEP_BINDING, new FileBinding(new File(taskStepsDirHost, variant), false),
         SHARED_BINDING, new FileBinding(new File(taskStepsDirHost, "shared"), false),
         VARIANT_BINDING, new TextBinding(variant)
         );
-    return execute(execution, stepResults, bindings);
   }
 
   /**
    * Run a output and get the response.
    */
   public ContainerExecResponse execOutput(
-      File taskDirHost, File codeDirHost, @Nonnull Execution execution, String variant,
+      File taskDirHost, File codeDirHost, @Nonnull ExecutionPlan plan, String variant,
       Map<String, ContainerExecResponse> stepResults,
-      ImmutableMap<String, String> potteryProperties)
+      ImmutableMap<String, String> potteryProperties, CancellationToken cancellationToken)
       throws ApiUnavailableException {
     ImmutableMap<String, Binding> bindings = ImmutableMap.of(
         IMAGE_BINDING, new ImageBinding(POTTERY_BINARIES_PATH),
@@ -282,25 +387,21 @@ public class ContainerManager implements Stoppable {
         VARIANT_BINDING, new TextBinding(variant)
     );
 
-    Stream<String> commands = Stream.of(execution.getProgram());
-
-    commands =
-        Stream.concat(
-            commands,
-            stepResults
-                .entrySet()
-                .stream()
-                .map(
-                    entry ->
-                        String.format(
-                            "--input=%1$s:%2$s:%3$s:@%1$s@",
-                            entry.getKey(),
-                            entry.getValue().status(),
-                            entry.getValue().executionTimeMs())));
-
-    commands =
+    Stream<String> arguments =
+        stepResults
+            .entrySet()
+            .stream()
+            .map(
+                entry ->
+                    String.format(
+                        "--input=%1$s:%2$s:%3$s:@%1$s@",
+                        entry.getKey(),
+                        entry.getValue().status(),
+                        entry.getValue().executionTimeMs()));
+
+    arguments =
         Stream.concat(
-            commands,
+            arguments,
             potteryProperties
                 .entrySet()
                 .stream()
@@ -308,9 +409,13 @@ public class ContainerManager implements Stoppable {
                     entry ->
                         String.format("--pottery-%1$s=%2$s", entry.getKey(), entry.getValue())));
 
-    String command = commands.collect(Collectors.joining(" "));
-
-    return execute(execution.withProgram(command), stepResults, bindings);
+    return execute(
+        plan.withArguments(arguments.collect(Collectors.toList())),
+        stepResults,
+        bindings,
+        false,
+        null,
+        cancellationToken);
   }
 
   public interface StepRunnerCallback {
@@ -319,19 +424,24 @@ public class ContainerManager implements Stoppable {
     void recordErrorReason(ContainerExecResponse response, String stepName);
 
     void setOutput(String output);
+
+    /** Token which the caller can use to cancel the steps that are still to run. */
+    default CancellationToken getCancellationToken() {
+      return new CancellationToken();
+    }
   }
 
   public interface ErrorHandlingStepRunnerCallback extends StepRunnerCallback {
     void apiUnavailable(String errorMessage, Throwable exception);
   }
 
-  public int runStepsAndOutput(TaskCopy c, File codeDir, TaskInfo taskInfo, String variant,
+  public int runStepsAndOutput(TaskCopy c, File codeDir, String variant,
                                ErrorHandlingStepRunnerCallback callback,
                                ImmutableMap<String, String> potteryProperties) {
     try {
       // The StepRunnerCallback cast is necessary to prevent a stack overflow since this would
       // become self-recursive
-      return runStepsAndOutput(c, codeDir, taskInfo, variant, (StepRunnerCallback) callback,
+      return runStepsAndOutput(c, codeDir, variant, (StepRunnerCallback) callback,
           potteryProperties);
     } catch (ApiUnavailableException e) {
       callback.apiUnavailable(e.getMessage(), e.getCause());
@@ -339,47 +449,29 @@ public class ContainerManager implements Stoppable {
     }
   }
 
-  public int runStepsAndOutput(TaskCopy c, File codeDir, TaskInfo taskInfo, String variant,
+  public int runStepsAndOutput(TaskCopy c, File codeDir, String variant,
                                StepRunnerCallback callback,
                                ImmutableMap<String, String> potteryProperties)
       throws ApiUnavailableException {
     callback.setStatus(Submission.STATUS_STEPS_RUNNING);
 
+    CancellationToken cancellationToken = callback.getCancellationToken();
     Map<String, ContainerExecResponse> stepResults = new HashMap<>();
-
-    for (Step step : taskInfo.getSteps()) {
-
-      String stepName = step.getName();
-      Map<String, Execution> executionMap = step.getExecutionMap();
-      Execution execution = getExecution(variant, executionMap);
-      if (execution == null) {
-        continue;
-      }
-      try {
-        ContainerExecResponse response = execStep(
-            c.getStepLocation(stepName),
-            codeDir,
-            execution,
-            variant,
-            stepResults);
-        stepResults.put(stepName, response);
-        if (response.status() != Status.COMPLETED) {
-          callback.setStatus(Submission.STATUS_STEPS_FAILED);
-          callback.recordErrorReason(response, stepName);
-          if (response.status() != Status.FAILED_EXITCODE) {
-            return Job.STATUS_FAILED;
-          }
-          break;
-        }
-      } catch (ApiUnavailableException e) {
-        throw new ApiUnavailableException("Container API unavailable when trying to execute "
-            + stepName + " step.", e);
-      }
+    ImmutableList<StepPlan> steps = c.getPlans().getSteps(variant);
+
+    boolean stepsSucceeded =
+        config.isParallelSteps()
+            ? runStepsConcurrently(
+                c::getStepLocation, codeDir, steps, variant, callback, cancellationToken,
+                stepResults)
+            : runSteps(c, codeDir, steps, variant, callback, cancellationToken, stepResults);
+    if (!stepsSucceeded) {
+      return Job.STATUS_FAILED;
     }
 
-    Execution execution = getExecution(variant, taskInfo.getOutput());
+    ExecutionPlan outputPlan = c.getPlans().getOutput(variant);
 
-    if (execution == null) {
+    if (outputPlan == null) {
       callback.setStatus(Submission.STATUS_OUTPUT_FAILED);
       callback.recordErrorReason(ContainerExecResponse.create(Status.FAILED_UNKNOWN,
           "No output was specified", 0), null);
@@ -393,10 +485,11 @@ public class ContainerManager implements Stoppable {
       output = execOutput(
           c.getLocation(),
           codeDir,
-          execution,
+          outputPlan,
           variant,
           stepResults,
-          potteryProperties);
+          potteryProperties,
+          cancellationToken);
     } catch (ApiUnavailableException e) {
       throw new ApiUnavailableException("Container API unavailable when trying to execute output",
           e);
@@ -412,14 +505,287 @@ public class ContainerManager implements Stoppable {
     return Job.STATUS_OK;
   }
 
-  @Nullable
-  private Execution getExecution(String variant, Map<String, Execution> executionMap) {
-    if (executionMap.containsKey(variant)) {
-      return executionMap.get(variant);
-    } else if (executionMap.containsKey(DEFAULT_EXECUTION)) {
-      return executionMap.get(DEFAULT_EXECUTION);
-    } else {
-      return null;
+  /**
+   * Run the steps one after another in the order they are declared, stopping at the first step
+   * which fails. If configured to, consecutive steps share containers.
+   *
+   * @return false if a step failed in a way which means the output should not be run
+   */
+  private boolean runSteps(TaskCopy c, File codeDir, ImmutableList<StepPlan> steps,
+                           String variant, StepRunnerCallback callback,
+                           CancellationToken cancellationToken,
+                           Map<String, ContainerExecResponse> stepResults)
+      throws ApiUnavailableException {
+    if (!config.isSharedStepContainers()) {
+      return runSteps(c, codeDir, steps, variant, callback, cancellationToken, stepResults,
+          null);
+    }
+    File sessionDir = new File(config.getTempRoot(),
+        String.valueOf(tempDirCounter.incrementAndGet()));
+    ImmutableList<ExecutionConfig> containerConfigs;
+    try {
+      FileUtil.mkdirIfNotExists(sessionDir);
+      containerConfigs = planSharedContainers(c, codeDir, steps, variant, sessionDir);
+    } catch (IOException e) {
+      LOG.error("Failed to set up shared containers, running steps separately", e);
+      deleteSessionDir(sessionDir);
+      return runSteps(c, codeDir, steps, variant, callback, cancellationToken, stepResults,
+          null);
+    }
+    try (ContainerSession session = containerBackend.openSession()) {
+      ImmutableList<SharedContainer> shared = containerConfigs.stream()
+          .map(containerConfig -> new SharedContainer(session, containerConfig, sessionDir))
+          .collect(ImmutableList.toImmutableList());
+      return runSteps(c, codeDir, steps, variant, callback, cancellationToken, stepResults,
+          shared);
+    } finally {
+      deleteSessionDir(sessionDir);
+    }
+  }
+
+  /**
+   * Work out which container each step should run in. Consecutive steps share a container if they
+   * use the same image and network setting and have exactly the same mounts, so that no step can
+   * see or change anything which wasn't mounted for it. The container has the largest of their
+   * memory limits. The results of the steps are mounted from files in the session directory, so
+   * empty files are created for them here and filled in as the steps finish.
+   */
+  private ImmutableList<ExecutionConfig> planSharedContainers(
+      TaskCopy c, File codeDir, ImmutableList<StepPlan> steps, String variant, File sessionDir)
+      throws IOException {
+    List<ExecutionConfig> stepConfigs = new ArrayList<>();
+    for (StepPlan step : steps) {
+      ImmutableMap<String, Binding> bindings =
+          stepBindings(c.getStepLocation(step.getName()), codeDir, variant);
+      ExecutionPlan plan = step.getPlan();
+      ExecutionConfig.Builder builder = ExecutionConfig.builder()
+          .setImageName(plan.getImage())
+          .setContainerRestrictions(plan.getRestrictions())
+          .setLocalUserId(config.getUid());
+      for (String name : plan.getBindingNames()) {
+        Binding binding = bindings.get(name);
+        if (binding == null) {
+          File stepFile = new File(sessionDir, name);
+          if (!stepFile.exists() && !stepFile.createNewFile()) {
+            throw new IOException("Failed to create " + stepFile);
+          }
+          binding = new FileBinding(stepFile, false);
+        }
+        binding.applyBinding(builder, name);
+      }
+      stepConfigs.add(builder.build());
+    }
+
+    ImmutableList.Builder<ExecutionConfig> containerConfigs = ImmutableList.builder();
+    int first = 0;
+    while (first < stepConfigs.size()) {
+      ExecutionConfig firstConfig = stepConfigs.get(first);
+      ContainerRestrictions restrictions = firstConfig.containerRestrictions();
+      ImmutableSet<PathSpecification> mounts = ImmutableSet.copyOf(firstConfig.pathSpecification());
+      int last = first;
+      while (last < stepConfigs.size()) {
+        ExecutionConfig stepConfig = stepConfigs.get(last);
+        if (!stepConfig.imageName().equals(firstConfig.imageName())
+            || stepConfig.containerRestrictions().isNetworkDisabled()
+                != restrictions.isNetworkDisabled()
+            || !ImmutableSet.copyOf(stepConfig.pathSpecification()).equals(mounts)) {
+          break;
+        }
+        if (stepConfig.containerRestrictions().getRamLimitMegabytes()
+            > restrictions.getRamLimitMegabytes()) {
+          restrictions = stepConfig.containerRestrictions();
+        }
+        last++;
+      }
+      ExecutionConfig.Builder builder = ExecutionConfig.builder()
+          .setImageName(firstConfig.imageName())
+          .setContainerRestrictions(restrictions)
+          .setLocalUserId(firstConfig.localUserId());
+      mounts.forEach(builder::addPathSpecification);
+      ExecutionConfig containerConfig = builder.build();
+      for (int i = first; i < last; i++) {
+        containerConfigs.add(containerConfig);
+      }
+      first = last;
+    }
+    return containerConfigs.build();
+  }
+
+  private static void deleteSessionDir(File sessionDir) {
+    try {
+      FileUtil.deleteRecursive(sessionDir);
+    } catch (IOException e) {
+      LOG.error("Failed to delete directory {}", sessionDir, e);
+    }
+  }
+
+  /** The container a step shares with its neighbours. */
+  private static class SharedContainer {
+    private final ContainerSession session;
+    private final ExecutionConfig containerConfig;
+    private final File tempDir;
+
+    SharedContainer(ContainerSession session, ExecutionConfig containerConfig, File tempDir) {
+      this.session = session;
+      this.containerConfig = containerConfig;
+      this.tempDir = tempDir;
+    }
+  }
+
+  /**
+   * Run the steps one after another.
+   *
+   * @param shared the container for each step to run in, or null to give each step a container of
+   *     its own
+   */
+  private boolean runSteps(TaskCopy c, File codeDir, ImmutableList<StepPlan> steps,
+                           String variant, StepRunnerCallback callback,
+                           CancellationToken cancellationToken,
+                           Map<String, ContainerExecResponse> stepResults,
+                           @Nullable ImmutableList<SharedContainer> shared)
+      throws ApiUnavailableException {
+    for (int i = 0; i < steps.size(); i++) {
+      StepPlan step = steps.get(i);
+      String stepName = step.getName();
+      try {
+        ContainerExecResponse response = execStep(
+            c.getStepLocation(stepName),
+            codeDir,
+            step.getPlan(),
+            variant,
+            stepResults,
+            shared != null ? shared.get(i) : null,
+            cancellationToken);
+        stepResults.put(stepName, response);
+        if (response.status() != Status.COMPLETED) {
+          callback.setStatus(Submission.STATUS_STEPS_FAILED);
+          callback.recordErrorReason(response, stepName);
+          return response.status() == Status.FAILED_EXITCODE;
+        }
+      } catch (ApiUnavailableException e) {
+        throw new ApiUnavailableException("Container API unavailable when trying to execute "
+            + stepName + " step.", e);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Work out which steps each step has to wait for. A step depends on an earlier step if its
+   * command refers to that step's output, or if both of them mount the submission since that is the
+   * only place one step can leave files for another.
+   *
+   * @return the indices of the steps which each step depends on
+   */
+  static ImmutableList<ImmutableSet<Integer>> getStepDependencies(List<StepPlan> steps) {
+    ImmutableList.Builder<ImmutableSet<Integer>> result = ImmutableList.builder();
+    for (int i = 0; i < steps.size(); i++) {
+      Set<String> references = steps.get(i).getPlan().getBindingNames();
+      ImmutableSet.Builder<Integer> stepDependencies = ImmutableSet.builder();
+      for (int j = 0; j < i; j++) {
+        if (references.contains(steps.get(j).getName())
+            || (references.contains(SUBMISSION_BINDING)
+                && steps.get(j).getPlan().getBindingNames().contains(SUBMISSION_BINDING))) {
+          stepDependencies.add(j);
+        }
+      }
+      result.add(stepDependencies.build());
+    }
+    return result.build();
+  }
+
+  /**
+   * Run the steps, starting each one as soon as the steps it depends on (see {@link
+   * #getStepDependencies}) have finished.
+   *
+   * <p>Once a step has failed no more steps are started, but those already running are allowed to
+   * finish. The error reported is that of the first failed step in declaration order, so that the
+   * outcome is the same as if the steps had run one after another.
+   *
+   * @return false if a step failed in a way which means the output should not be run
+   */
+  boolean runStepsConcurrently(Function<String, File> stepLocations, File codeDir,
+                               ImmutableList<StepPlan> steps, String variant,
+                               StepRunnerCallback callback,
+                               CancellationToken cancellationToken,
+                               Map<String, ContainerExecResponse> stepResults)
+      throws ApiUnavailableException {
+    int stepCount = steps.size();
+    ImmutableList<ImmutableSet<Integer>> dependencies = getStepDependencies(steps);
+
+    ContainerExecResponse[] responses = new ContainerExecResponse[stepCount];
+    boolean[] started = new boolean[stepCount];
+    CompletionService<ContainerExecResponse> completionService =
+        new ExecutorCompletionService<>(stepExecutor);
+    Map<Future<ContainerExecResponse>, Integer> running = new HashMap<>();
+    boolean anyFailed = false;
+    ApiUnavailableException apiUnavailable = null;
+    while (true) {
+      if (!anyFailed) {
+        for (int i = 0; i < stepCount; i++) {
+          if (!started[i] && dependencies.get(i).stream().allMatch(j -> responses[j] != null)) {
+            started[i] = true;
+            String stepName = steps.get(i).getName();
+            ExecutionPlan plan = steps.get(i).getPlan();
+            ImmutableMap<String, ContainerExecResponse> inputs = ImmutableMap.copyOf(stepResults);
+            running.put(
+                completionService.submit(
+                    () ->
+                        execStep(
+                            stepLocations.apply(stepName),
+                            codeDir,
+                            plan,
+                            variant,
+                            inputs,
+                            cancellationToken)),
+                i);
+          }
+        }
+      }
+      if (running.isEmpty()) {
+        break;
+      }
+
+      Future<ContainerExecResponse> done;
+      try {
+        done = completionService.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ApiUnavailableException("Interrupted whilst waiting for steps to finish", e);
+      }
+      int index = running.remove(done);
+      try {
+        ContainerExecResponse response = done.get();
+        responses[index] = response;
+        stepResults.put(steps.get(index).getName(), response);
+        if (response.status() != Status.COMPLETED) {
+          anyFailed = true;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ApiUnavailableException("Interrupted whilst waiting for steps to finish", e);
+      } catch (ExecutionException e) {
+        Throwables.throwIfUnchecked(e.getCause());
+        anyFailed = true;
+        if (apiUnavailable == null) {
+          apiUnavailable =
+              new ApiUnavailableException("Container API unavailable when trying to execute "
+                  + steps.get(index).getName() + " step.", e.getCause());
+        }
+      }
+    }
+
+    if (apiUnavailable != null) {
+      throw apiUnavailable;
+    }
+    for (int i = 0; i < stepCount; i++) {
+      ContainerExecResponse response = responses[i];
+      if (response != null && response.status() != Status.COMPLETED) {
+        callback.setStatus(Submission.STATUS_STEPS_FAILED);
+        callback.recordErrorReason(response, steps.get(i).getName());
+        return response.status() == Status.FAILED_EXITCODE;
+      }
     }
+    return true;
   }
 }
@@ -0,0 +1,225 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.containers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.cam.cl.dtg.teaching.docker.ApiUnavailableException;
+import uk.ac.cam.cl.dtg.teaching.docker.DockerPatch;
+import uk.ac.cam.cl.dtg.teaching.docker.api.DockerApi;
+import uk.ac.cam.cl.dtg.teaching.docker.model.Container;
+
+/**
+ * Deletes finished containers in the background, so that the thread which ran a container can
+ * move on as soon as it has the result.
+ *
+ * <p>Containers handed to the reaper are queued and a single thread deletes everything in the
+ * queue in one pass. The API has no bulk delete so each pass still makes one call per container,
+ * but a burst of finished containers costs one wakeup rather than one per worker. Failed deletions
+ * are queued again and retried after RETRY_DELAY_SEC, up to MAX_ATTEMPTS times.
+ */
+class ContainerReaper {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ContainerReaper.class);
+
+  static final long RETRY_DELAY_SEC = 5;
+
+  static final int MAX_ATTEMPTS = 5;
+
+  private final Deleter deleter;
+
+  private final long retryDelayMs;
+
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+  private final ConcurrentLinkedQueue<Reap> queue = new ConcurrentLinkedQueue<>();
+
+  private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+  // Failed deletions waiting to be retried
+  private final Set<Reap> waiting = ConcurrentHashMap.newKeySet();
+
+  private static class Reap {
+    private final String containerId;
+    private final int attempt;
+
+    private Reap(String containerId, int attempt) {
+      this.containerId = containerId;
+      this.attempt = attempt;
+    }
+  }
+
+  /** Deletes a container, killing it if need be. */
+  interface Deleter {
+    void delete(String containerId) throws ApiUnavailableException;
+  }
+
+  ContainerReaper(DockerContainerImpl backend) {
+    this(
+        containerId ->
+            DockerPatch.deleteContainer(backend.getDockerApi(), containerId, true, true),
+        TimeUnit.SECONDS.toMillis(RETRY_DELAY_SEC));
+  }
+
+  /**
+   * Create a reaper.
+   *
+   * @param deleter deletes each container
+   * @param retryDelayMs time to wait before trying to delete a container again
+   */
+  ContainerReaper(Deleter deleter, long retryDelayMs) {
+    this.deleter = deleter;
+    this.retryDelayMs = retryDelayMs;
+  }
+
+  /** Delete this container (killing it if need be) at some point soon. */
+  void reap(String containerId) {
+    enqueue(new Reap(containerId, 1));
+  }
+
+  /**
+   * Queue the deletion of every container left over from a previous run of the backend. These
+   * are recognised by their names starting with the container prefix.
+   */
+  void reapOldContainers(String containerPrefix, DockerApi docker)
+      throws ApiUnavailableException {
+    for (Container i : docker.listContainers(true, null, null, null, null)) {
+      Optional<String> matchedName = getPotteryTransientName(containerPrefix, i);
+      if (matchedName.isPresent()) {
+        LOG.warn("Deleting old container named {}", matchedName.get());
+        reap(i.getId());
+      }
+    }
+  }
+
+  /** Stop the reaper thread and make a last attempt to delete anything still queued. */
+  void stop() {
+    executor.shutdownNow();
+    try {
+      executor.awaitTermination(retryDelayMs, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Reap r : waiting) {
+      if (waiting.remove(r)) {
+        queue.add(r);
+      }
+    }
+    List<Reap> remaining = drainQueue();
+    if (remaining.isEmpty()) {
+      return;
+    }
+    for (Reap r : remaining) {
+      try {
+        deleter.delete(r.containerId);
+      } catch (ApiUnavailableException e) {
+        LOG.error("Unable to delete {} containers, API unavailable", remaining.size(), e);
+        return;
+      } catch (RuntimeException e) {
+        LOG.error("Failed to delete container {} during shutdown", r.containerId, e);
+      }
+    }
+  }
+
+  private void enqueue(Reap reap) {
+    queue.add(reap);
+    if (drainScheduled.compareAndSet(false, true)) {
+      try {
+        executor.execute(this::drain);
+      } catch (RejectedExecutionException e) {
+        // We're shutting down, stop() will pick it up
+        drainScheduled.set(false);
+      }
+    }
+  }
+
+  private void drain() {
+    // Clear the flag first so that anything queued from now on schedules another pass
+    drainScheduled.set(false);
+    List<Reap> batch = drainQueue();
+    if (batch.isEmpty()) {
+      return;
+    }
+    for (int i = 0; i < batch.size(); i++) {
+      Reap r = batch.get(i);
+      try {
+        deleter.delete(r.containerId);
+      } catch (ApiUnavailableException e) {
+        LOG.warn("Unable to delete {} containers, API unavailable", batch.size() - i);
+        batch.subList(i, batch.size()).forEach(this::retry);
+        return;
+      } catch (RuntimeException e) {
+        if (String.valueOf(e.getMessage()).contains("No such container")) {
+          // Someone else got there first
+          continue;
+        }
+        LOG.warn("Failed to delete container {} (attempt {})", r.containerId, r.attempt, e);
+        retry(r);
+      }
+    }
+  }
+
+  private void retry(Reap reap) {
+    if (reap.attempt >= MAX_ATTEMPTS) {
+      LOG.error("Giving up on deleting container {}", reap.containerId);
+      return;
+    }
+    Reap next = new Reap(reap.containerId, reap.attempt + 1);
+    // Left in waiting if we're shutting down so that stop() tries once more
+    waiting.add(next);
+    try {
+      executor.schedule(
+          () -> {
+            if (waiting.remove(next)) {
+              enqueue(next);
+            }
+          },
+          retryDelayMs,
+          TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // We're shutting down
+    }
+  }
+
+  private List<Reap> drainQueue() {
+    List<Reap> result = new ArrayList<>();
+    Reap r;
+    while ((r = queue.poll()) != null) {
+      result.add(r);
+    }
+    return result;
+  }
+
+  private static Optional<String> getPotteryTransientName(String containerPrefix, Container i) {
+    final String prefix = "/" + containerPrefix;
+    return Arrays.stream(i.getNames()).filter(name -> name.startsWith(prefix)).findAny();
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.containers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Admits container executions against a budget for the number of containers running at once
+ * (roughly one CPU each) and for the total of their declared memory limits.
+ *
+ * <p>Executions are admitted first-fit in arrival order, so light containers can run in the space
+ * left over by heavy ones rather than queueing behind them. To stop a heavy container from waiting
+ * forever, once the oldest waiting execution has been overtaken MAX_OVERTAKES times nothing else
+ * is admitted until it has started.
+ */
+class ContainerResourcePool {
+
+  static final int MAX_OVERTAKES = 16;
+
+  private final int maxContainers;
+  private final long memoryBudgetMegabytes;
+
+  private int runningContainers = 0;
+  private long reservedMemoryMegabytes = 0;
+
+  private final List<Request> waiting = new ArrayList<>();
+
+  private static class Request {
+    private final long memoryMegabytes;
+    private int overtakes = 0;
+
+    Request(long memoryMegabytes) {
+      this.memoryMegabytes = memoryMegabytes;
+    }
+  }
+
+  /**
+   * Create a pool with the given budgets.
+   *
+   * @param maxContainers maximum number of containers to run at once, zero means no limit
+   * @param memoryBudgetMegabytes maximum total memory of running containers, zero means no limit
+   */
+  ContainerResourcePool(int maxContainers, long memoryBudgetMegabytes) {
+    this.maxContainers = maxContainers;
+    this.memoryBudgetMegabytes = memoryBudgetMegabytes;
+  }
+
+  /**
+   * Wait until there is room for a container with this memory limit and reserve it. A container
+   * which needs more than the whole memory budget is run on its own.
+   *
+   * @return the amount of memory reserved, which should be passed to release
+   */
+  synchronized long acquire(long memoryMegabytes) throws InterruptedException {
+    Request request =
+        new Request(
+            memoryBudgetMegabytes > 0
+                ? Math.min(memoryMegabytes, memoryBudgetMegabytes)
+                : memoryMegabytes);
+    waiting.add(request);
+    try {
+      while (!canAdmit(request)) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      waiting.remove(request);
+      notifyAll();
+      throw e;
+    }
+    Request oldest = waiting.get(0);
+    if (oldest != request) {
+      oldest.overtakes++;
+    }
+    waiting.remove(request);
+    runningContainers++;
+    reservedMemoryMegabytes += request.memoryMegabytes;
+    // The oldest waiting request may have changed
+    notifyAll();
+    return request.memoryMegabytes;
+  }
+
+  /** Return the resources reserved by acquire. */
+  synchronized void release(long reservedMegabytes) {
+    runningContainers--;
+    reservedMemoryMegabytes -= reservedMegabytes;
+    notifyAll();
+  }
+
+  private boolean canAdmit(Request request) {
+    if (maxContainers > 0 && runningContainers >= maxContainers) {
+      return false;
+    }
+    if (memoryBudgetMegabytes > 0
+        && reservedMemoryMegabytes + request.memoryMegabytes > memoryBudgetMegabytes) {
+      return false;
+    }
+    Request oldest = waiting.get(0);
+    return oldest == request || oldest.overtakes < MAX_OVERTAKES;
+  }
+
+  synchronized int getQueueLength() {
+    return waiting.size();
+  }
+
+  synchronized int getRunningContainers() {
+    return runningContainers;
+  }
+
+  synchronized long getReservedMemoryMegabytes() {
+    return reservedMemoryMegabytes;
+  }
+}
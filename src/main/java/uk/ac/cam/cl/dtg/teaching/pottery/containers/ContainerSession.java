@@ -0,0 +1,48 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.containers;
+
+import uk.ac.cam.cl.dtg.teaching.docker.ApiUnavailableException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.ContainerExecutionException;
+
+/**
+ * A series of executions, run one after another, which may share containers. Close the session to
+ * remove any container it is holding on to.
+ */
+interface ContainerSession extends AutoCloseable {
+
+  /**
+   * Run an execution to completion in the given container. Consecutive executions which ask for an
+   * equal container may be run in the same one, which is kept running between them.
+   *
+   * @param executionConfig the execution to run
+   * @param containerConfig the container to run it in. Its paths must include those of the
+   *     execution and its memory limit must be at least that of the execution. Its command is not
+   *     used.
+   * @param cancellationToken kills the execution if it is cancelled
+   */
+  ContainerExecResponse execute(
+      ExecutionConfig executionConfig,
+      ExecutionConfig containerConfig,
+      CancellationToken cancellationToken)
+      throws ContainerExecutionException, ApiUnavailableException;
+
+  @Override
+  void close();
+}
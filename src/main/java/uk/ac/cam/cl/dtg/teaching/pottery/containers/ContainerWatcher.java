@@ -0,0 +1,177 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.containers;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.cam.cl.dtg.teaching.docker.ApiUnavailableException;
+import uk.ac.cam.cl.dtg.teaching.docker.model.ContainerInfo;
+
+/**
+ * Finds out when containers stop, on behalf of everything which is waiting for one to.
+ *
+ * <p>Whoever is waiting for a container pokes the watcher when something suggests that it has
+ * stopped, for example its attach stream closing or it being killed. The watcher then inspects the
+ * container once, and completes the future for it with the final state. The daemon can close the
+ * attach stream just before it marks the container as stopped, so a poked container which is
+ * still running is checked again with increasing delays up to LAST_RECHECK_MS, and then every
+ * LAST_RECHECK_MS until it stops or RECHECK_DEADLINE_MS has passed since it was poked. In case an
+ * event is missed, a single thread also sweeps all the watched containers every
+ * SWEEP_INTERVAL_SEC.
+ */
+class ContainerWatcher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ContainerWatcher.class);
+
+  static final long SWEEP_INTERVAL_SEC = 30;
+
+  static final long FIRST_RECHECK_MS = 20;
+
+  static final long LAST_RECHECK_MS = 1000;
+
+  static final long RECHECK_DEADLINE_MS = TimeUnit.SECONDS.toMillis(SWEEP_INTERVAL_SEC);
+
+  private final DockerContainerImpl backend;
+
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+  private final ConcurrentMap<String, Watch> watches = new ConcurrentHashMap<>();
+
+  private static class Watch {
+    private final CompletableFuture<ContainerInfo> stopped = new CompletableFuture<>();
+
+    // Only used on the executor thread
+    private boolean rechecking = false;
+  }
+
+  ContainerWatcher(DockerContainerImpl backend) {
+    this.backend = backend;
+    executor.scheduleWithFixedDelay(
+        this::sweep, SWEEP_INTERVAL_SEC, SWEEP_INTERVAL_SEC, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Start watching a container.
+   *
+   * @return a future which completes with the state of the container once it has stopped
+   */
+  CompletableFuture<ContainerInfo> watch(String containerId) {
+    Watch watch = new Watch();
+    watches.put(containerId, watch);
+    return watch.stopped;
+  }
+
+  /** Stop watching a container, for example because it has been deleted. */
+  void unwatch(String containerId) {
+    Watch watch = watches.remove(containerId);
+    if (watch != null) {
+      watch.stopped.cancel(false);
+    }
+  }
+
+  /** Tell the watcher that the container has probably stopped. */
+  void poke(String containerId) {
+    Watch watch = watches.get(containerId);
+    if (watch == null) {
+      return;
+    }
+    try {
+      executor.execute(
+          () -> {
+            if (!watch.rechecking) {
+              watch.rechecking = true;
+              recheck(
+                  containerId,
+                  watch,
+                  FIRST_RECHECK_MS,
+                  System.currentTimeMillis() + RECHECK_DEADLINE_MS);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      // We're shutting down
+    }
+  }
+
+  /** Stop watching. Anything still waiting for a container is told that it was stopped. */
+  void stop() {
+    executor.shutdownNow();
+    for (Map.Entry<String, Watch> entry : watches.entrySet()) {
+      entry
+          .getValue()
+          .stopped
+          .completeExceptionally(
+              new IllegalStateException("Stopped watching container " + entry.getKey()));
+    }
+    watches.clear();
+  }
+
+  private void recheck(String containerId, Watch watch, long delayMs, long deadline) {
+    if (check(containerId, watch) || System.currentTimeMillis() >= deadline) {
+      // Either it has stopped or it really is still running, in which case we'll find out when
+      // it stops from the next poke or sweep
+      watch.rechecking = false;
+      return;
+    }
+    try {
+      executor.schedule(
+          () -> recheck(containerId, watch, Math.min(delayMs * 2, LAST_RECHECK_MS), deadline),
+          delayMs,
+          TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // We're shutting down
+    }
+  }
+
+  private void sweep() {
+    for (Map.Entry<String, Watch> entry : watches.entrySet()) {
+      check(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /** Inspect the container and complete its future if it has stopped. */
+  private boolean check(String containerId, Watch watch) {
+    if (watch.stopped.isDone()) {
+      return true;
+    }
+    try {
+      ContainerInfo info = backend.getDockerApi().inspectContainer(containerId, false);
+      if (info.getState().getRunning()) {
+        return false;
+      }
+      watches.remove(containerId, watch);
+      watch.stopped.complete(info);
+    } catch (ApiUnavailableException e) {
+      // Try again on the next sweep
+      LOG.warn("Unable to check on container {}, API unavailable", containerId);
+      return false;
+    } catch (RuntimeException e) {
+      watches.remove(containerId, watch);
+      watch.stopped.completeExceptionally(e);
+    }
+    return true;
+  }
+}
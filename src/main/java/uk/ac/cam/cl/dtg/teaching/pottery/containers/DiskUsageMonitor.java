@@ -0,0 +1,228 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.containers;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.cam.cl.dtg.teaching.docker.ApiUnavailableException;
+import uk.ac.cam.cl.dtg.teaching.docker.DockerUtil;
+import uk.ac.cam.cl.dtg.teaching.docker.api.DockerApi;
+import uk.ac.cam.cl.dtg.teaching.docker.model.ContainerInfo;
+
+/**
+ * Kills containers which write more to disk than they are allowed to.
+ *
+ * <p>Working out the size of a container makes the daemon walk its filesystem. Listing containers
+ * with their sizes would make it do so for every running container, including ones which have
+ * nothing to do with us, so the monitor only inspects the containers it is watching. It samples
+ * every MAX_INTERVAL_MS, or every MIN_INTERVAL_MS whilst a container
+ * has used more than half of its limit, but never more often than COST_FACTOR times the duration
+ * of the last call so that the daemon doesn't spend its time computing sizes. If the kernel is
+ * enforcing the limits as quotas then sampling is only a fallback and happens every
+ * QUOTA_INTERVAL_MS.
+ *
+ * <p>A container which runs several executions one after another is watched with the size it had
+ * when it was last sampled as a baseline, so that each execution is mostly charged for what it
+ * writes without having to inspect the container again before it starts. The sample might be
+ * out of date, or missing if the container has never been sampled, in which case the execution
+ * is also charged for some of what the ones before it wrote.
+ */
+class DiskUsageMonitor {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DiskUsageMonitor.class);
+
+  static final long MIN_INTERVAL_MS = 2000;
+
+  static final long MAX_INTERVAL_MS = 10000;
+
+  static final long QUOTA_INTERVAL_MS = 60000;
+
+  static final long COST_FACTOR = 5;
+
+  /** A container which has filled its quota might be reported as slightly smaller than it. */
+  static final long QUOTA_SLACK_BYTES = 1024 * 1024;
+
+  private final DockerContainerImpl backend;
+  private final boolean quotaEnforced;
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+  private final ConcurrentMap<String, Watch> watches = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Long> sampledBytes = new ConcurrentHashMap<>();
+
+  /** The disk usage of one container. */
+  static class Watch {
+    private final String containerId;
+    private final long maxBytes;
+    private final long baselineBytes;
+    private final AttachListener attachListener;
+    private volatile boolean killed = false;
+
+    private Watch(
+        String containerId, long maxBytes, long baselineBytes, AttachListener attachListener) {
+      this.containerId = containerId;
+      this.maxBytes = maxBytes;
+      this.baselineBytes = baselineBytes;
+      this.attachListener = attachListener;
+    }
+
+    boolean isKilled() {
+      return killed;
+    }
+  }
+
+  /**
+   * Create a monitor.
+   *
+   * @param backend the backend whose containers are monitored
+   * @param quotaEnforced true if the containers are created with a disk quota
+   */
+  DiskUsageMonitor(DockerContainerImpl backend, boolean quotaEnforced) {
+    this.backend = backend;
+    this.quotaEnforced = quotaEnforced;
+    schedule(quotaEnforced ? QUOTA_INTERVAL_MS : MAX_INTERVAL_MS);
+  }
+
+  /**
+   * Start monitoring a container. If it writes more than maxBytes then it is killed and the attach
+   * listener is closed.
+   */
+  Watch watch(String containerId, long maxBytes, AttachListener attachListener) {
+    return watch(containerId, maxBytes, 0, attachListener);
+  }
+
+  /**
+   * Start monitoring a container which has already written baselineBytes. If it writes more than
+   * maxBytes on top of that then it is killed and the attach listener is closed.
+   */
+  Watch watch(
+      String containerId, long maxBytes, long baselineBytes, AttachListener attachListener) {
+    Watch watch = new Watch(containerId, maxBytes, baselineBytes, attachListener);
+    watches.put(containerId, watch);
+    return watch;
+  }
+
+  /**
+   * The number of bytes the container had written when it was last sampled.
+   *
+   * @return the size or 0 if the container hasn't been sampled
+   */
+  long getSampledBytes(String containerId) {
+    return sampledBytes.getOrDefault(containerId, 0L);
+  }
+
+  /** Stop monitoring a container. Its last sample is kept in case it is watched again. */
+  void unwatch(Watch watch) {
+    watches.remove(watch.containerId, watch);
+  }
+
+  /** Drop the last sample of a container which won't be watched again. */
+  void forget(String containerId) {
+    sampledBytes.remove(containerId);
+  }
+
+  /**
+   * Check whether a container which failed did so because it filled its quota. Only needed when
+   * quotas are enforced since then a container which fills its quota gets write errors rather
+   * than being killed.
+   */
+  boolean isQuotaFilled(Watch watch) {
+    if (!quotaEnforced || watch.killed) {
+      return false;
+    }
+    try {
+      ContainerInfo info = backend.getDockerApi().inspectContainer(watch.containerId, true);
+      if (info != null
+          && info.getSizeRw() != null
+          && info.getSizeRw() >= watch.maxBytes - QUOTA_SLACK_BYTES) {
+        return true;
+      }
+    } catch (ApiUnavailableException | RuntimeException e) {
+      LOG.warn("Unable to get the size of container {}", watch.containerId, e);
+    }
+    return false;
+  }
+
+  void stop() {
+    executor.shutdownNow();
+  }
+
+  private void schedule(long delayMs) {
+    try {
+      executor.schedule(this::sample, delayMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // We're shutting down
+    }
+  }
+
+  private void sample() {
+    long interval = quotaEnforced ? QUOTA_INTERVAL_MS : MAX_INTERVAL_MS;
+    if (!watches.isEmpty()) {
+      long startTime = System.currentTimeMillis();
+      try {
+        DockerApi docker = backend.getDockerApi();
+        boolean nearLimit = false;
+        for (Watch watch : watches.values()) {
+          ContainerInfo info;
+          try {
+            info = docker.inspectContainer(watch.containerId, true);
+          } catch (RuntimeException e) {
+            // The container has probably just been deleted
+            continue;
+          }
+          if (info == null || info.getSizeRw() == null) {
+            continue;
+          }
+          sampledBytes.put(watch.containerId, info.getSizeRw().longValue());
+          long size = info.getSizeRw() - watch.baselineBytes;
+          if (size > watch.maxBytes) {
+            kill(watch, docker);
+          } else if (size > watch.maxBytes / 2) {
+            nearLimit = true;
+          }
+        }
+        if (nearLimit && !quotaEnforced) {
+          interval = MIN_INTERVAL_MS;
+        }
+      } catch (ApiUnavailableException e) {
+        // Just ignore this one - we'll try again next time
+      } catch (RuntimeException e) {
+        LOG.error("Caught exception when checking disk usage of containers", e);
+      }
+      interval = Math.max(interval, (System.currentTimeMillis() - startTime) * COST_FACTOR);
+    }
+    schedule(interval);
+  }
+
+  private static void kill(Watch watch, DockerApi docker) {
+    try {
+      watch.killed = DockerUtil.killContainer(watch.containerId, docker);
+      watch.attachListener.notifyClose();
+    } catch (RuntimeException e) {
+      if (e.getMessage() == null || !e.getMessage().startsWith("No such container: ")) {
+        // avoid the race condition where the container exits just before we kill it
+        LOG.error("Caught exception when trying to kill container for disk usage", e);
+      }
+    }
+  }
+}
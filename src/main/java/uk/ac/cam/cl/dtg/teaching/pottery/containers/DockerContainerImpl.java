@@ -18,17 +18,22 @@
 
 package uk.ac.cam.cl.dtg.teaching.pottery.containers;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
 import com.google.inject.Inject;
+import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Optional;
-import java.util.concurrent.CancellationException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -44,7 +49,6 @@ import uk.ac.cam.cl.dtg.teaching.docker.Docker;
 import uk.ac.cam.cl.dtg.teaching.docker.DockerPatch;
 import uk.ac.cam.cl.dtg.teaching.docker.DockerUtil;
 import uk.ac.cam.cl.dtg.teaching.docker.api.DockerApi;
-import uk.ac.cam.cl.dtg.teaching.docker.model.Container;
 import uk.ac.cam.cl.dtg.teaching.docker.model.ContainerConfig;
 import uk.ac.cam.cl.dtg.teaching.docker.model.ContainerInfo;
 import uk.ac.cam.cl.dtg.teaching.docker.model.ContainerResponse;
@@ -62,39 +66,69 @@ public class DockerContainerImpl implements ContainerBackend {
 
   private final ContainerEnvConfig config;
 
-  private final ScheduledExecutorService scheduler;
+  /** Number of threads available to kill containers which have reached their timeout. */
+  private static final int KILL_THREADS = 4;
+
+  // Longest output kept from each execution in a session container
+  private static final int MAX_SESSION_OUTPUT_CHARS = 1024 * 1024;
+
+  private final TimeoutWheel timeouts;
+
+  private final WarmContainerPool warmPool;
+
+  private final ContainerWatcher watcher;
+
+  private final DiskUsageMonitor diskUsageMonitor;
+
+  private final ContainerReaper reaper;
 
   // Lazy initialized - use getDockerApi to access this
-  private DockerApi dockerApi;
+  private volatile DockerApi dockerApi;
 
   private final ConcurrentSkipListSet<String> runningContainers = new ConcurrentSkipListSet<>();
 
+  // Distinguishes our container names from those of old containers which are still being deleted
+  private final String containerNameToken =
+      Long.toString(System.currentTimeMillis(), Character.MAX_RADIX) + "-";
   private final AtomicInteger containerNameCounter = new AtomicInteger(0);
   private final AtomicInteger timeoutMultiplier = new AtomicInteger(1);
   private final AtomicReference<ApiStatus> apiStatus =
       new AtomicReference<>(ApiStatus.UNINITIALISED);
   private final AtomicLong smoothedCallTime = new AtomicLong(0);
+  private final ConcurrentMap<String, AtomicLong> smoothedMethodCallTimes =
+      new ConcurrentHashMap<>();
 
   @Inject
   public DockerContainerImpl(ContainerEnvConfig config) throws IOException {
     this.config = config;
-    this.scheduler = Executors.newSingleThreadScheduledExecutor();
+    this.timeouts = new TimeoutWheel(KILL_THREADS);
     FileUtil.mkdirIfNotExists(config.getLibRoot());
     FileUtil.mkdirIfNotExists(config.getTempRoot());
+    this.watcher = new ContainerWatcher(this);
+    this.diskUsageMonitor = new DiskUsageMonitor(this, config.isDiskQuota());
+    this.reaper = new ContainerReaper(this);
+    this.warmPool =
+        new WarmContainerPool(
+            this, config.getWarmPoolSize(), new File(config.getTempRoot(), "warm"));
   }
 
   @Override
   public void stop() {
-    LOG.info("Shutting down scheduler");
-    for (Runnable r : scheduler.shutdownNow()) {
-      r.run();
-    }
+    LOG.info("Stopping timeouts");
+    timeouts.stop();
+    LOG.info("Stopping container watcher and disk usage monitor");
+    watcher.stop();
+    diskUsageMonitor.stop();
+    LOG.info("Removing warm containers");
+    warmPool.stop();
     LOG.info("Killing remaining containers");
     try {
       DockerApi docker = getDockerApi();
       for (String containerId : runningContainers) {
         DockerUtil.killContainer(containerId, docker);
       }
+      LOG.info("Deleting finished containers");
+      reaper.stop();
       docker.close();
     } catch (ApiUnavailableException e) {
       LOG.error("Unable to remove running containers, API unavailable", e);
@@ -112,7 +146,18 @@ public class DockerContainerImpl implements ContainerBackend {
   }
 
   @Override
-  public synchronized String getVersion() throws ApiUnavailableException {
+  public ImmutableMap<String, Long> getSmoothedCallTimes() {
+    return ImmutableSortedMap.copyOf(
+        Maps.transformValues(smoothedMethodCallTimes, AtomicLong::get));
+  }
+
+  @Override
+  public long getSmoothedTimeoutOvershoot() {
+    return timeouts.getSmoothedOvershoot();
+  }
+
+  @Override
+  public String getVersion() throws ApiUnavailableException {
     return "Docker:" + getDockerApi().getVersion().getApiVersion();
   }
 
@@ -127,94 +172,88 @@ public class DockerContainerImpl implements ContainerBackend {
   }
 
   @Override
-  public ContainerExecResponse executeContainer(ExecutionConfig executionConfig)
+  public ContainerExecResponse executeContainer(
+      ExecutionConfig executionConfig, CancellationToken cancellationToken)
       throws ApiUnavailableException, ContainerExecutionException {
 
-    String containerName =
-        this.config.getContainerPrefix() + containerNameCounter.incrementAndGet();
-    LOG.debug("Creating container {}", containerName);
-
     DockerApi docker = getDockerApi();
 
     long startTime = System.currentTimeMillis();
+    WarmContainerPool.Claim claim = warmPool.claim(executionConfig);
     try {
-      ContainerConfig config = executionConfig.toContainerConfig();
-      ContainerResponse response = docker.createContainer(containerName, config);
-      final String containerId = response.getId();
+      final String containerId;
+      if (claim != null) {
+        containerId = claim.getContainerId();
+        LOG.debug("Using warm container {}", containerId);
+      } else {
+        String containerName = nextContainerName();
+        LOG.debug("Creating container {}", containerName);
+        ContainerConfig config = toContainerConfig(executionConfig);
+        ContainerResponse response = docker.createContainer(containerName, config);
+        containerId = response.getId();
+      }
       runningContainers.add(containerId);
+      boolean exited = false;
       try {
-        docker.startContainer(containerId);
-        AttachListener attachListener = new AttachListener();
+        if (claim == null) {
+          docker.startContainer(containerId);
+        }
+        CompletableFuture<ContainerInfo> stopped = watcher.watch(containerId);
+        AttachListener attachListener = new AttachListener(() -> watcher.poke(containerId));
 
-        ScheduledFuture<Boolean> timeoutKiller =
+        TimeoutWheel.Timeout timeoutKiller =
             scheduleTimeoutKiller(
                 executionConfig.containerRestrictions().getTimeoutSec() * timeoutMultiplier.get(),
                 containerId,
                 attachListener);
 
-        DiskUsageKiller diskUsageKiller =
-            new DiskUsageKiller(
-                containerId,
-                this,
-                executionConfig.containerRestrictions().getDiskWriteLimitMegabytes() * 1024 * 1024,
-                attachListener);
-        ScheduledFuture<?> diskUsageKillerFuture =
-            scheduler.scheduleAtFixedRate(diskUsageKiller, 10L, 10L, TimeUnit.SECONDS);
+        DiskUsageMonitor.Watch diskUsage =
+            diskUsageMonitor.watch(
+                containerId, getDiskWriteLimitBytes(executionConfig), attachListener);
 
         try {
+          cancellationToken.setOnCancel(() -> killCancelledContainer(containerId, attachListener));
           Future<Session> session =
               docker.attach(containerId, true, true, true, true, true, attachListener);
 
-          // Wait for container to finish (or be killed)
-          Status status = Status.FAILED_UNKNOWN;
-          boolean knownStopped = false;
-          boolean closed = false;
-          ContainerInfo containerInfo = null;
-          while (!closed) {
-            closed = attachListener.waitForClose(60 * 1000);
-            containerInfo = docker.inspectContainer(containerId, false);
-            if (!containerInfo.getState().getRunning()) {
-              knownStopped = true;
-              closed = true;
-              if (containerInfo.getState().getExitCode() == 0) {
-                status = Status.COMPLETED;
-              } else {
-                status = Status.FAILED_EXITCODE;
-              }
-            }
-          }
-
-          // Check to make sure its really stopped the container
-          if (!knownStopped) {
-            containerInfo = docker.inspectContainer(containerId, false);
-            if (containerInfo.getState().getRunning()) {
-              DockerUtil.killContainer(containerId, docker);
-              containerInfo = docker.inspectContainer(containerId, false);
-            }
-            if (containerInfo.getState().getExitCode() == 0) {
-              status = Status.COMPLETED;
-            } else {
-              status = Status.FAILED_EXITCODE;
-            }
+          // Wait for container to finish (or be killed). The killers close the attach listener
+          // which pokes the watcher.
+          ContainerInfo containerInfo;
+          try {
+            containerInfo = stopped.get();
+            exited = true;
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            timeoutKiller.cancel();
+            throw new ContainerExecutionException(
+                "Interrupted whilst waiting for container " + containerId + " to stop");
+          } catch (ExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
           }
+          Status status =
+              containerInfo.getState().getExitCode() == 0
+                  ? Status.COMPLETED
+                  : Status.FAILED_EXITCODE;
 
           if (containerInfo.getState().getOomKilled()) {
             status = Status.FAILED_OOM;
           }
 
-          timeoutKiller.cancel(false);
-          try {
-            if (timeoutKiller.get()) {
-              status = Status.FAILED_TIMEOUT;
-            }
-          } catch (InterruptedException | ExecutionException | CancellationException e) {
-            // ignore
+          timeoutKiller.cancel();
+          if (timeoutKiller.hasFired()) {
+            status = Status.FAILED_TIMEOUT;
           }
 
-          if (diskUsageKiller.isKilled()) {
+          if (diskUsage.isKilled()
+              || (status == Status.FAILED_EXITCODE && diskUsageMonitor.isQuotaFilled(diskUsage))) {
             status = Status.FAILED_DISK;
           }
 
+          if (cancellationToken.isCancelled()) {
+            status = Status.FAILED_CANCELLED;
+          }
+
           try {
             session.get(5, TimeUnit.SECONDS).close();
           } catch (InterruptedException e) {
@@ -233,11 +272,19 @@ public class DockerContainerImpl implements ContainerBackend {
               attachListener.getOutput(),
               System.currentTimeMillis() - startTime);
         } finally {
-          diskUsageKillerFuture.cancel(false);
+          cancellationToken.clearOnCancel();
+          diskUsageMonitor.unwatch(diskUsage);
         }
       } finally {
+        watcher.unwatch(containerId);
+        diskUsageMonitor.forget(containerId);
         runningContainers.remove(containerId);
-        DockerPatch.deleteContainer(docker, containerId, true, true);
+        if (claim != null && !exited) {
+          // The container might still be using the claimed paths, which are handed back below
+          DockerPatch.deleteContainer(docker, containerId, true, true);
+        } else {
+          reaper.reap(containerId);
+        }
       }
     } catch (RuntimeException e) {
       LOG.error("Error executing container", e);
@@ -245,15 +292,242 @@ public class DockerContainerImpl implements ContainerBackend {
           String.format(
               "An error (%s) occurred when executing container: %s",
               e.getClass().getName(), e.getMessage()));
+    } finally {
+      if (claim != null) {
+        // The container has exited or been deleted so nothing else can touch the claimed paths
+        warmPool.release(claim);
+      }
+    }
+  }
+
+  @Override
+  public ContainerSession openSession() {
+    return new DockerSession();
+  }
+
+  /**
+   * Runs each execution of a session as a script in a long-lived container, which stands in for
+   * docker exec. The scripts are written to a control directory which the container can only read.
+   * The container's command runs them in turn, each one once a nonce for it is written to a FIFO
+   * in the control directory. Once a script exits every other process in the container is killed
+   * and the nonce and exit code of the script are written to the container's output, which we are
+   * attached to (see {@link SessionOutputListener}). The container is replaced when an execution
+   * asks for a different container, or when an execution is killed or leaves the container in a
+   * state which would affect the next one.
+   *
+   * <p>The timeout and disk limit of each execution are enforced separately. The memory limit is
+   * that of the container, which is the largest of the executions sharing it.
+   */
+  private class DockerSession implements ContainerSession {
+
+    private ExecutionConfig containerConfig;
+    private String containerId;
+    private CompletableFuture<ContainerInfo> stopped;
+    private File controlDir;
+    private RandomAccessFile startFifo;
+    private SessionOutputListener output;
+    private Future<Session> attachSession;
+    private int scriptCounter;
+
+    @Override
+    public ContainerExecResponse execute(
+        ExecutionConfig executionConfig,
+        ExecutionConfig containerConfig,
+        CancellationToken cancellationToken)
+        throws ContainerExecutionException, ApiUnavailableException {
+      DockerApi docker = getDockerApi();
+      try {
+        if (containerId != null
+            && (!containerConfig.equals(this.containerConfig) || stopped.isDone())) {
+          close();
+        }
+        if (containerId == null) {
+          start(docker, containerConfig);
+        }
+        return exec(docker, executionConfig, cancellationToken);
+      } catch (IOException | RuntimeException e) {
+        LOG.error("Error executing in session container", e);
+        close();
+        throw new ContainerExecutionException(
+            String.format(
+                "An error (%s) occurred when executing container: %s",
+                e.getClass().getName(), e.getMessage()));
+      }
+    }
+
+    private void start(DockerApi docker, ExecutionConfig containerConfig) throws IOException {
+      String containerName = nextContainerName();
+      File controlDir = new File(config.getTempRoot(), containerName);
+      FileUtil.mkdirIfNotExists(controlDir);
+      File fifo = new File(controlDir, "start");
+      WarmContainerPool.makeFifo(fifo);
+      String control = getInternalMountPath() + "-session";
+      ExecutionConfig.Builder builder =
+          ExecutionConfig.builder()
+              .setImageName(containerConfig.imageName())
+              .setContainerRestrictions(containerConfig.containerRestrictions())
+              .setLocalUserId(containerConfig.localUserId())
+              .addPathSpecification(PathSpecification.create(controlDir, control, false));
+      for (PathSpecification pathSpecification : containerConfig.pathSpecification()) {
+        builder.addPathSpecification(pathSpecification);
+      }
+      builder
+          .addCommand("sh")
+          .addCommand("-c")
+          .addCommand(
+              String.format(
+                  "exec 3< %1$s/start; n=1; while read nonce <&3; do "
+                      + "sh %1$s/run.$n < /dev/null 3<&- 2>&1; c=$?; "
+                      + "kill -KILL -1 2>/dev/null; "
+                      + "printf '\\n%%s %%s\\n' \"$nonce\" \"$c\"; "
+                      + "n=$((n+1)); done",
+                  control));
+
+      LOG.debug("Creating session container {}", containerName);
+      this.controlDir = controlDir;
+      // Keep the FIFO open so that the container never sees it close between scripts
+      this.startFifo = new RandomAccessFile(fifo, "rw");
+      this.output = new SessionOutputListener(MAX_SESSION_OUTPUT_CHARS);
+      String id =
+          docker.createContainer(containerName, toContainerConfig(builder.build())).getId();
+      this.containerId = id;
+      this.containerConfig = containerConfig;
+      this.scriptCounter = 0;
+      runningContainers.add(id);
+      docker.startContainer(id);
+      this.attachSession = docker.attach(id, true, true, true, true, true, output);
+      this.stopped = watcher.watch(id);
+    }
+
+    private ContainerExecResponse exec(
+        DockerApi docker, ExecutionConfig executionConfig, CancellationToken cancellationToken)
+        throws IOException {
+      final String containerId = this.containerId;
+      int script = ++scriptCounter;
+
+      // The output is collected separately, this listener just wakes us up if we kill the
+      // container
+      AttachListener killListener = new AttachListener(() -> watcher.poke(containerId));
+      long startTime = System.currentTimeMillis();
+      TimeoutWheel.Timeout timeoutKiller =
+          scheduleTimeoutKiller(
+              executionConfig.containerRestrictions().getTimeoutSec() * timeoutMultiplier.get(),
+              containerId,
+              killListener);
+      DiskUsageMonitor.Watch diskUsage =
+          diskUsageMonitor.watch(
+              containerId,
+              getDiskWriteLimitBytes(executionConfig),
+              diskUsageMonitor.getSampledBytes(containerId),
+              killListener);
+      try {
+        cancellationToken.setOnCancel(() -> killCancelledContainer(containerId, killListener));
+        String nonce = UUID.randomUUID().toString();
+        output.expect(nonce);
+        WarmContainerPool.writeScript(
+            new File(controlDir, "run." + script), executionConfig.command());
+        startFifo.write((nonce + "\n").getBytes(StandardCharsets.UTF_8));
+
+        // Wait for the script to finish or the container to be killed or stop
+        while (output.getResult() == null && !stopped.isDone()) {
+          if (killListener.waitForClose(50)) {
+            break;
+          }
+        }
+
+        timeoutKiller.cancel();
+        SessionOutputListener.Result result = output.getResult();
+        Status status = Status.FAILED_UNKNOWN;
+        if (result != null) {
+          status = result.getExitCode() == 0 ? Status.COMPLETED : Status.FAILED_EXITCODE;
+        }
+        if (status != Status.COMPLETED) {
+          ContainerInfo containerInfo = docker.inspectContainer(containerId, false);
+          if (containerInfo.getState().getOomKilled()) {
+            status = Status.FAILED_OOM;
+          }
+        }
+        if (timeoutKiller.hasFired()) {
+          status = Status.FAILED_TIMEOUT;
+        }
+        if (diskUsage.isKilled()
+            || (status == Status.FAILED_EXITCODE && diskUsageMonitor.isQuotaFilled(diskUsage))) {
+          status = Status.FAILED_DISK;
+        }
+        if (cancellationToken.isCancelled()) {
+          status = Status.FAILED_CANCELLED;
+        }
+
+        String response = output.getOutput();
+        LOG.debug("Session container response: {}", response);
+        if (status != Status.COMPLETED && status != Status.FAILED_EXITCODE) {
+          // The container has been killed or could affect the next execution
+          close();
+        }
+        return ContainerExecResponse.create(
+            status, response, System.currentTimeMillis() - startTime);
+      } finally {
+        cancellationToken.clearOnCancel();
+        diskUsageMonitor.unwatch(diskUsage);
+      }
     }
+
+    @Override
+    public void close() {
+      if (containerId == null) {
+        return;
+      }
+      watcher.unwatch(containerId);
+      diskUsageMonitor.forget(containerId);
+      runningContainers.remove(containerId);
+      if (attachSession != null) {
+        attachSession.cancel(true);
+      }
+      reaper.reap(containerId);
+      try {
+        startFifo.close();
+      } catch (IOException e) {
+        LOG.warn("Failed to close {}", startFifo, e);
+      }
+      try {
+        FileUtil.deleteRecursive(controlDir);
+      } catch (IOException e) {
+        LOG.error("Failed to delete control directory {}", controlDir, e);
+      }
+      containerId = null;
+      stopped = null;
+      controlDir = null;
+      startFifo = null;
+      output = null;
+      attachSession = null;
+      containerConfig = null;
+    }
+  }
+
+  /** Convert to the docker container config, adding a disk quota if they are enabled. */
+  ContainerConfig toContainerConfig(ExecutionConfig executionConfig) {
+    return executionConfig.toContainerConfig(
+        config.isDiskQuota() ? getDiskWriteLimitBytes(executionConfig) : 0);
+  }
+
+  private static long getDiskWriteLimitBytes(ExecutionConfig executionConfig) {
+    return executionConfig.containerRestrictions().getDiskWriteLimitMegabytes() * 1024L * 1024L;
   }
 
-  private ScheduledFuture<Boolean> scheduleTimeoutKiller(
+  String nextContainerName() {
+    return config.getContainerPrefix()
+        + containerNameToken
+        + containerNameCounter.incrementAndGet();
+  }
+
+  private TimeoutWheel.Timeout scheduleTimeoutKiller(
       long timeoutSec, String containerId, AttachListener attachListener) {
     if (timeoutSec <= 0) {
-      return new EmptyScheduledFuture<>();
+      return TimeoutWheel.NO_TIMEOUT;
     }
-    return scheduler.schedule(
+    return timeouts.schedule(
+        timeoutSec,
+        TimeUnit.SECONDS,
         () -> {
           try {
             DockerUtil.killContainer(containerId, getDockerApi());
@@ -263,20 +537,41 @@ public class DockerContainerImpl implements ContainerBackend {
             LOG.error("Caught exception killing container", e);
             return false;
           }
-        },
-        timeoutSec,
-        TimeUnit.SECONDS);
+        });
   }
 
-  synchronized DockerApi getDockerApi() throws ApiUnavailableException {
-    if (dockerApi == null) {
-      dockerApi = initializeDockerApi();
+  private void killCancelledContainer(String containerId, AttachListener attachListener) {
+    try {
+      DockerUtil.killContainer(containerId, getDockerApi());
+    } catch (ApiUnavailableException | RuntimeException e) {
+      LOG.error("Caught exception killing cancelled container", e);
     }
-    return dockerApi;
+    attachListener.notifyClose();
+  }
+
+  DockerApi getDockerApi() throws ApiUnavailableException {
+    // Only initialisation is synchronized, the client itself is shared by all threads
+    DockerApi docker = dockerApi;
+    if (docker == null) {
+      synchronized (this) {
+        if (dockerApi == null) {
+          dockerApi = initializeDockerApi();
+        }
+        docker = dockerApi;
+      }
+    }
+    return docker;
   }
 
   private synchronized DockerApi initializeDockerApi() throws ApiUnavailableException {
-    DockerApi docker = new Docker("localhost", 2375, 1).api(new ApiPerformanceListener());
+    LOG.info(
+        "Connecting to docker at {}:{} with up to {} connections",
+        config.getDockerHost(),
+        config.getDockerPort(),
+        config.getDockerConnections());
+    DockerApi docker =
+        new Docker(config.getDockerHost(), config.getDockerPort(), config.getDockerConnections())
+            .api(new ApiPerformanceListener());
     if (LOG.isInfoEnabled()) {
       Version v = docker.getVersion();
       LOG.info("Connected to docker, API version: {}", v.getApiVersion());
@@ -287,37 +582,22 @@ public class DockerContainerImpl implements ContainerBackend {
           "WARNING: swap limits are disabled for this kernel. Add \"cgroup_enable=memory "
               + "swapaccount=1\" to your kernel command line");
     }
-    deleteOldContainers(config.getContainerPrefix(), docker);
+    reaper.reapOldContainers(config.getContainerPrefix(), docker);
     apiStatus.set(ApiStatus.OK);
     return docker;
   }
 
-  private static void deleteOldContainers(String containerPrefix, DockerApi docker)
-      throws ApiUnavailableException {
-    for (Container i : docker.listContainers(true, null, null, null, null)) {
-      Optional<String> matchedName = getPotteryTransientName(containerPrefix, i);
-      if (matchedName.isPresent()) {
-        LOG.warn("Deleting old container named {}", matchedName.get());
-        try {
-          docker.deleteContainer(i.getId(), true, true);
-        } catch (RuntimeException e) {
-          LOG.error("Error deleting old container", e);
-        }
-      }
-    }
-  }
-
-  private static Optional<String> getPotteryTransientName(String containerPrefix, Container i) {
-    final String prefix = "/" + containerPrefix;
-    return Arrays.stream(i.getNames()).filter(name -> name.startsWith(prefix)).findAny();
+  private static long smooth(long smoothed, long latest) {
+    return (latest >> 3) + smoothed - (smoothed >> 3);
   }
 
   private class ApiPerformanceListener implements ApiListener {
     @Override
     public void callCompleted(boolean apiAvailable, long timeTaken, String methodName) {
-      long callTime = smoothedCallTime.get();
-      callTime = (timeTaken >> 3) + callTime - (callTime >> 3);
-      smoothedCallTime.set(callTime);
+      long callTime = smoothedCallTime.updateAndGet(t -> smooth(t, timeTaken));
+      smoothedMethodCallTimes
+          .computeIfAbsent(methodName, m -> new AtomicLong(timeTaken))
+          .updateAndGet(t -> smooth(t, timeTaken));
       if (!apiAvailable) {
         apiStatus.set(ApiStatus.FAILED);
       } else if (callTime > 1000) {
@@ -1,61 +0,0 @@
-/*
- * pottery-backend - Backend API for testing programming exercises
- * Copyright © 2015 Andrew Rice (acr31@cam.ac.uk)
- *
- * This program is free software: you can redistribute it and/or modify
- * it under the terms of the GNU Affero General Public License as published by
- * the Free Software Foundation, either version 3 of the License, or
- * (at your option) any later version.
- *
- * This program is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU Affero General Public License for more details.
- *
- * You should have received a copy of the GNU Affero General Public License
- * along with this program.  If not, see <http://www.gnu.org/licenses/>.
- */
-
-package uk.ac.cam.cl.dtg.teaching.pottery.containers;
-
-import java.util.concurrent.Delayed;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
-
-public class EmptyScheduledFuture<V> implements ScheduledFuture<V> {
-
-  @Override
-  public long getDelay(TimeUnit unit) {
-    throw new UnsupportedOperationException();
-  }
-
-  @Override
-  public int compareTo(Delayed o) {
-    throw new UnsupportedOperationException();
-  }
-
-  @Override
-  public boolean cancel(boolean mayInterruptIfRunning) {
-    throw new UnsupportedOperationException();
-  }
-
-  @Override
-  public boolean isCancelled() {
-    return false;
-  }
-
-  @Override
-  public boolean isDone() {
-    return true;
-  }
-
-  @Override
-  public V get() {
-    throw new UnsupportedOperationException();
-  }
-
-  @Override
-  public V get(long timeout, TimeUnit unit) {
-    throw new UnsupportedOperationException();
-  }
-}
@@ -41,11 +41,23 @@ abstract class ExecutionConfig {
 
   abstract ContainerRestrictions containerRestrictions();
 
+  /**
+   * True if nothing else uses the read-write paths of this execution while it runs, so the backend
+   * may move their contents somewhere else and back again. This lets the backend run the execution
+   * in a warm container.
+   */
+  abstract boolean warmable();
+
   static Builder builder() {
-    return new AutoValue_ExecutionConfig.Builder();
+    return new AutoValue_ExecutionConfig.Builder().setWarmable(false);
   }
 
-  ContainerConfig toContainerConfig() {
+  /**
+   * Convert to the docker container config.
+   *
+   * @param diskQuotaBytes limit on the size of the container's writable layer, zero for no limit
+   */
+  ContainerConfig toContainerConfig(long diskQuotaBytes) {
     ContainerConfig config = new ContainerConfig();
     config.setOpenStdin(true);
     config.setEnv(
@@ -55,7 +67,8 @@ abstract class ExecutionConfig {
     config.setCmd(command());
     config.setImage(imageName());
     config.setNetworkDisabled(containerRestrictions().isNetworkDisabled());
-    ContainerHostConfig hc = new ContainerHostConfig();
+    ContainerHostConfig hc =
+        diskQuotaBytes > 0 ? new QuotaHostConfig(diskQuotaBytes) : new ContainerHostConfig();
     hc.setMemory(containerRestrictions().getRamLimitMegabytes() * 1024 * 1024);
     hc.setMemorySwap(hc.getMemory()); // disable swap
     hc.setBinds(
@@ -97,6 +110,8 @@ abstract class ExecutionConfig {
 
     abstract Builder setLocalUserId(int localUserId);
 
+    abstract Builder setWarmable(boolean warmable);
+
     abstract ExecutionConfig build();
   }
 }
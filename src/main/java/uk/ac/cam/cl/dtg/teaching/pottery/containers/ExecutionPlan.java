@@ -0,0 +1,179 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.containers;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.InvalidTaskSpecificationException;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.ContainerRestrictions;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.Execution;
+
+/**
+ * An {@link Execution} whose command has been parsed ahead of time. The command is split into
+ * arguments, and each argument into literal text and the names of the bindings to substitute into
+ * it, so running the execution only needs to fill in the values of the bindings.
+ */
+public final class ExecutionPlan {
+
+  private static final Pattern BINDING_REGEX = Pattern.compile("@([a-zA-Z_][-a-zA-Z_0-9]*)@");
+
+  private static final Pattern COMMAND_TOKENIZER =
+      Pattern.compile("([^\"' ]|\"([^\"\\\\]|\\\\.)*\"|'([^'\\\\]|\\\\.)*')+");
+
+  private final String image;
+  private final ContainerRestrictions restrictions;
+
+  /**
+   * The arguments of the command. Each one alternates literal text and binding names, starting and
+   * ending with literal text.
+   */
+  private final ImmutableList<ImmutableList<String>> arguments;
+
+  /** The bindings used by the command in the order they first appear. */
+  private final ImmutableSet<String> bindingNames;
+
+  private ExecutionPlan(
+      String image,
+      ContainerRestrictions restrictions,
+      ImmutableList<ImmutableList<String>> arguments,
+      ImmutableSet<String> bindingNames) {
+    this.image = image;
+    this.restrictions = restrictions;
+    this.arguments = arguments;
+    this.bindingNames = bindingNames;
+  }
+
+  /**
+   * Parse the command of an execution.
+   *
+   * @param execution the execution to parse
+   * @param knownBindings the names of the bindings which will be available when it is run
+   * @throws InvalidTaskSpecificationException if the command uses a binding which isn't known
+   */
+  static ExecutionPlan compile(Execution execution, Set<String> knownBindings)
+      throws InvalidTaskSpecificationException {
+    String program = execution.getProgram();
+    Set<String> names = new LinkedHashSet<>();
+    ImmutableList.Builder<ImmutableList<String>> arguments = ImmutableList.builder();
+    Matcher matcher = COMMAND_TOKENIZER.matcher(program);
+    while (matcher.find()) {
+      arguments.add(parseArgument(matcher.group(), names));
+    }
+    for (String name : names) {
+      if (!knownBindings.contains(name)) {
+        throw new InvalidTaskSpecificationException(
+            "Couldn't find a binding called " + name + " for command " + program);
+      }
+    }
+    return new ExecutionPlan(
+        execution.getImage(),
+        execution.getRestrictions(),
+        arguments.build(),
+        ImmutableSet.copyOf(names));
+  }
+
+  private static ImmutableList<String> parseArgument(String argument, Set<String> names) {
+    ImmutableList.Builder<String> segments = ImmutableList.builder();
+    Matcher matcher = BINDING_REGEX.matcher(argument);
+    int start = 0;
+    while (matcher.find()) {
+      String name = matcher.group(1);
+      segments.add(argument.substring(start, matcher.start()));
+      segments.add(name);
+      names.add(name);
+      start = matcher.end();
+    }
+    segments.add(argument.substring(start));
+    return segments.build();
+  }
+
+  /**
+   * A copy of this plan with extra arguments added to the end of the command. Each of the given
+   * strings becomes exactly one argument, but may still refer to bindings.
+   */
+  ExecutionPlan withArguments(List<String> extraArguments) {
+    Set<String> names = new LinkedHashSet<>(bindingNames);
+    ImmutableList.Builder<ImmutableList<String>> newArguments =
+        ImmutableList.<ImmutableList<String>>builder().addAll(arguments);
+    for (String argument : extraArguments) {
+      newArguments.add(parseArgument(argument, names));
+    }
+    return new ExecutionPlan(
+        image, restrictions, newArguments.build(), ImmutableSet.copyOf(names));
+  }
+
+  String getImage() {
+    return image;
+  }
+
+  ContainerRestrictions getRestrictions() {
+    return restrictions;
+  }
+
+  /** The names of the bindings used by the command. */
+  ImmutableSet<String> getBindingNames() {
+    return bindingNames;
+  }
+
+  /**
+   * Build the command by substituting values for the bindings.
+   *
+   * @param values the value of each binding named in {@link #getBindingNames()}
+   */
+  ImmutableList<String> getCommand(Map<String, String> values) {
+    ImmutableList.Builder<String> command = ImmutableList.builder();
+    for (ImmutableList<String> argument : arguments) {
+      if (argument.size() == 1) {
+        command.add(argument.get(0));
+        continue;
+      }
+      StringBuilder result = new StringBuilder();
+      for (int i = 0; i < argument.size(); i++) {
+        result.append(i % 2 == 0 ? argument.get(i) : values.get(argument.get(i)));
+      }
+      command.add(result.toString());
+    }
+    return command.build();
+  }
+
+  /** The command with the bindings written as they were in the task specification. */
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder();
+    for (ImmutableList<String> argument : arguments) {
+      if (result.length() > 0) {
+        result.append(' ');
+      }
+      for (int i = 0; i < argument.size(); i++) {
+        if (i % 2 == 0) {
+          result.append(argument.get(i));
+        } else {
+          result.append('@').append(argument.get(i)).append('@');
+        }
+      }
+    }
+    return result.toString();
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.containers;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.InvalidTaskSpecificationException;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.Execution;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.Step;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.TaskInfo;
+
+/**
+ * The executions of a task compiled into {@link ExecutionPlan}s. This is done once when a task copy
+ * is loaded so that a task which refers to a binding that doesn't exist is rejected when it is
+ * registered rather than when a submission is tested.
+ */
+public final class ExecutionPlans {
+
+  private static final String DEFAULT_EXECUTION = "default";
+
+  private final ImmutableList<ExecutionPlan> compilation;
+  private final ImmutableList<StepPlans> steps;
+  private final ImmutableMap<String, ExecutionPlan> output;
+
+  private ExecutionPlans(
+      ImmutableList<ExecutionPlan> compilation,
+      ImmutableList<StepPlans> steps,
+      ImmutableMap<String, ExecutionPlan> output) {
+    this.compilation = compilation;
+    this.steps = steps;
+    this.output = output;
+  }
+
+  /**
+   * Compile all the executions in a task.
+   *
+   * @throws InvalidTaskSpecificationException if an execution refers to a binding which won't be
+   *     available to it. Steps may only refer to the results of steps before them.
+   */
+  public static ExecutionPlans compile(TaskInfo taskInfo)
+      throws InvalidTaskSpecificationException {
+    ImmutableList.Builder<ExecutionPlan> compilation = ImmutableList.builder();
+    for (Execution execution : taskInfo.getTaskCompilation()) {
+      compilation.add(compile(execution, ContainerManager.COMPILATION_BINDINGS, "compilation"));
+    }
+
+    Set<String> stepBindings = new HashSet<>(ContainerManager.STEP_BINDINGS);
+    ImmutableList.Builder<StepPlans> steps = ImmutableList.builder();
+    for (Step step : taskInfo.getSteps()) {
+      steps.add(
+          new StepPlans(
+              step.getName(), compileAll(step.getExecutionMap(), stepBindings, step.getName())));
+      stepBindings.add(step.getName());
+    }
+
+    Set<String> outputBindings = new HashSet<>(ContainerManager.OUTPUT_BINDINGS);
+    for (Step step : taskInfo.getSteps()) {
+      outputBindings.add(step.getName());
+    }
+    return new ExecutionPlans(
+        compilation.build(),
+        steps.build(),
+        compileAll(taskInfo.getOutput(), outputBindings, "output"));
+  }
+
+  private static ImmutableMap<String, ExecutionPlan> compileAll(
+      Map<String, Execution> executions, Set<String> knownBindings, String description)
+      throws InvalidTaskSpecificationException {
+    ImmutableMap.Builder<String, ExecutionPlan> result = ImmutableMap.builder();
+    for (Map.Entry<String, Execution> entry : executions.entrySet()) {
+      result.put(entry.getKey(), compile(entry.getValue(), knownBindings, description));
+    }
+    return result.build();
+  }
+
+  private static ExecutionPlan compile(
+      Execution execution, Set<String> knownBindings, String description)
+      throws InvalidTaskSpecificationException {
+    try {
+      return ExecutionPlan.compile(execution, knownBindings);
+    } catch (InvalidTaskSpecificationException e) {
+      throw new InvalidTaskSpecificationException(
+          "Invalid command in " + description + ": " + e.getMessage(), e);
+    }
+  }
+
+  /** The plans for compiling the tests of the task, in the order they should be run. */
+  public ImmutableList<ExecutionPlan> getCompilation() {
+    return compilation;
+  }
+
+  /** The steps which have an execution for this variant, in the order they should be run. */
+  ImmutableList<StepPlan> getSteps(String variant) {
+    ImmutableList.Builder<StepPlan> result = ImmutableList.builder();
+    for (StepPlans step : steps) {
+      ExecutionPlan plan = getPlan(variant, step.plans);
+      if (plan != null) {
+        result.add(new StepPlan(step.name, plan));
+      }
+    }
+    return result.build();
+  }
+
+  /** The output execution for this variant, or null if there isn't one. */
+  @Nullable
+  ExecutionPlan getOutput(String variant) {
+    return getPlan(variant, output);
+  }
+
+  @Nullable
+  private static ExecutionPlan getPlan(String variant, Map<String, ExecutionPlan> plans) {
+    if (plans.containsKey(variant)) {
+      return plans.get(variant);
+    } else {
+      return plans.get(DEFAULT_EXECUTION);
+    }
+  }
+
+  /** The plans for one step keyed by variant. */
+  private static class StepPlans {
+    private final String name;
+    private final ImmutableMap<String, ExecutionPlan> plans;
+
+    StepPlans(String name, ImmutableMap<String, ExecutionPlan> plans) {
+      this.name = name;
+      this.plans = plans;
+    }
+  }
+
+  /** The plan for one step in a particular variant. */
+  static class StepPlan {
+    private final String name;
+    private final ExecutionPlan plan;
+
+    StepPlan(String name, ExecutionPlan plan) {
+      this.name = name;
+      this.plan = plan;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    ExecutionPlan getPlan() {
+      return plan;
+    }
+  }
+}
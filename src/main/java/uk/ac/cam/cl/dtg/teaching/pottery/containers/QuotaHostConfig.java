@@ -0,0 +1,41 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.containers;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableMap;
+import uk.ac.cam.cl.dtg.teaching.docker.model.ContainerHostConfig;
+
+/**
+ * Host config which limits the size of the container's writable layer. The docker client's model
+ * doesn't have the StorageOpt field so we add it here.
+ */
+class QuotaHostConfig extends ContainerHostConfig {
+
+  private final ImmutableMap<String, String> storageOpt;
+
+  QuotaHostConfig(long diskQuotaBytes) {
+    this.storageOpt = ImmutableMap.of("size", String.valueOf(diskQuotaBytes));
+  }
+
+  @JsonProperty("StorageOpt")
+  public ImmutableMap<String, String> getStorageOpt() {
+    return storageOpt;
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.containers;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+
+/**
+ * Collects the output of a session container, which runs one script after another. After each
+ * script the container writes a line holding the script's nonce and exit code, which marks the end
+ * of that script's output. The nonce is only known to the container's command, so a script can't
+ * end its own output early by printing a marker.
+ *
+ * <p>Only the first maxChars of the output of each script are kept.
+ */
+class SessionOutputListener implements WebSocketListener {
+
+  /** The output and exit code of a script. */
+  static class Result {
+    private final String output;
+    private final int exitCode;
+
+    private Result(String output, int exitCode) {
+      this.output = output;
+      this.exitCode = exitCode;
+    }
+
+    String getOutput() {
+      return output;
+    }
+
+    int getExitCode() {
+      return exitCode;
+    }
+  }
+
+  // Room to keep at the end of the output for a marker which is still arriving
+  private static final int MARKER_ROOM = 256;
+
+  private final int maxChars;
+  private final StringBuilder output = new StringBuilder();
+  private boolean truncated = false;
+  private String marker;
+  private int markerStart = -1;
+  private Result result;
+
+  SessionOutputListener(int maxChars) {
+    this.maxChars = maxChars;
+  }
+
+  /** Start collecting the output of the script with this nonce, discarding anything before. */
+  synchronized void expect(String nonce) {
+    output.setLength(0);
+    truncated = false;
+    marker = "\n" + nonce + " ";
+    markerStart = -1;
+    result = null;
+  }
+
+  /** The result of the expected script, or null if it hasn't finished. */
+  synchronized Result getResult() {
+    return result;
+  }
+
+  /** The output collected so far. */
+  synchronized String getOutput() {
+    return result != null ? result.output : withTruncationNote(output.toString());
+  }
+
+  @Override
+  public void onWebSocketClose(int statusCode, String reason) {}
+
+  @Override
+  public void onWebSocketConnect(Session session) {}
+
+  @Override
+  public void onWebSocketError(Throwable cause) {}
+
+  @Override
+  public void onWebSocketBinary(byte[] payload, int offset, int len) {
+    append(new String(payload, offset, len));
+  }
+
+  @Override
+  public void onWebSocketText(String message) {
+    append(message);
+  }
+
+  private synchronized void append(String text) {
+    if (result != null) {
+      return;
+    }
+    int from = marker != null ? Math.max(0, output.length() - marker.length()) : 0;
+    output.append(text);
+    if (marker != null) {
+      if (markerStart < 0) {
+        markerStart = output.indexOf(marker, from);
+      }
+      if (markerStart >= 0) {
+        int end = output.indexOf("\n", markerStart + marker.length());
+        if (end >= 0) {
+          int exitCode;
+          try {
+            exitCode =
+                Integer.parseInt(output.substring(markerStart + marker.length(), end).trim());
+          } catch (NumberFormatException e) {
+            exitCode = -1;
+          }
+          result = new Result(withTruncationNote(output.substring(0, markerStart)), exitCode);
+        }
+        return;
+      }
+    }
+    if (output.length() > maxChars + MARKER_ROOM) {
+      output.delete(maxChars, output.length() - MARKER_ROOM);
+      truncated = true;
+    }
+  }
+
+  private String withTruncationNote(String text) {
+    if (!truncated) {
+      return text;
+    }
+    return text.substring(0, Math.min(maxChars, text.length()))
+        + "\n[output truncated after " + maxChars + " characters]\n";
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.containers;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed wheel timer for container deadlines.
+ *
+ * <p>One thread advances the wheel every TICK_MS and hands the timeouts which have expired to a
+ * pool of threads which run their actions. This means that a slow action, such as a kill which
+ * the docker daemon takes a while to answer, doesn't hold up any other deadline. Timeouts fire up
+ * to one tick late. The time between a deadline and its action finishing is its overshoot, which
+ * is kept as a smoothed average.
+ */
+class TimeoutWheel {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TimeoutWheel.class);
+
+  static final long TICK_MS = 100;
+
+  static final int WHEEL_SIZE = 512;
+
+  private static final int PENDING = 0;
+  private static final int CANCELLED = 1;
+  private static final int FIRED = 2;
+
+  /** A timeout which never fires. */
+  static final Timeout NO_TIMEOUT = new Timeout(0, () -> false);
+
+  static {
+    NO_TIMEOUT.cancel();
+  }
+
+  private final long tickMs;
+  private final int wheelSize;
+  private final List<List<Timeout>> wheel = new ArrayList<>();
+  private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+  private final ExecutorService actionPool;
+  private final Thread ticker;
+  private final long startTime;
+  private final AtomicLong smoothedOvershoot = new AtomicLong(0);
+
+  // Only used by the ticker thread
+  private long tick = 0;
+
+  /** A scheduled action. */
+  static class Timeout {
+    private final long deadline;
+    private final Callable<Boolean> action;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+    private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+    // Only used by the ticker thread
+    private long rounds;
+
+    private Timeout(long deadline, Callable<Boolean> action) {
+      this.deadline = deadline;
+      this.action = action;
+    }
+
+    /**
+     * Stop the action from running if it hasn't started yet.
+     *
+     * @return true if the action will now never run
+     */
+    boolean cancel() {
+      if (state.compareAndSet(PENDING, CANCELLED)) {
+        result.cancel(false);
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Whether the timeout fired and its action returned true. If the action is running then this
+     * waits for it to finish.
+     */
+    boolean hasFired() {
+      if (state.get() == PENDING) {
+        return false;
+      }
+      try {
+        return Uninterruptibles.getUninterruptibly(result);
+      } catch (ExecutionException | CancellationException e) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Create a wheel and start its thread.
+   *
+   * @param actionThreads the number of actions which can run at once
+   */
+  TimeoutWheel(int actionThreads) {
+    this(actionThreads, TICK_MS, WHEEL_SIZE);
+  }
+
+  /**
+   * Create a wheel with the given tick and number of slots and start its thread.
+   *
+   * @param actionThreads the number of actions which can run at once
+   * @param tickMs the time between the wheel advancing
+   * @param wheelSize the number of slots in the wheel
+   */
+  TimeoutWheel(int actionThreads, long tickMs, int wheelSize) {
+    this.tickMs = tickMs;
+    this.wheelSize = wheelSize;
+    for (int i = 0; i < wheelSize; i++) {
+      wheel.add(new ArrayList<>());
+    }
+    this.actionPool = Executors.newFixedThreadPool(actionThreads);
+    this.startTime = System.currentTimeMillis();
+    this.ticker = new Thread(this::run, "timeout-wheel");
+    this.ticker.setDaemon(true);
+    this.ticker.start();
+  }
+
+  /** Run the action once the delay has passed, unless the timeout is cancelled first. */
+  Timeout schedule(long delay, TimeUnit unit, Callable<Boolean> action) {
+    Timeout timeout = new Timeout(System.currentTimeMillis() + unit.toMillis(delay), action);
+    added.add(timeout);
+    return timeout;
+  }
+
+  /** Smoothed average of the time in milliseconds between a deadline and its action finishing. */
+  long getSmoothedOvershoot() {
+    return smoothedOvershoot.get();
+  }
+
+  /** Stop the wheel. Timeouts which haven't fired yet never will. */
+  void stop() {
+    ticker.interrupt();
+    actionPool.shutdownNow();
+  }
+
+  private void run() {
+    while (!Thread.currentThread().isInterrupted()) {
+      long sleep = startTime + (tick + 1) * tickMs - System.currentTimeMillis();
+      if (sleep > 0) {
+        try {
+          Thread.sleep(sleep);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+      tick++;
+      addTimeouts();
+      expireTimeouts();
+    }
+  }
+
+  private void addTimeouts() {
+    Timeout timeout;
+    while ((timeout = added.poll()) != null) {
+      if (timeout.state.get() != PENDING) {
+        continue;
+      }
+      // Round up so that a timeout never fires before its deadline
+      long deadlineTick = Math.max(tick, (timeout.deadline - startTime + tickMs - 1) / tickMs);
+      timeout.rounds = (deadlineTick - tick) / wheelSize;
+      wheel.get((int) (deadlineTick % wheelSize)).add(timeout);
+    }
+  }
+
+  private void expireTimeouts() {
+    Iterator<Timeout> bucket = wheel.get((int) (tick % wheelSize)).iterator();
+    while (bucket.hasNext()) {
+      Timeout timeout = bucket.next();
+      if (timeout.state.get() != PENDING) {
+        bucket.remove();
+      } else if (timeout.rounds > 0) {
+        timeout.rounds--;
+      } else {
+        bucket.remove();
+        if (timeout.state.compareAndSet(PENDING, FIRED)) {
+          fire(timeout);
+        }
+      }
+    }
+  }
+
+  private void fire(Timeout timeout) {
+    try {
+      actionPool.execute(
+          () -> {
+            try {
+              timeout.result.complete(timeout.action.call());
+            } catch (Exception e) {
+              LOG.error("Caught exception running timeout", e);
+              timeout.result.completeExceptionally(e);
+            }
+            recordOvershoot(System.currentTimeMillis() - timeout.deadline);
+          });
+    } catch (RejectedExecutionException e) {
+      timeout.result.cancel(false);
+    }
+  }
+
+  void recordOvershoot(long overshoot) {
+    smoothedOvershoot.updateAndGet(smoothed -> (overshoot >> 3) + smoothed - (smoothed >> 3));
+  }
+}
@@ -21,6 +21,7 @@ package uk.ac.cam.cl.dtg.teaching.pottery.containers;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
@@ -48,6 +49,16 @@ public class UncontainerImpl implements ContainerBackend {
     return 0;
   }
 
+  @Override
+  public ImmutableMap<String, Long> getSmoothedCallTimes() {
+    return ImmutableMap.of();
+  }
+
+  @Override
+  public long getSmoothedTimeoutOvershoot() {
+    return 0;
+  }
+
   @Override
   public String getVersion() {
     return "Uncontainer:1.0.0";
@@ -62,7 +73,8 @@ public class UncontainerImpl implements ContainerBackend {
   }
 
   @Override
-  public ContainerExecResponse executeContainer(ExecutionConfig executionConfig)
+  public ContainerExecResponse executeContainer(
+      ExecutionConfig executionConfig, CancellationToken cancellationToken)
       throws ApiUnavailableException {
     try {
       ImmutableList<String> commands =
@@ -90,6 +102,13 @@ public class UncontainerImpl implements ContainerBackend {
           "RAM_LIMIT_MEGABYTES",
           String.valueOf(executionConfig.containerRestrictions().getDiskWriteLimitMegabytes()));
       Process process = processBuilder.start();
+      cancellationToken.setOnCancel(
+          () -> {
+            process.destroyForcibly();
+            synchronized (this) {
+              this.notifyAll();
+            }
+          });
       ByteArrayOutputStream bos = new ByteArrayOutputStream();
       Thread copyThread =
           new Thread(
@@ -105,7 +124,7 @@ public class UncontainerImpl implements ContainerBackend {
       copyThread.join();
       String output = new String(bos.toByteArray());
       synchronized (this) {
-        while (block) {
+        while (block && !cancellationToken.isCancelled()) {
           blocked = true;
           this.notifyAll();
           this.wait();
@@ -113,6 +132,11 @@ public class UncontainerImpl implements ContainerBackend {
         blocked = false;
         this.notifyAll();
       }
+      cancellationToken.clearOnCancel();
+      if (cancellationToken.isCancelled()) {
+        return ContainerExecResponse.create(
+            ContainerExecResponse.Status.FAILED_CANCELLED, output, 0);
+      }
       return ContainerExecResponse.create(
           process.exitValue() == 0
               ? ContainerExecResponse.Status.COMPLETED
@@ -0,0 +1,575 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.containers;
+
+import static java.util.stream.Collectors.joining;
+
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.cam.cl.dtg.teaching.docker.ApiUnavailableException;
+import uk.ac.cam.cl.dtg.teaching.docker.DockerPatch;
+import uk.ac.cam.cl.dtg.teaching.docker.api.DockerApi;
+import uk.ac.cam.cl.dtg.teaching.docker.model.ContainerInfo;
+import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+
+/**
+ * Keeps containers started ahead of time so that an execution doesn't have to wait for docker to
+ * create and start one.
+ *
+ * <p>Docker fixes the bind mounts and the command of a container when it is created, so warm
+ * containers are kept per profile: the image, the restrictions and the layout of the mounts. Each
+ * mount of a warm container is bound to an entry in a scratch directory belonging to that
+ * container, and its command blocks reading a FIFO in a read-only control directory. An execution
+ * which claims the container fills in the scratch directory from its own paths (read-only
+ * directories are hard linked, read-only files are copied and read-write directories have their
+ * contents moved in), writes its command as a script in the control directory and then writes to
+ * the FIFO to start it. Once the container has been deleted the contents of the read-write
+ * directories are moved back. The scratch directory records where they came from so that they
+ * can also be moved back on startup if the server stopped whilst they were in use. Only
+ * executions which are {@link ExecutionConfig#warmable()} use the pool.
+ *
+ * <p>Profiles are learnt from the executions which ask for them and forgotten once they haven't
+ * been asked for in PROFILE_EXPIRY_MS. A background thread tops up each profile to the pool size
+ * and periodically checks that the idle containers are still running. A profile whose containers
+ * keep failing is not warmed again.
+ */
+class WarmContainerPool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(WarmContainerPool.class);
+
+  static final long PROFILE_EXPIRY_MS = TimeUnit.MINUTES.toMillis(10);
+
+  static final long HEALTH_CHECK_INTERVAL_SEC = 30;
+
+  static final int MAX_FAILURES = 3;
+
+  private static final String CONTROL_DIR = "control";
+
+  private static final String RUN_SCRIPT = "run";
+
+  private static final String START_FIFO = "start";
+
+  private static final String MOVED_MANIFEST = "moved";
+
+  private final DockerContainerImpl backend;
+  private final int size;
+  private final File poolRoot;
+  private final String controlMountPath;
+
+  private final ConcurrentMap<String, Profile> profiles = new ConcurrentHashMap<>();
+  private final Set<String> brokenProfiles = ConcurrentHashMap.newKeySet();
+  private final AtomicBoolean replenishPending = new AtomicBoolean(false);
+
+  // Null if the pool is disabled
+  @Nullable private final ScheduledExecutorService maintainer;
+
+  private static class WarmContainer {
+    private final String containerId;
+    private final File slotDir;
+
+    WarmContainer(String containerId, File slotDir) {
+      this.containerId = containerId;
+      this.slotDir = slotDir;
+    }
+  }
+
+  private static class Profile {
+    private final ExecutionConfig template;
+    private final Deque<WarmContainer> idle = new ArrayDeque<>();
+    private final AtomicInteger failures = new AtomicInteger(0);
+    private volatile long lastRequested;
+
+    Profile(ExecutionConfig template) {
+      this.template = template;
+    }
+
+    synchronized WarmContainer poll() {
+      return idle.pollFirst();
+    }
+
+    synchronized void add(WarmContainer container) {
+      idle.addLast(container);
+    }
+
+    synchronized boolean remove(WarmContainer container) {
+      return idle.remove(container);
+    }
+
+    synchronized int idleCount() {
+      return idle.size();
+    }
+
+    synchronized List<WarmContainer> idleContainers() {
+      return new ArrayList<>(idle);
+    }
+
+    synchronized List<WarmContainer> drain() {
+      List<WarmContainer> result = new ArrayList<>(idle);
+      idle.clear();
+      return result;
+    }
+  }
+
+  /** A warm container which has been claimed by an execution. */
+  static class Claim {
+    private final WarmContainer container;
+
+    // Scratch directory entries whose contents belong in the given host directory
+    private final Map<File, File> moved = new LinkedHashMap<>();
+
+    private Claim(WarmContainer container) {
+      this.container = container;
+    }
+
+    String getContainerId() {
+      return container.containerId;
+    }
+  }
+
+  /**
+   * Create a pool.
+   *
+   * @param backend the backend to create containers with
+   * @param size number of idle containers to keep for each profile, zero disables the pool
+   * @param poolRoot directory to put the scratch directories in, anything already there is moved
+   *     back or deleted
+   */
+  WarmContainerPool(DockerContainerImpl backend, int size, File poolRoot) throws IOException {
+    this.backend = backend;
+    this.size = size;
+    this.poolRoot = poolRoot;
+    this.controlMountPath = backend.getInternalMountPath() + "-" + CONTROL_DIR;
+    recover(poolRoot);
+    if (size > 0) {
+      FileUtil.mkdirIfNotExists(poolRoot);
+      this.maintainer = Executors.newSingleThreadScheduledExecutor();
+      this.maintainer.scheduleWithFixedDelay(
+          this::checkHealth,
+          HEALTH_CHECK_INTERVAL_SEC,
+          HEALTH_CHECK_INTERVAL_SEC,
+          TimeUnit.SECONDS);
+    } else {
+      this.maintainer = null;
+    }
+  }
+
+  /**
+   * Claim a warm container for this execution and start the execution's command in it.
+   *
+   * @return the claim, which must be passed to release once the container has been deleted, or
+   *     null if there is no warm container for this execution
+   */
+  @Nullable
+  Claim claim(ExecutionConfig executionConfig) {
+    if (maintainer == null || !executionConfig.warmable()) {
+      return null;
+    }
+    String key = profileKey(executionConfig);
+    if (key == null || brokenProfiles.contains(key)) {
+      return null;
+    }
+    Profile profile = profiles.computeIfAbsent(key, k -> new Profile(executionConfig));
+    profile.lastRequested = System.currentTimeMillis();
+    WarmContainer container = profile.poll();
+    requestReplenish();
+    if (container == null) {
+      return null;
+    }
+    if (!isRunning(container)) {
+      LOG.warn("Warm container {} has stopped, discarding it", container.containerId);
+      profile.failures.incrementAndGet();
+      destroy(container);
+      return null;
+    }
+
+    Claim claim = new Claim(container);
+    try {
+      populate(claim, executionConfig.pathSpecification());
+      File controlDir = new File(container.slotDir, CONTROL_DIR);
+      writeScript(new File(controlDir, RUN_SCRIPT), executionConfig.command());
+      start(new File(controlDir, START_FIFO));
+    } catch (IOException e) {
+      LOG.warn("Failed to prepare warm container {}", container.containerId, e);
+      profile.failures.incrementAndGet();
+      deleteContainer(container.containerId);
+      release(claim);
+      return null;
+    }
+    profile.failures.set(0);
+    return claim;
+  }
+
+  /**
+   * Move the contents of the read-write directories back to where they came from and delete the
+   * scratch directory. The scratch directory is left in place if anything can't be moved back.
+   */
+  void release(Claim claim) {
+    boolean restored = true;
+    for (Map.Entry<File, File> entry : claim.moved.entrySet()) {
+      try {
+        moveContents(entry.getKey(), entry.getValue());
+      } catch (IOException e) {
+        LOG.error("Failed to move {} back to {}", entry.getKey(), entry.getValue(), e);
+        restored = false;
+      }
+    }
+    if (restored) {
+      deleteSlot(claim.container.slotDir);
+    }
+  }
+
+  /** Stop warming containers and delete the idle ones. */
+  void stop() {
+    if (maintainer == null) {
+      return;
+    }
+    maintainer.shutdownNow();
+    for (Profile profile : profiles.values()) {
+      for (WarmContainer container : profile.drain()) {
+        destroy(container);
+      }
+    }
+  }
+
+  @Nullable
+  private static String profileKey(ExecutionConfig executionConfig) {
+    StringBuilder key =
+        new StringBuilder()
+            .append(executionConfig.imageName())
+            .append('|')
+            .append(executionConfig.localUserId())
+            .append('|')
+            .append(executionConfig.containerRestrictions().getRamLimitMegabytes())
+            .append('|')
+            .append(executionConfig.containerRestrictions().isNetworkDisabled())
+            .append('|')
+            .append(executionConfig.containerRestrictions().getDiskWriteLimitMegabytes());
+    for (PathSpecification spec : executionConfig.pathSpecification()) {
+      boolean directory = spec.host().isDirectory();
+      if (!directory && (spec.readWrite() || !spec.host().isFile())) {
+        // Only read-write directories can be moved in and out of the scratch directory
+        return null;
+      }
+      key.append('|')
+          .append(spec.container().getPath())
+          .append(directory ? "/" : "")
+          .append(spec.readWrite() ? ":rw" : ":ro");
+    }
+    return key.toString();
+  }
+
+  private void requestReplenish() {
+    if (replenishPending.compareAndSet(false, true)) {
+      try {
+        maintainer.execute(this::replenish);
+      } catch (RejectedExecutionException e) {
+        // We're shutting down
+      }
+    }
+  }
+
+  private void replenish() {
+    replenishPending.set(false);
+    long now = System.currentTimeMillis();
+    for (Map.Entry<String, Profile> entry : profiles.entrySet()) {
+      Profile profile = entry.getValue();
+      if (profile.failures.get() >= MAX_FAILURES) {
+        LOG.warn("Warm containers keep failing, no longer warming {}", entry.getKey());
+        brokenProfiles.add(entry.getKey());
+        removeProfile(entry.getKey(), profile);
+      } else if (now - profile.lastRequested > PROFILE_EXPIRY_MS) {
+        removeProfile(entry.getKey(), profile);
+      } else {
+        while (profile.idleCount() < size && !Thread.currentThread().isInterrupted()) {
+          try {
+            profile.add(create(profile.template));
+          } catch (ApiUnavailableException | IOException | RuntimeException e) {
+            LOG.warn("Failed to create warm container for {}", entry.getKey(), e);
+            profile.failures.incrementAndGet();
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  private void checkHealth() {
+    for (Profile profile : profiles.values()) {
+      for (WarmContainer container : profile.idleContainers()) {
+        if (!isRunning(container) && profile.remove(container)) {
+          LOG.warn("Warm container {} has stopped whilst idle", container.containerId);
+          profile.failures.incrementAndGet();
+          destroy(container);
+        }
+      }
+    }
+    replenish();
+  }
+
+  private void removeProfile(String key, Profile profile) {
+    profiles.remove(key, profile);
+    for (WarmContainer container : profile.drain()) {
+      destroy(container);
+    }
+  }
+
+  private WarmContainer create(ExecutionConfig template)
+      throws ApiUnavailableException, IOException {
+    String containerName = backend.nextContainerName();
+    File slotDir = new File(poolRoot, containerName);
+    File controlDir = new File(slotDir, CONTROL_DIR);
+    FileUtil.mkdirIfNotExists(controlDir);
+    makeFifo(new File(controlDir, START_FIFO));
+
+    ExecutionConfig.Builder builder =
+        ExecutionConfig.builder()
+            .setImageName(template.imageName())
+            .setContainerRestrictions(template.containerRestrictions())
+            .setLocalUserId(template.localUserId())
+            .addPathSpecification(PathSpecification.create(controlDir, controlMountPath, false));
+    ImmutableList<PathSpecification> specs = template.pathSpecification();
+    for (int i = 0; i < specs.size(); i++) {
+      PathSpecification spec = specs.get(i);
+      File entry = new File(slotDir, String.valueOf(i));
+      if (spec.host().isDirectory()) {
+        FileUtil.mkdirIfNotExists(entry);
+      } else if (!entry.createNewFile()) {
+        throw new IOException("Failed to create scratch file " + entry);
+      }
+      builder.addPathSpecification(
+          PathSpecification.create(entry, spec.container(), spec.readWrite()));
+    }
+    builder
+        .addCommand("sh")
+        .addCommand("-c")
+        .addCommand(
+            String.format(
+                "read line < %1$s/%2$s && exec sh %1$s/%3$s",
+                controlMountPath, START_FIFO, RUN_SCRIPT));
+
+    LOG.debug("Creating warm container {}", containerName);
+    DockerApi docker = backend.getDockerApi();
+    String containerId =
+        docker
+            .createContainer(containerName, backend.toContainerConfig(builder.build()))
+            .getId();
+    try {
+      docker.startContainer(containerId);
+    } catch (RuntimeException e) {
+      deleteContainer(containerId);
+      deleteSlot(slotDir);
+      throw e;
+    }
+    return new WarmContainer(containerId, slotDir);
+  }
+
+  private boolean isRunning(WarmContainer container) {
+    try {
+      ContainerInfo info = backend.getDockerApi().inspectContainer(container.containerId, false);
+      return info != null && info.getState().getRunning();
+    } catch (ApiUnavailableException | RuntimeException e) {
+      return false;
+    }
+  }
+
+  private void destroy(WarmContainer container) {
+    deleteContainer(container.containerId);
+    deleteSlot(container.slotDir);
+  }
+
+  private void deleteContainer(String containerId) {
+    try {
+      DockerPatch.deleteContainer(backend.getDockerApi(), containerId, true, true);
+    } catch (ApiUnavailableException | RuntimeException e) {
+      LOG.error("Failed to delete warm container {}", containerId, e);
+    }
+  }
+
+  private static void deleteSlot(File slotDir) {
+    try {
+      FileUtil.deleteRecursive(slotDir);
+    } catch (IOException e) {
+      LOG.error("Failed to delete scratch directory {}", slotDir, e);
+    }
+  }
+
+  private static void populate(Claim claim, ImmutableList<PathSpecification> specs)
+      throws IOException {
+    List<String> manifest = new ArrayList<>();
+    for (int i = 0; i < specs.size(); i++) {
+      if (specs.get(i).readWrite()) {
+        manifest.add(i + "\t" + specs.get(i).host().getPath());
+      }
+    }
+    if (!manifest.isEmpty()) {
+      Files.write(
+          new File(claim.container.slotDir, MOVED_MANIFEST).toPath(),
+          manifest,
+          StandardCharsets.UTF_8);
+    }
+    for (int i = 0; i < specs.size(); i++) {
+      PathSpecification spec = specs.get(i);
+      File entry = new File(claim.container.slotDir, String.valueOf(i));
+      if (spec.readWrite()) {
+        claim.moved.put(entry, spec.host());
+        moveContents(spec.host(), entry);
+      } else if (spec.host().isDirectory()) {
+        linkTree(spec.host().toPath(), entry.toPath());
+      } else {
+        // Write in place because the container has the existing file mounted
+        Files.write(entry.toPath(), Files.readAllBytes(spec.host().toPath()));
+      }
+    }
+  }
+
+  /**
+   * Move the contents of the read-write directories in scratch directories left behind by a
+   * previous run back to where they came from and delete the scratch directories. A scratch
+   * directory is left in place if anything in it can't be moved back.
+   */
+  static void recover(File poolRoot) {
+    File[] slotDirs = poolRoot.listFiles();
+    if (slotDirs == null) {
+      return;
+    }
+    for (File slotDir : slotDirs) {
+      boolean restored = true;
+      File manifest = new File(slotDir, MOVED_MANIFEST);
+      if (manifest.isFile()) {
+        try {
+          for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            int tab = line.indexOf('\t');
+            File entry = new File(slotDir, line.substring(0, tab));
+            File host = new File(line.substring(tab + 1));
+            if (entry.isDirectory() && host.isDirectory()) {
+              LOG.info("Moving {} back to {}", entry, host);
+              moveContents(entry, host);
+            }
+          }
+        } catch (IOException | IndexOutOfBoundsException e) {
+          LOG.error("Failed to move back the contents of {}", slotDir, e);
+          restored = false;
+        }
+      }
+      if (restored) {
+        deleteSlot(slotDir);
+      }
+    }
+  }
+
+  private static void moveContents(File from, File to) throws IOException {
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(from.toPath())) {
+      for (Path entry : entries) {
+        Files.move(entry, to.toPath().resolve(entry.getFileName()));
+      }
+    }
+  }
+
+  private static void linkTree(Path source, Path destination) throws IOException {
+    Files.walkFileTree(
+        source,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+              throws IOException {
+            if (!dir.equals(source)) {
+              Files.createDirectory(destination.resolve(source.relativize(dir)));
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            Path target = destination.resolve(source.relativize(file));
+            if (attrs.isSymbolicLink()) {
+              Files.copy(file, target, LinkOption.NOFOLLOW_LINKS);
+            } else {
+              Files.createLink(target, file);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  static void makeFifo(File fifo) throws IOException {
+    Process process = new ProcessBuilder("mkfifo", "-m", "0644", fifo.getPath()).start();
+    try {
+      if (process.waitFor() != 0) {
+        throw new IOException("Failed to create FIFO " + fifo);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted whilst creating FIFO " + fifo, e);
+    }
+  }
+
+  /**
+   * Start the container waiting on this FIFO. The FIFO is opened for reading as well as writing so
+   * that this doesn't block if the container has gone away.
+   */
+  static void start(File fifo) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(fifo, "rw")) {
+      file.write('\n');
+    }
+  }
+
+  /**
+   * Write a shell script which runs the command. The script is written somewhere else first and
+   * then moved into place, so a container waiting for it never sees part of it.
+   */
+  static void writeScript(File file, List<String> command) throws IOException {
+    String script =
+        "exec "
+            + command.stream().map(a -> "'" + a.replace("'", "'\\''") + "'").collect(joining(" "))
+            + "\n";
+    Path temp = new File(file.getParentFile(), file.getName() + ".tmp").toPath();
+    Files.write(temp, script.getBytes(StandardCharsets.UTF_8));
+    Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+  }
+}
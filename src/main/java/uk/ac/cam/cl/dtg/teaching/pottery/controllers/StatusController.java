@@ -19,8 +19,12 @@
 package uk.ac.cam.cl.dtg.teaching.pottery.controllers;
 
 import com.google.inject.Inject;
+import com.wordnik.swagger.annotations.ApiOperation;
 import java.util.Map;
 import java.util.TreeMap;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.cam.cl.dtg.teaching.docker.ApiUnavailableException;
@@ -47,15 +51,50 @@ public class StatusController implements uk.ac.cam.cl.dtg.teaching.pottery.api.S
   public Map<String, String> getStatus() {
     Map<String, String> response = new TreeMap<>();
     response.put("Worker.numThreads", String.valueOf(worker.getNumThreads()));
-    response.put("Worker.queueSize", String.valueOf(worker.getQueue().size()));
+    response.put("Worker.queueSize", String.valueOf(worker.getQueueDepth()));
     response.put("Worker.smoothedWaitTime", String.valueOf(worker.getSmoothedWaitTime()));
+    for (Map.Entry<String, String> e : worker.getStatistics().entrySet()) {
+      response.put("Worker." + e.getKey(), e.getValue());
+    }
     response.put(
         "ContainerManager.smoothedCallTime",
         String.valueOf(containerManager.getSmoothedCallTime()));
+    response.put(
+        "ContainerManager.smoothedTimeoutOvershoot",
+        String.valueOf(containerManager.getSmoothedTimeoutOvershoot()));
     response.put("ContainerManager.apiStatus", String.valueOf(containerManager.getApiStatus()));
     return response;
   }
 
+  /** Machine-readable metrics for monitoring, including per-job-type latency percentiles. */
+  @GET
+  @Path("/metrics")
+  @Produces("application/json")
+  @ApiOperation(
+    value = "Worker and container metrics including job latency percentiles",
+    response = Map.class
+  )
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> workerMetrics = new TreeMap<>();
+    workerMetrics.put("numThreads", worker.getNumThreads());
+    workerMetrics.put("queueDepth", worker.getQueueDepth());
+    workerMetrics.put("smoothedWaitTime", worker.getSmoothedWaitTime());
+    workerMetrics.put("jobs", worker.getJobMetrics());
+    Map<String, Object> containerMetrics = new TreeMap<>();
+    containerMetrics.put("smoothedCallTime", containerManager.getSmoothedCallTime());
+    containerMetrics.put("smoothedCallTimes", containerManager.getSmoothedCallTimes());
+    containerMetrics.put(
+        "smoothedTimeoutOvershoot", containerManager.getSmoothedTimeoutOvershoot());
+    containerMetrics.put("apiStatus", containerManager.getApiStatus());
+    containerMetrics.put("queueLength", containerManager.getContainerQueueLength());
+    containerMetrics.put(
+        "reservedMemoryMegabytes", containerManager.getReservedMemoryMegabytes());
+    Map<String, Object> response = new TreeMap<>();
+    response.put("worker", workerMetrics);
+    response.put("containerManager", containerMetrics);
+    return response;
+  }
+
   @Override
   public String checkDockerVersion() {
     try {
@@ -19,7 +19,15 @@
 package uk.ac.cam.cl.dtg.teaching.pottery.controllers;
 
 import com.google.inject.Inject;
+import com.wordnik.swagger.annotations.ApiOperation;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.ServiceUnavailableException;
 import javax.ws.rs.core.Response;
+import org.eclipse.jgit.lib.Constants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
@@ -32,6 +40,9 @@ import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.SubmissionStorageException;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.Submission;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.Repo;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.SharedSubmissionQueue;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.AdmissionControl;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.JobPriority;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
 
 public class SubmissionsController
@@ -45,21 +56,95 @@ public class SubmissionsController
 
   private RepoFactory repoFactory;
 
+  private AdmissionControl admissionControl;
+
+  private SharedSubmissionQueue sharedQueue;
+
   /** Create a new SubmissionController. */
   @Inject
-  public SubmissionsController(Worker worker, Database database, RepoFactory repoFactory) {
+  public SubmissionsController(
+      Worker worker,
+      Database database,
+      RepoFactory repoFactory,
+      AdmissionControl admissionControl,
+      SharedSubmissionQueue sharedQueue) {
     super();
     this.worker = worker;
     this.database = database;
     this.repoFactory = repoFactory;
+    this.admissionControl = admissionControl;
+    this.sharedQueue = sharedQueue;
   }
 
   @Override
   public String scheduleTest(String repoId, String tag)
       throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
           RepoNotFoundException {
-    Repo r = repoFactory.getInstance(repoId);
-    return r.scheduleSubmission(tag, worker, database);
+    return schedule(repoFactory.getInstance(repoId), tag, JobPriority.INTERACTIVE);
+  }
+
+  /** Schedule a test with an explicit priority rather than the default interactive one. */
+  @POST
+  @Path("/{repoId}/{tag}/priority/{priority}")
+  @Produces("application/json")
+  @ApiOperation(
+    value = "Schedule tests with the given priority (INTERACTIVE, BACKGROUND or MAINTENANCE)"
+  )
+  public String scheduleTestWithPriority(
+      @PathParam("repoId") String repoId,
+      @PathParam("tag") String tag,
+      @PathParam("priority") String priority)
+      throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
+          RepoNotFoundException {
+    JobPriority jobPriority;
+    try {
+      jobPriority = JobPriority.valueOf(priority.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Unknown priority " + priority, e);
+    }
+    return schedule(repoFactory.getInstance(repoId), tag, jobPriority);
+  }
+
+  private String schedule(Repo r, String tag, JobPriority priority)
+      throws RepoStorageException, RepoExpiredException, SubmissionStorageException {
+    // Resolve the head here so that admission control recognises it if it is already scheduled
+    String sha = Constants.HEAD.equals(tag) ? r.resolveHeadSha() : tag;
+    checkAdmission(r, sha);
+    if (sharedQueue.isEnabled()) {
+      return r.queueSubmission(sha, database, priority);
+    }
+    return r.scheduleSubmission(sha, worker, database, priority);
+  }
+
+  /**
+   * Turn away new submissions with 503 and a Retry-After estimate if the worker is overloaded. Tags
+   * which have already been scheduled are always let through since they add no work.
+   */
+  private void checkAdmission(Repo r, String tag) throws SubmissionStorageException {
+    long retryAfterSeconds = admissionControl.getRetryAfterSeconds();
+    if (retryAfterSeconds == 0) {
+      return;
+    }
+    try {
+      r.getSubmission(tag, database);
+    } catch (SubmissionNotFoundException e) {
+      LOG.info("Deferring submission {} for {}s, worker overloaded", tag, retryAfterSeconds);
+      throw new ServiceUnavailableException(retryAfterSeconds);
+    }
+  }
+
+  /**
+   * Cancel a submission which has not finished testing. Any container running for it is killed so
+   * that its capacity is available to other submissions straight away.
+   */
+  @POST
+  @Path("/{repoId}/{tag}/cancel")
+  @Produces("application/json")
+  @ApiOperation(value = "Cancel a queued or running test")
+  public String cancelSubmission(@PathParam("repoId") String repoId, @PathParam("tag") String tag)
+      throws SubmissionNotFoundException, SubmissionStorageException, RepoStorageException,
+          RepoNotFoundException {
+    return repoFactory.getInstance(repoId).cancelSubmission(tag, database);
   }
 
   @Override
@@ -0,0 +1,250 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.ResultSetHandler;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.JobPriority;
+
+/**
+ * Journal of submissions which have been scheduled for testing but have not finished yet. A row is
+ * added when a submission is scheduled, marked when the worker starts it and removed when the
+ * result is stored. Anything left in the table at startup was lost by a restart and needs to be
+ * scheduled again.
+ *
+ * <p>When several nodes share the database the table also serves as their work queue. A node
+ * claims a row by recording itself as the owner along with a lease expiry time, which it keeps
+ * extending while it is testing the submission. Rows whose lease has run out belonged to a node
+ * which has stopped, and can be claimed by another. A row can also be released without an owner but
+ * with a lease expiry in the future, which holds it back from being claimed until then.
+ */
+public class PendingSubmissions {
+
+  /** A submission recorded in the journal. */
+  public static class PendingSubmission {
+    private final String repoId;
+    private final String tag;
+    private final JobPriority priority;
+    private final boolean started;
+    private final Date dateScheduled;
+    private final boolean cancelled;
+
+    PendingSubmission(
+        String repoId,
+        String tag,
+        JobPriority priority,
+        boolean started,
+        Date dateScheduled,
+        boolean cancelled) {
+      this.repoId = repoId;
+      this.tag = tag;
+      this.priority = priority;
+      this.started = started;
+      this.dateScheduled = dateScheduled;
+      this.cancelled = cancelled;
+    }
+
+    public String getRepoId() {
+      return repoId;
+    }
+
+    public String getTag() {
+      return tag;
+    }
+
+    public JobPriority getPriority() {
+      return priority;
+    }
+
+    /** True if a worker had started testing this submission. */
+    public boolean isStarted() {
+      return started;
+    }
+
+    public Date getDateScheduled() {
+      return dateScheduled;
+    }
+
+    /** True if someone has asked for this submission to be cancelled. */
+    public boolean isCancelled() {
+      return cancelled;
+    }
+  }
+
+  private static PendingSubmission resultSetToPendingSubmission(ResultSet rs)
+      throws SQLException {
+    return new PendingSubmission(
+        rs.getString("repoid"),
+        rs.getString("tag"),
+        JobPriority.valueOf(rs.getString("priority")),
+        rs.getBoolean("started"),
+        new Date(rs.getTimestamp("datescheduled").getTime()),
+        rs.getBoolean("cancelled"));
+  }
+
+  private static final ResultSetHandler<List<PendingSubmission>> LIST_HANDLER =
+      rs -> {
+        List<PendingSubmission> result = new ArrayList<>();
+        while (rs.next()) {
+          result.add(resultSetToPendingSubmission(rs));
+        }
+        return result;
+      };
+
+  /** List all the submissions in the journal in the order they were scheduled. */
+  public static List<PendingSubmission> getAll(QueryRunner q) throws SQLException {
+    return q.query("select * from pendingsubmissions order by datescheduled", LIST_HANDLER);
+  }
+
+  /** Look up the journal entry for this submission, or return null if there isn't one. */
+  public static PendingSubmission get(String repoId, String tag, QueryRunner q)
+      throws SQLException {
+    return q.query(
+        "select * from pendingsubmissions where repoid=? and tag=?",
+        rs -> rs.next() ? resultSetToPendingSubmission(rs) : null,
+        repoId,
+        tag);
+  }
+
+  /** List the submissions claimed by this owner which have been cancelled. */
+  public static List<PendingSubmission> getCancelled(String owner, QueryRunner q)
+      throws SQLException {
+    return q.query(
+        "select * from pendingsubmissions where owner=? and cancelled=true", LIST_HANDLER, owner);
+  }
+
+  /**
+   * Claim up to limit submissions which are not held back by a lease (either because they have
+   * never been claimed or because their owner's lease has expired). Rows
+   * which another node is claiming at the same time are skipped rather than waited for. The claim
+   * takes effect when the transaction commits.
+   *
+   * @return the claimed submissions in the order they were scheduled
+   */
+  public static List<PendingSubmission> claim(
+      String owner, Date now, Date leaseExpiry, int limit, QueryRunner q) throws SQLException {
+    List<PendingSubmission> claimed =
+        q.query(
+            "select * from pendingsubmissions where leaseexpiry is null or leaseexpiry < ?"
+                + " order by datescheduled limit ? for update skip locked",
+            LIST_HANDLER,
+            new Timestamp(now.getTime()),
+            limit);
+    for (PendingSubmission p : claimed) {
+      q.update(
+          "update pendingsubmissions set owner=?, leaseexpiry=? where repoid=? and tag=?",
+          owner,
+          new Timestamp(leaseExpiry.getTime()),
+          p.getRepoId(),
+          p.getTag());
+    }
+    return claimed;
+  }
+
+  /**
+   * Extend the lease on all the submissions claimed by this owner.
+   *
+   * @return the number of submissions claimed by this owner
+   */
+  public static int renewLeases(String owner, Date leaseExpiry, QueryRunner q)
+      throws SQLException {
+    return q.update(
+        "update pendingsubmissions set leaseexpiry=? where owner=?",
+        new Timestamp(leaseExpiry.getTime()),
+        owner);
+  }
+
+  /**
+   * Give up the claim on this submission so that any node can pick it up once notBefore has
+   * passed.
+   */
+  public static void release(String repoId, String tag, Date notBefore, QueryRunner q)
+      throws SQLException {
+    q.update(
+        "update pendingsubmissions set owner=null, leaseexpiry=? where repoid=? and tag=?",
+        new Timestamp(notBefore.getTime()),
+        repoId,
+        tag);
+  }
+
+  /** Give up the claims on all submissions held by this owner. */
+  public static void releaseAll(String owner, QueryRunner q) throws SQLException {
+    q.update(
+        "update pendingsubmissions set owner=null, leaseexpiry=null where owner=?", owner);
+  }
+
+  /**
+   * Record that this submission has been scheduled. If it is already in the journal (because it is
+   * being recovered after a restart or was claimed from the shared queue) then its priority is
+   * updated rather than the entry duplicated. Whether it was started is left alone since it might
+   * still be running elsewhere.
+   */
+  public static void upsert(
+      String repoId, String tag, JobPriority priority, Date dateScheduled, QueryRunner q)
+      throws SQLException {
+    int updated =
+        q.update(
+            "update pendingsubmissions set priority=? where repoid=? and tag=?",
+            priority.name(),
+            repoId,
+            tag);
+    if (updated == 0) {
+      q.update(
+          "insert into pendingsubmissions (repoid,tag,priority,started,datescheduled)"
+              + " values (?,?,?,false,?)",
+          repoId,
+          tag,
+          priority.name(),
+          new Timestamp(dateScheduled.getTime()));
+    }
+  }
+
+  /** Record that a worker has started testing this submission. */
+  public static void markStarted(String repoId, String tag, QueryRunner q) throws SQLException {
+    q.update(
+        "update pendingsubmissions set started=true where repoid=? and tag=?", repoId, tag);
+  }
+
+  /**
+   * Record that this submission should be cancelled, so that whichever node tests it does so.
+   *
+   * @return true if the entry was present
+   */
+  public static boolean markCancelled(String repoId, String tag, QueryRunner q)
+      throws SQLException {
+    return q.update(
+            "update pendingsubmissions set cancelled=true where repoid=? and tag=?", repoId, tag)
+        > 0;
+  }
+
+  /**
+   * Remove this submission from the journal.
+   *
+   * @return true if the entry was present
+   */
+  public static boolean delete(String repoId, String tag, QueryRunner q) throws SQLException {
+    return q.update("delete from pendingsubmissions where repoid=? and tag=?", repoId, tag) > 0;
+  }
+}
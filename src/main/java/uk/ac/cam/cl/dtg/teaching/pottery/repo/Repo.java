@@ -58,6 +58,7 @@ import uk.ac.cam.cl.dtg.teaching.pottery.FourLevelLock;
 import uk.ac.cam.cl.dtg.teaching.pottery.FourLevelLock.AutoCloseableLock;
 import uk.ac.cam.cl.dtg.teaching.pottery.TransactionQueryRunner;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.containers.CancellationToken;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerExecResponse;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
 import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
@@ -73,11 +74,12 @@ import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.SubmissionStorageException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.RepoInfo;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.Submission;
-import uk.ac.cam.cl.dtg.teaching.pottery.model.TaskInfo;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.Task;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskCopy;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.Job;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.JobPriority;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.JobStage;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
 
 /**
@@ -99,6 +101,8 @@ public class Repo {
 
   private final RepoInfo repoInfo;
 
+  private final RepoConfig config;
+
   /** The directory holding this repository. */
   private final File repoDirectory;
 
@@ -118,8 +122,13 @@ public class Repo {
   /** A map of submissions that have been tested. Keys are tags. You can only have one per tag. */
   private ConcurrentHashMap<String, Submission> activeSubmissions;
 
+  /** Cancellation tokens for the submissions which have not been stored yet. Keys are tags. */
+  private final ConcurrentHashMap<String, CancellationToken> pendingCancellations =
+      new ConcurrentHashMap<>();
+
   private Repo(RepoInfo repoInfo, RepoConfig c) {
     this.repoInfo = repoInfo;
+    this.config = c;
     this.repoDirectory = c.getRepoDir(repoInfo.getRepoId());
     this.repoTestingDirectory = c.getRepoTestingDir(repoInfo.getRepoId());
     this.webtagPrefix = c.getWebtagPrefix();
@@ -238,6 +247,20 @@ public class Repo {
    */
   public String getSubmission(String tag, Database database)
       throws SubmissionStorageException, SubmissionNotFoundException {
+    try {
+      return getKnownSubmission(tag, database);
+    } catch (SubmissionNotFoundException e) {
+      String queued = getQueuedSubmission(tag, database);
+      if (queued == null) {
+        throw e;
+      }
+      return queued;
+    }
+  }
+
+  /** Look up a submission which is being tested on this node or whose result has been stored. */
+  private String getKnownSubmission(String tag, Database database)
+      throws SubmissionStorageException, SubmissionNotFoundException {
     synchronized (lockFields) {
       Submission s = activeSubmissions.get(tag);
       if (s != null) {
@@ -259,6 +282,37 @@ public class Repo {
     }
   }
 
+  /**
+   * Describe a submission which is waiting in the shared queue or being tested by another node.
+   *
+   * @return null if there is no such submission
+   */
+  private String getQueuedSubmission(String tag, Database database)
+      throws SubmissionStorageException {
+    PendingSubmissions.PendingSubmission p;
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      p = PendingSubmissions.get(repoInfo.getRepoId(), tag, q);
+    } catch (SQLException e) {
+      throw new SubmissionStorageException("Failed to load submission from database", e);
+    }
+    if (p == null) {
+      return null;
+    }
+    Submission.Builder builder = Submission.builder(repoInfo.getRepoId(), tag);
+    if (p.isStarted()) {
+      builder.setStarted();
+    }
+    return toJson(builder.build());
+  }
+
+  private static String toJson(Submission submission) {
+    try {
+      return new ObjectMapper().writeValueAsString(submission);
+    } catch (JsonProcessingException e) {
+      return "{\"errorMessage\": \"Couldn't serialize submission information.\"}";
+    }
+  }
+
   /** Internal method to update the submission. */
   private void updateSubmission(Submission s) {
     activeSubmissions.put(s.getTag(), s);
@@ -273,164 +327,548 @@ public class Repo {
   /** Schedule a particular version of the repo for testing later. */
   public String scheduleSubmission(String tag, Worker w, Database db)
       throws RepoExpiredException, SubmissionStorageException, RepoStorageException {
+    return scheduleSubmission(tag, w, db, JobPriority.INTERACTIVE);
+  }
+
+  /**
+   * Schedule a particular version of the repo for testing later with the given priority. The
+   * priority is ignored if this tag has already been scheduled.
+   */
+  public String scheduleSubmission(String tag, Worker w, Database db, JobPriority priority)
+      throws RepoExpiredException, SubmissionStorageException, RepoStorageException {
     throwIfRepoExpired();
 
     if (tag.equals("HEAD")) {
-      return scheduleSubmission(resolveHeadSha(), w, db);
+      return scheduleSubmission(resolveHeadSha(), w, db, priority);
+    }
+
+    try {
+      // Means we've already scheduled (and possibly already run) the test for this tag
+      return getKnownSubmission(tag, db);
+    } catch (SubmissionNotFoundException e) {
+      // Lets make one
     }
 
+    // Looking in git and the cache happens outside the lock so that it doesn't hold up status
+    // requests for this repo
+    String treeSha = getCacheableTreeSha(tag);
+    Submission cached = treeSha != null ? lookupCachedResult(tag, treeSha, db) : null;
+
     Submission currentSubmission;
     Submission.Builder builder;
     synchronized (lockFields) {
       // lock here to allow us to notice that there is no submission and start a new
       // one atomically.
-      try {
-        // Means we've already scheduled (and possibly already run) the test for this tag
-        return getSubmission(tag, db);
-      } catch (SubmissionNotFoundException e) {
-        // Lets make one
+      Submission known = activeSubmissions.get(tag);
+      if (known != null) {
+        return known.getOutput();
+      }
+      if (cached != null) {
+        updateSubmission(cached);
+        builder = null;
+        currentSubmission = cached;
+      } else {
+        builder = Submission.builder(repoInfo.getRepoId(), tag);
+        currentSubmission = builder.build();
+        updateSubmission(currentSubmission);
       }
+    }
+
+    if (cached != null) {
+      storeCachedResult(cached, db);
+      return cached.getOutput();
+    }
 
-      builder = Submission.builder(repoInfo.getRepoId(), tag);
-      currentSubmission = builder.build();
-      updateSubmission(currentSubmission);
+    try (TransactionQueryRunner q = db.getQueryRunner()) {
+      PendingSubmissions.upsert(
+          repoInfo.getRepoId(), tag, priority, currentSubmission.getDateScheduled(), q);
+      q.commit();
+    } catch (SQLException e) {
+      activeSubmissions.remove(tag);
+      throw new SubmissionStorageException("Failed to record scheduled submission", e);
     }
 
+    CancellationToken cancellationToken = new CancellationToken();
+    pendingCancellations.put(tag, cancellationToken);
     w.schedule(
-        new Job() {
+        new SubmissionTest(
+                tag, builder, currentSubmission, priority, db, cancellationToken, treeSha)
+            .createJobs());
+    updateSubmission(builder.setOutput(toJson(currentSubmission)));
+    return builder.build().getOutput();
+  }
+
+  /**
+   * The git tree of the code under this tag if results for this repo's task may be cached.
+   *
+   * @return the SHA of the tree or null if the cache shouldn't be used
+   */
+  private String getCacheableTreeSha(String tag) {
+    if (!config.isSubmissionCacheEnabled(repoInfo.getTaskId()) || repoInfo.isRemote()) {
+      return null;
+    }
+    try (AutoCloseableLock ignored = lock.takeFileReadingLock()) {
+      try (Git git = Git.open(repoDirectory)) {
+        Repository repo = git.getRepository();
+        RevWalk revWalk = new RevWalk(repo);
+        String treeSha = getRevTree(tag, repo, revWalk).getName();
+        revWalk.dispose();
+        return treeSha;
+      }
+    } catch (IOException | RepoStorageException | RepoTagNotFoundException e) {
+      LOG.warn("Failed to find tree for tag {} in {}", tag, repoInfo.getRepoId(), e);
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /**
+   * Look for a cached result for this code.
+   *
+   * @return a completed submission for this tag or null if there was no cached result
+   */
+  private Submission lookupCachedResult(String tag, String treeSha, Database db) {
+    try (TransactionQueryRunner q = db.getQueryRunner()) {
+      String copyId =
+          SubmissionCache.getCurrentCopyId(
+              repoInfo.getTaskId(), repoInfo.isUsingTestingVersion(), q);
+      if (copyId == null) {
+        return null;
+      }
+      Submission cached =
+          SubmissionCache.lookup(
+              copyId, repoInfo.getVariant(), treeSha, repoInfo.getRepoId(), tag, new Date(), q);
+      q.commit();
+      return cached;
+    } catch (SQLException e) {
+      LOG.warn("Failed to look up cached result for {}:{}", repoInfo.getRepoId(), tag, e);
+      return null;
+    }
+  }
+
+  /** Store a cached result, which has already been published, as the result of its submission. */
+  private void storeCachedResult(Submission cached, Database db)
+      throws SubmissionStorageException {
+    try (TransactionQueryRunner q = db.getQueryRunner()) {
+      // The submission might have been journalled by the shared queue or before a restart
+      PendingSubmissions.delete(cached.getRepoId(), cached.getTag(), q);
+      Submissions.insert(cached, q);
+      q.commit();
+      LOG.info("Using cached result for submission {}:{}", cached.getRepoId(), cached.getTag());
+    } catch (SQLException e) {
+      activeSubmissions.remove(cached.getTag(), cached);
+      throw new SubmissionStorageException("Failed to store cached result", e);
+    }
+  }
+
+  /**
+   * Add a particular version of the repo to the shared queue. It will be tested by whichever node
+   * sharing the database claims it first. The priority is ignored if this tag has already been
+   * scheduled.
+   */
+  public String queueSubmission(String tag, Database db, JobPriority priority)
+      throws RepoExpiredException, SubmissionStorageException, RepoStorageException {
+    throwIfRepoExpired();
+
+    if (tag.equals("HEAD")) {
+      return queueSubmission(resolveHeadSha(), db, priority);
+    }
+
+    try {
+      return getSubmission(tag, db);
+    } catch (SubmissionNotFoundException e) {
+      // Lets queue one
+    }
+
+    Submission submission = Submission.builder(repoInfo.getRepoId(), tag).build();
+    try (TransactionQueryRunner q = db.getQueryRunner()) {
+      PendingSubmissions.upsert(
+          repoInfo.getRepoId(), tag, priority, submission.getDateScheduled(), q);
+      q.commit();
+    } catch (SQLException e) {
+      throw new SubmissionStorageException("Failed to record scheduled submission", e);
+    }
+    return toJson(submission);
+  }
+
+  /**
+   * Cancel a submission which is waiting to be tested or is being tested. Stages which have not
+   * started yet are skipped and a running container is killed. The submission is then stored with
+   * an error message saying that it was cancelled. A submission which isn't being tested on this
+   * node is marked as cancelled in the journal, and whichever node tests it cancels it there.
+   *
+   * @return the current state of the submission
+   */
+  public String cancelSubmission(String tag, Database database)
+      throws SubmissionNotFoundException, SubmissionStorageException {
+    if (!cancelLocalSubmission(tag)) {
+      boolean marked;
+      try (TransactionQueryRunner q = database.getQueryRunner()) {
+        marked = PendingSubmissions.markCancelled(repoInfo.getRepoId(), tag, q);
+        q.commit();
+      } catch (SQLException e) {
+        throw new SubmissionStorageException("Failed to record cancellation", e);
+      }
+      if (!marked) {
+        throw new SubmissionNotFoundException(
+            "No submission with tag " + tag + " is in progress on repository "
+                + repoInfo.getRepoId());
+      }
+      LOG.info("Marked submission {}:{} as cancelled", repoInfo.getRepoId(), tag);
+    }
+    return getSubmission(tag, database);
+  }
+
+  /**
+   * Cancel a submission if it is being tested on this node.
+   *
+   * @return false if this node isn't testing the submission
+   */
+  boolean cancelLocalSubmission(String tag) {
+    CancellationToken cancellationToken = pendingCancellations.get(tag);
+    if (cancellationToken == null) {
+      return false;
+    }
+    if (cancellationToken.isCancelled()) {
+      return true;
+    }
+    LOG.info("Cancelling submission {}:{}", repoInfo.getRepoId(), tag);
+    cancellationToken.cancel();
+    return true;
+  }
+
+  /**
+   * The testing of one submission, split into a chain of jobs for the checkout, container
+   * execution and persistence stages so that a staged worker can overlap them with other
+   * submissions. Each stage returns STATUS_OK once the submission has an outcome (even if that
+   * outcome is an error) so that the result always reaches the persistence stage.
+   */
+  private class SubmissionTest {
+    private final String tag;
+    private final Submission.Builder builder;
+    private final Submission currentSubmission;
+    private final JobPriority priority;
+    private final Database database;
+    private final File codeDir;
+    private final CancellationToken cancellationToken;
+
+    /** The git tree of the code under test, or null if the result shouldn't be cached. */
+    private final String treeSha;
+
+    /** Set once the outcome is known and no further stages need to run containers. */
+    private volatile boolean finished = false;
+
+    /** The task copy the result came from, if the result is one which can be reused. */
+    private volatile String cacheableCopyId = null;
+
+    SubmissionTest(
+        String tag,
+        Submission.Builder builder,
+        Submission currentSubmission,
+        JobPriority priority,
+        Database database,
+        CancellationToken cancellationToken,
+        String treeSha) {
+      this.tag = tag;
+      this.builder = builder;
+      this.currentSubmission = currentSubmission;
+      this.priority = priority;
+      this.database = database;
+      this.codeDir = new File(repoTestingDirectory, tag);
+      this.cancellationToken = cancellationToken;
+      this.treeSha = treeSha;
+    }
+
+    Job[] createJobs() {
+      return new Job[] {
+        new SubmissionJob("Checking out", JobStage.CHECKOUT) {
           @Override
           public int execute(
               TaskIndex taskIndex,
               RepoFactory repoFactory,
               ContainerManager containerManager,
               Database database) {
-            updateSubmission(builder.setStarted());
-            Task t;
-            try {
-              t = taskIndex.getTask(repoInfo.getTaskId());
-            } catch (TaskNotFoundException e1) {
-              updateSubmission(
-                  builder.addErrorMessage("Task no longer available"));
-              return STATUS_FAILED;
-            }
-            try (TaskCopy c =
-                repoInfo.isUsingTestingVersion()
-                    ? t.acquireTestingCopy()
-                    : t.acquireRegisteredCopy()) {
-              try (AutoCloseableLock ignored = lock.takeFileWritingLock()) {
-                try {
-                  setVersionToTest(tag);
-                } catch (RepoStorageException e) {
-                  updateSubmission(
-                      builder.addErrorMessage(
-                          "Failed to reset repository to requested tag (" + tag + ")"));
-                  return STATUS_FAILED;
-                }
-
-                File codeDir = repoTestingDirectory;
-                TaskInfo taskInfo = c.getInfo();
-                String variant = repoInfo.getVariant();
-                int result = containerManager.runStepsAndOutput(c, codeDir, taskInfo, variant,
-                    new ContainerManager.ErrorHandlingStepRunnerCallback() {
-                  @Override
-                  public void apiUnavailable(String errorMessage, Throwable exception) {
-                    Repo.LOG.warn(
-                        errorMessage,
-                        exception);
-                    updateSubmission(
-                        builder
-                            .addErrorMessage(
-                                "Compilation failed, unable to contact the container API. "
-                                    + "Retrying...")
-                            .setRetry());
-                  }
-
-                  @Override
-                  public void setStatus(String status) {
-                    updateSubmission(builder.setStatus(status));
-                  }
-
-                  @Override
-                  public void recordErrorReason(ContainerExecResponse response, String stepName) {
-                    switch (response.status()) {
-                      case FAILED_UNKNOWN:
-                        updateSubmission(
-                            builder.addErrorMessage("Output failed, no tests were run"));
-                        break;
-                      case FAILED_DISK:
-                        updateSubmission(
-                            builder.addErrorMessage("Output failed, disk usage limit exceeded"));
-                        break;
-                      case FAILED_OOM:
-                        updateSubmission(
-                            builder.addErrorMessage("Output failed, memory usage limit exceeded"));
-                        break;
-                      case FAILED_TIMEOUT:
-                        updateSubmission(
-                            builder.addErrorMessage(
-                                "Output failed, execution time limit exceeded"));
-                        break;
-                      default:
-                        break;
-                    }
-                  }
-
-                  @Override
-                  public void setOutput(String output) {
-                    builder.setOutput(output);
-                  }
-                }, ImmutableMap.of(
-                  "repoId", repoInfo.getRepoId(),
-                  "tag", tag,
-                  "waitTimeMs", Long.toString(builder.build().getWaitTimeMs()),
-                  "dateScheduled", Long.toString(currentSubmission.getDateScheduled().getTime())
-                ));
-                if (result != STATUS_OK) {
-                  return result;
-                }
-              } catch (InterruptedException e) {
-                updateSubmission(
-                    Submission.builder(repoInfo.getRepoId(), tag)
-                        .addErrorMessage("Job was interrupted, retrying"));
-                return STATUS_RETRY;
-              } finally {
-                builder.setStatus(Submission.STATUS_COMPLETE);
-
-                Submission s = builder.build();
-                if (!s.isNeedsRetry()) {
-                  try (TransactionQueryRunner q = database.getQueryRunner()) {
-                    Submissions.insert(s, q);
-                    q.commit();
-                  } catch (SQLException e) {
-                    // This shouldn't happen, but if it does then we'll force
-                    // an error message out to the user
-                    updateSubmission(
-                        Submission.builder(repoInfo.getRepoId(), tag)
-                            .addErrorMessage(
-                                "Failed to store result in database: " + e.getMessage()));
-                    return STATUS_FAILED;
-                  }
-                }
-                updateSubmission(s);
-              }
-            } catch (TaskNotFoundException e1) {
-              updateSubmission(builder.addErrorMessage("Task no longer available"));
-              return STATUS_FAILED;
-            }
-            return Job.STATUS_OK;
+            return checkout();
+          }
+        },
+        new SubmissionJob("Testing", JobStage.EXECUTE) {
+          @Override
+          public int execute(
+              TaskIndex taskIndex,
+              RepoFactory repoFactory,
+              ContainerManager containerManager,
+              Database database) {
+            return runTests(taskIndex, containerManager);
           }
 
           @Override
-          public String getDescription() {
-            return "Testing submission " + repoInfo.getRepoId() + ":" + tag;
+          public void retriesExhausted() {
+            updateSubmission(
+                builder.addErrorMessage("Gave up testing submission, container API unavailable"));
+            store();
           }
-        });
-    try {
-      ObjectMapper om = new ObjectMapper();
-      updateSubmission(builder.setOutput(om.writeValueAsString(currentSubmission)));
-      return builder.build().getOutput();
-    } catch (JsonProcessingException e) {
-      return "{\"errorMessage\": \"Couldn't serialize submission information.\"}";
+        },
+        new SubmissionJob("Storing result of", JobStage.PERSIST) {
+          @Override
+          public int execute(
+              TaskIndex taskIndex,
+              RepoFactory repoFactory,
+              ContainerManager containerManager,
+              Database database) {
+            return store();
+          }
+        }
+      };
+    }
+
+    private int checkout() {
+      if (skipIfCancelled()) {
+        return Job.STATUS_OK;
+      }
+      updateSubmission(builder.setStarted());
+      try (TransactionQueryRunner q = database.getQueryRunner()) {
+        PendingSubmissions.markStarted(repoInfo.getRepoId(), tag, q);
+        q.commit();
+      } catch (SQLException e) {
+        LOG.warn("Failed to mark submission {} as started", tag, e);
+      }
+      try {
+        checkoutVersionToTest(tag, codeDir);
+      } catch (RepoStorageException e) {
+        updateSubmission(
+            builder.addErrorMessage("Failed to reset repository to requested tag (" + tag + ")"));
+        finished = true;
+      }
+      return Job.STATUS_OK;
+    }
+
+    private int runTests(TaskIndex taskIndex, ContainerManager containerManager) {
+      if (finished || skipIfCancelled()) {
+        return Job.STATUS_OK;
+      }
+      try {
+        Task t = taskIndex.getTask(repoInfo.getTaskId());
+        try (TaskCopy c =
+            repoInfo.isUsingTestingVersion()
+                ? t.acquireTestingCopy()
+                : t.acquireRegisteredCopy()) {
+          String variant = repoInfo.getVariant();
+          SubmissionStepRunnerCallback callback =
+              new SubmissionStepRunnerCallback(builder, cancellationToken);
+          int result =
+              containerManager.runStepsAndOutput(
+                  c,
+                  codeDir,
+                  variant,
+                  callback,
+                  getPotteryProperties());
+          if (result == Job.STATUS_RETRY) {
+            return result;
+          }
+          if (callback.isDeterministic()) {
+            cacheableCopyId = c.getCopyId();
+          }
+        }
+      } catch (TaskNotFoundException e) {
+        updateSubmission(builder.addErrorMessage("Task no longer available"));
+      } catch (RuntimeException e) {
+        // Failing this job would skip storing the result, leaving the submission pending forever
+        LOG.error("Failed to test submission {}:{}", repoInfo.getRepoId(), tag, e);
+        updateSubmission(builder.addErrorMessage("Failed to test submission: " + e.getMessage()));
+      }
+      finished = true;
+      return Job.STATUS_OK;
+    }
+
+    /**
+     * Properties describing this submission for the output step. They are left out if the result
+     * may be cached because cached output is replayed for other submissions.
+     */
+    private ImmutableMap<String, String> getPotteryProperties() {
+      if (treeSha != null) {
+        return ImmutableMap.of();
+      }
+      return ImmutableMap.of(
+          "repoId", repoInfo.getRepoId(),
+          "tag", tag,
+          "waitTimeMs", Long.toString(builder.build().getWaitTimeMs()),
+          "dateScheduled", Long.toString(currentSubmission.getDateScheduled().getTime()));
+    }
+
+    /** Record the cancellation and skip the remaining container work if we've been cancelled. */
+    private boolean skipIfCancelled() {
+      if (!cancellationToken.isCancelled()) {
+        return false;
+      }
+      updateSubmission(builder.addErrorMessage("Submission cancelled"));
+      finished = true;
+      return true;
+    }
+
+    private int store() {
+      pendingCancellations.remove(tag, cancellationToken);
+      builder.setStatus(Submission.STATUS_COMPLETE);
+      Submission s = builder.build();
+      try (TransactionQueryRunner q = database.getQueryRunner()) {
+        // Removing the journal entry in the same transaction means that a restart
+        // either sees the stored result or reschedules the submission, never both
+        PendingSubmissions.delete(repoInfo.getRepoId(), tag, q);
+        Submissions.insert(s, q);
+        q.commit();
+      } catch (SQLException e) {
+        // This shouldn't happen, but if it does then we'll force
+        // an error message out to the user
+        updateSubmission(
+            Submission.builder(repoInfo.getRepoId(), tag)
+                .addErrorMessage("Failed to store result in database: " + e.getMessage()));
+        return Job.STATUS_FAILED;
+      } finally {
+        deleteCheckout();
+      }
+      updateSubmission(s);
+      if (treeSha != null && cacheableCopyId != null) {
+        cacheResult(s);
+      }
+      return Job.STATUS_OK;
+    }
+
+    private void cacheResult(Submission s) {
+      try (TransactionQueryRunner q = database.getQueryRunner()) {
+        SubmissionCache.put(cacheableCopyId, repoInfo.getVariant(), treeSha, s, new Date(), q);
+        SubmissionCache.evict(config.getSubmissionCacheSize(), q);
+        q.commit();
+      } catch (SQLException e) {
+        LOG.warn("Failed to cache result of submission {}:{}", repoInfo.getRepoId(), tag, e);
+      }
+    }
+
+    private void deleteCheckout() {
+      try {
+        if (codeDir.exists()) {
+          FileUtil.deleteRecursive(codeDir);
+        }
+      } catch (IOException e) {
+        LOG.warn("Failed to delete testing checkout {}", codeDir, e);
+      }
+    }
+
+    /** Common description and scheduling properties for the jobs of this submission. */
+    private abstract class SubmissionJob implements Job {
+      private final String action;
+      private final JobStage stage;
+
+      SubmissionJob(String action, JobStage stage) {
+        this.action = action;
+        this.stage = stage;
+      }
+
+      @Override
+      public String getDescription() {
+        return action + " submission " + repoInfo.getRepoId() + ":" + tag;
+      }
+
+      @Override
+      public JobPriority getPriority() {
+        return priority;
+      }
+
+      @Override
+      public JobStage getStage() {
+        return stage;
+      }
+
+      @Override
+      public String getType() {
+        return "submission." + stage.name().toLowerCase();
+      }
+
+      @Override
+      public String getRepoId() {
+        return repoInfo.getRepoId();
+      }
+
+      @Override
+      public String getTaskId() {
+        return repoInfo.getTaskId();
+      }
+    }
+  }
+
+  /** Records the progress of the container steps in the submission. */
+  private class SubmissionStepRunnerCallback
+      implements ContainerManager.ErrorHandlingStepRunnerCallback {
+    private final Submission.Builder builder;
+    private final CancellationToken cancellationToken;
+
+    /**
+     * Cleared if the outcome could have been different on another run, for example because the
+     * container timed out or the container API failed.
+     */
+    private boolean deterministic = true;
+
+    SubmissionStepRunnerCallback(
+        Submission.Builder builder, CancellationToken cancellationToken) {
+      this.builder = builder;
+      this.cancellationToken = cancellationToken;
+    }
+
+    @Override
+    public CancellationToken getCancellationToken() {
+      return cancellationToken;
+    }
+
+    @Override
+    public void apiUnavailable(String errorMessage, Throwable exception) {
+      Repo.LOG.warn(errorMessage, exception);
+      deterministic = false;
+      updateSubmission(
+          builder
+              .addErrorMessage(
+                  "Compilation failed, unable to contact the container API. Retrying...")
+              .setRetry());
+    }
+
+    @Override
+    public void setStatus(String status) {
+      updateSubmission(builder.setStatus(status));
+    }
+
+    @Override
+    public void recordErrorReason(ContainerExecResponse response, String stepName) {
+      if (response.status() != ContainerExecResponse.Status.FAILED_EXITCODE) {
+        deterministic = false;
+      }
+      switch (response.status()) {
+        case FAILED_UNKNOWN:
+          updateSubmission(builder.addErrorMessage("Output failed, no tests were run"));
+          break;
+        case FAILED_DISK:
+          updateSubmission(builder.addErrorMessage("Output failed, disk usage limit exceeded"));
+          break;
+        case FAILED_OOM:
+          updateSubmission(builder.addErrorMessage("Output failed, memory usage limit exceeded"));
+          break;
+        case FAILED_TIMEOUT:
+          updateSubmission(
+              builder.addErrorMessage("Output failed, execution time limit exceeded"));
+          break;
+        case FAILED_CANCELLED:
+          updateSubmission(builder.addErrorMessage("Submission cancelled"));
+          break;
+        default:
+          break;
+      }
+    }
+
+    @Override
+    public void setOutput(String output) {
+      builder.setOutput(output);
+    }
+
+    boolean isDeterministic() {
+      return deterministic;
     }
   }
 
@@ -468,28 +906,26 @@ public class Repo {
   }
 
   /**
-   * Update the checkout of this repo that we use for testing to point to a new tag.
-   *
-   * @param tag the tag to update the test to point to
-   * @throws RepoStorageException if something goes wrong
+   * Clone the given tag of this repo into a directory for testing. Each submission gets its own
+   * directory so that several tags of the same repo can be tested at once.
    */
-  private void setVersionToTest(String tag) throws RepoStorageException {
-    try (AutoCloseableLock ignored = lock.takeFileWritingLock()) {
-      if (repoTestingDirectory.exists()) {
+  private void checkoutVersionToTest(String tag, File codeDir) throws RepoStorageException {
+    try (AutoCloseableLock ignored = lock.takeGitDbOpLock()) {
+      if (codeDir.exists()) {
         try {
-          FileUtil.deleteRecursive(repoTestingDirectory);
+          FileUtil.deleteRecursive(codeDir);
         } catch (IOException e) {
           throw new RepoStorageException("Failed to delete previous testing directory", e);
         }
       }
-      if (!repoTestingDirectory.mkdirs()) {
+      if (!codeDir.mkdirs()) {
         throw new RepoStorageException("Failed to create directory for holding test checkout");
       }
 
       try (Git g =
           Git.cloneRepository()
               .setURI(repoInfo.isRemote() ? repoInfo.getRemote() : repoDirectory.getPath())
-              .setDirectory(repoTestingDirectory)
+              .setDirectory(codeDir)
               .call()) {
         g.checkout().setName(tag).call();
       } catch (GitAPIException e) {
@@ -498,7 +934,7 @@ public class Repo {
         throw new RepoStorageException("Failed to clone repository", e.getCause());
       }
     } catch (InterruptedException e) {
-      throw new RepoStorageException("Interrupted whilst waiting for file writing lock", e);
+      throw new RepoStorageException("Interrupted whilst waiting for git database lock", e);
     }
   }
 
@@ -25,19 +25,31 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.io.File;
 import java.io.IOException;
+import java.sql.SQLException;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.TransactionQueryRunner;
 import uk.ac.cam.cl.dtg.teaching.pottery.UuidGenerator;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoExpiredException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoStorageException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.SubmissionStorageException;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.RepoInfo;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.PendingSubmissions.PendingSubmission;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
 
 @Singleton
 public class RepoFactory {
 
+  protected static final Logger LOG = LoggerFactory.getLogger(RepoFactory.class);
+
   /** This object is used to generate new uuids for repos. */
   private UuidGenerator uuidGenerator = new UuidGenerator();
 
@@ -57,6 +69,9 @@ public class RepoFactory {
                 }
               });
 
+  /** Set once the pending submissions from a previous run have been rescheduled. */
+  private final AtomicBoolean recoveredPendingSubmissions = new AtomicBoolean(false);
+
   /** Construct a new RepoFactory object. */
   @Inject
   public RepoFactory(RepoConfig config, Database database) throws IOException {
@@ -104,6 +119,81 @@ public class RepoFactory {
     }
   }
 
+  /**
+   * Reschedule any submissions which were scheduled or running when the server last stopped. This
+   * only has an effect the first time it is called. Entries for submissions which have since
+   * completed or whose repo has gone are removed from the journal instead.
+   */
+  public void reschedulePendingSubmissions(Worker w) {
+    if (!recoveredPendingSubmissions.compareAndSet(false, true)) {
+      return;
+    }
+    List<PendingSubmission> pending;
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      pending = PendingSubmissions.getAll(q);
+    } catch (SQLException e) {
+      LOG.error("Failed to load pending submissions", e);
+      return;
+    }
+    LOG.info("Rescheduling {} pending submissions", pending.size());
+    for (PendingSubmission p : pending) {
+      resumePendingSubmission(p, w, false);
+    }
+  }
+
+  /**
+   * Schedule a submission from the journal on this node's worker. Entries for submissions which
+   * have already completed or whose repo has expired are removed from the journal instead, as are
+   * those whose repo is missing unless the journal is shared.
+   *
+   * @param shared true if other nodes share the journal, in which case a repo missing from this
+   *     node might be on another one
+   * @return false if the submission could not be scheduled and is still in the journal
+   */
+  public boolean resumePendingSubmission(PendingSubmission p, Worker w, boolean shared) {
+    try {
+      try (TransactionQueryRunner q = database.getQueryRunner()) {
+        if (Submissions.getByRepoIdAndTag(p.getRepoId(), p.getTag(), q) != null) {
+          PendingSubmissions.delete(p.getRepoId(), p.getTag(), q);
+          q.commit();
+          return true;
+        }
+      }
+      if (p.isStarted()) {
+        LOG.info("Submission {}:{} was interrupted, rescheduling", p.getRepoId(), p.getTag());
+      }
+      Repo repo = getInstance(p.getRepoId());
+      repo.scheduleSubmission(p.getTag(), w, database, p.getPriority());
+      if (p.isCancelled()) {
+        repo.cancelLocalSubmission(p.getTag());
+      }
+      return true;
+    } catch (RepoNotFoundException e) {
+      if (shared) {
+        LOG.info("Repo for submission {}:{} is not on this node", p.getRepoId(), p.getTag());
+        return false;
+      }
+      dropPendingSubmission(p, e);
+      return true;
+    } catch (RepoExpiredException e) {
+      dropPendingSubmission(p, e);
+      return true;
+    } catch (SQLException | RepoStorageException | SubmissionStorageException e) {
+      LOG.error("Failed to reschedule submission {}:{}", p.getRepoId(), p.getTag(), e);
+      return false;
+    }
+  }
+
+  private void dropPendingSubmission(PendingSubmission p, Exception e) {
+    LOG.warn("Dropping pending submission {}:{}", p.getRepoId(), p.getTag(), e);
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      PendingSubmissions.delete(p.getRepoId(), p.getTag(), q);
+      q.commit();
+    } catch (SQLException e1) {
+      LOG.error("Failed to remove pending submission from journal", e1);
+    }
+  }
+
   private void rethrowExecutionException(ExecutionException e)
       throws RepoStorageException, RepoNotFoundException {
     if (e.getCause() instanceof RepoStorageException) {
@@ -0,0 +1,161 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.Stoppable;
+import uk.ac.cam.cl.dtg.teaching.pottery.TransactionQueryRunner;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.WorkerConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoStorageException;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.PendingSubmissions.PendingSubmission;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
+
+/**
+ * Shares the testing of submissions between several nodes using the pending submissions table as
+ * a queue. Each node periodically renews the leases on the submissions it is testing and claims
+ * more until it holds as many as its worker runs at once. Submissions claimed by a node which has
+ * stopped are picked up by another once their lease expires. A submission which a node can't
+ * schedule, for example because its repo is on another node, is released and held back for
+ * RETRY_CLAIM_DELAY_MS so that other nodes get a chance to claim it first.
+ *
+ * <p>Cancellations are recorded in the table, and the node which has claimed the submission picks
+ * them up when it next polls.
+ */
+@Singleton
+public class SharedSubmissionQueue implements Stoppable {
+
+  protected static final Logger LOG = LoggerFactory.getLogger(SharedSubmissionQueue.class);
+
+  static final long RETRY_CLAIM_DELAY_MS = 10_000;
+
+  private final RepoFactory repoFactory;
+  private final Worker worker;
+  private final Database database;
+  private final WorkerConfig config;
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  /** Create a new queue. Call start() to begin claiming submissions. */
+  @Inject
+  public SharedSubmissionQueue(
+      RepoFactory repoFactory, Worker worker, Database database, WorkerConfig config) {
+    this.repoFactory = repoFactory;
+    this.worker = worker;
+    this.database = database;
+    this.config = config;
+  }
+
+  public boolean isEnabled() {
+    return config.isSharedQueue();
+  }
+
+  /** Start claiming submissions if the shared queue is enabled in the configuration. */
+  public void start() {
+    if (!isEnabled()) {
+      return;
+    }
+    LOG.info("Claiming submissions from the shared queue as node {}", config.getNodeId());
+    // Anything we still own is left over from before a restart and isn't running any more
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      PendingSubmissions.releaseAll(config.getNodeId(), q);
+      q.commit();
+    } catch (SQLException e) {
+      LOG.error("Failed to release submissions claimed before restart", e);
+    }
+    scheduler.scheduleWithFixedDelay(
+        this::poll, 0, config.getQueuePollMs(), TimeUnit.MILLISECONDS);
+  }
+
+  private void poll() {
+    try {
+      long now = System.currentTimeMillis();
+      Date leaseExpiry = new Date(now + config.getLeaseMs());
+      List<PendingSubmission> claimed;
+      List<PendingSubmission> cancelled;
+      try (TransactionQueryRunner q = database.getQueryRunner()) {
+        // Everything we hold is either queued or running on our worker
+        int held = PendingSubmissions.renewLeases(config.getNodeId(), leaseExpiry, q);
+        int capacity = worker.getMaxConcurrency() - held;
+        claimed =
+            capacity > 0
+                ? PendingSubmissions.claim(
+                    config.getNodeId(), new Date(now), leaseExpiry, capacity, q)
+                : ImmutableList.of();
+        cancelled = PendingSubmissions.getCancelled(config.getNodeId(), q);
+        q.commit();
+      }
+      for (PendingSubmission p : cancelled) {
+        cancel(p);
+      }
+      for (PendingSubmission p : claimed) {
+        LOG.info("Claimed submission {}:{}", p.getRepoId(), p.getTag());
+        if (!repoFactory.resumePendingSubmission(p, worker, true)) {
+          release(p);
+        }
+      }
+    } catch (SQLException | RuntimeException e) {
+      // Don't let the exception escape or the scheduler will stop polling
+      LOG.error("Failed to poll the shared submission queue", e);
+    }
+  }
+
+  private void cancel(PendingSubmission p) {
+    try {
+      repoFactory.getInstance(p.getRepoId()).cancelLocalSubmission(p.getTag());
+    } catch (RepoNotFoundException | RepoStorageException e) {
+      LOG.error("Failed to cancel submission {}:{}", p.getRepoId(), p.getTag(), e);
+    }
+  }
+
+  private void release(PendingSubmission p) {
+    Date notBefore = new Date(System.currentTimeMillis() + RETRY_CLAIM_DELAY_MS);
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      PendingSubmissions.release(p.getRepoId(), p.getTag(), notBefore, q);
+      q.commit();
+    } catch (SQLException e) {
+      LOG.error("Failed to release submission {}:{}", p.getRepoId(), p.getTag(), e);
+    }
+  }
+
+  @Override
+  public void stop() {
+    scheduler.shutdownNow();
+    if (!isEnabled()) {
+      return;
+    }
+    // Let other nodes take over our submissions without waiting for the leases to expire
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      PendingSubmissions.releaseAll(config.getNodeId(), q);
+      q.commit();
+    } catch (SQLException e) {
+      LOG.error("Failed to release claimed submissions", e);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Date;
+import org.apache.commons.dbutils.QueryRunner;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.Submission;
+
+/**
+ * Results of testing submissions keyed by the task copy they were tested against, the variant and
+ * the git tree of the submitted code. For a task which always gives the same result for the same
+ * code, a submission whose key is already here can be answered without running any containers.
+ *
+ * <p>Entries record when they were last used and the least recently used entries are evicted once
+ * the table grows beyond its configured size.
+ */
+public class SubmissionCache {
+
+  /**
+   * Look up the result for this code, marking the entry as used.
+   *
+   * @return a completed submission for the given repo and tag, or null if there is no entry
+   */
+  public static Submission lookup(
+      String copyId,
+      String variant,
+      String treeSha,
+      String repoId,
+      String tag,
+      Date now,
+      QueryRunner q)
+      throws SQLException {
+    Submission result =
+        q.query(
+            "select output, errormessage from submissioncache"
+                + " where copyid=? and variant=? and treesha=?",
+            rs ->
+                rs.next()
+                    ? new Submission(
+                        repoId,
+                        tag,
+                        rs.getString("output"),
+                        0,
+                        rs.getString("errormessage"),
+                        Submission.STATUS_COMPLETE,
+                        now,
+                        false)
+                    : null,
+            copyId,
+            variant,
+            treeSha);
+    if (result != null) {
+      q.update(
+          "update submissioncache set lastused=? where copyid=? and variant=? and treesha=?",
+          new Timestamp(now.getTime()),
+          copyId,
+          variant,
+          treeSha);
+    }
+    return result;
+  }
+
+  /** Record the result of testing this code, replacing any existing entry. */
+  public static void put(
+      String copyId,
+      String variant,
+      String treeSha,
+      Submission submission,
+      Date now,
+      QueryRunner q)
+      throws SQLException {
+    q.update(
+        "delete from submissioncache where copyid=? and variant=? and treesha=?",
+        copyId,
+        variant,
+        treeSha);
+    q.update(
+        "insert into submissioncache (copyid,variant,treesha,output,errormessage,lastused)"
+            + " values (?,?,?,?,?,?)",
+        copyId,
+        variant,
+        treeSha,
+        submission.getOutput(),
+        submission.getErrorMessage(),
+        new Timestamp(now.getTime()));
+  }
+
+  /**
+   * Remove the least recently used entries so that at most maxEntries remain. Entries last used at
+   * the same moment as the cut-off are removed together, so slightly fewer may remain.
+   *
+   * @return the number of entries removed
+   */
+  public static int evict(int maxEntries, QueryRunner q) throws SQLException {
+    Timestamp cutoff =
+        q.query(
+            "select lastused from submissioncache order by lastused desc limit 1 offset ?",
+            rs -> rs.next() ? rs.getTimestamp(1) : null,
+            maxEntries);
+    if (cutoff == null) {
+      return 0;
+    }
+    return q.update("delete from submissioncache where lastused <= ?", cutoff);
+  }
+
+  /**
+   * The id of the copy a repo on this task is currently tested against.
+   *
+   * @return the copy id, or null if the task or that copy doesn't exist
+   */
+  public static String getCurrentCopyId(
+      String taskId, boolean usingTestingVersion, QueryRunner q) throws SQLException {
+    String copyId =
+        q.query(
+            "select testingcopyid, registeredcopyid from tasks where taskid=?",
+            rs -> rs.next() ? rs.getString(usingTestingVersion ? 1 : 2) : null,
+            taskId);
+    return copyId == null || copyId.isEmpty() ? null : copyId;
+  }
+}
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
@@ -44,6 +45,7 @@ import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskStorageException;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.BuilderInfo;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.Job;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.JobPriority;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
 
 /**
@@ -386,6 +388,11 @@ public class Task {
               public String getDescription() {
                 return "Storing new registered copy of task " + taskId;
               }
+
+              @Override
+              public String getType() {
+                return "task.storeRegisteredCopy";
+              }
             });
       } catch (TaskStorageException e) {
         registeredBuilder = TaskCopyBuilder.createFailurePlaceholder(sha1, config, e);
@@ -440,6 +447,14 @@ public class Task {
     return testingBuilder.getBuilderInfo();
   }
 
+  /**
+   * A future which completes when the current build of the testing copy finishes. The value is
+   * STATUS_OK if the build succeeded and STATUS_FAILED otherwise.
+   */
+  public CompletableFuture<Integer> getTestingCopyCompletion() {
+    return testingBuilder.getCompletion();
+  }
+
   // *** END METHODS FOR MANAGING TEST COPY ***
 
   /** Schedule (in another thread) building the testing version of this task. */
@@ -483,6 +498,11 @@ public class Task {
               public String getDescription() {
                 return "Storing new testing copy of " + taskId;
               }
+
+              @Override
+              public String getType() {
+                return "task.storeTestingCopy";
+              }
             });
       } catch (TaskStorageException e) {
         testingBuilder = TaskCopyBuilder.createFailurePlaceholder(taskId, config, e);
@@ -566,6 +586,16 @@ public class Task {
             public String getDescription() {
               return "Destroy task copy of task " + taskId;
             }
+
+            @Override
+            public String getType() {
+              return "task.destroyCopy";
+            }
+
+            @Override
+            public JobPriority getPriority() {
+              return JobPriority.MAINTENANCE;
+            }
           });
     }
   }
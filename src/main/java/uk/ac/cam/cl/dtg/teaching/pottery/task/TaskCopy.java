@@ -25,6 +25,7 @@ import java.io.IOException;
 import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
 import uk.ac.cam.cl.dtg.teaching.pottery.TwoPhaseLatch;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.TaskConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.containers.ExecutionPlans;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.InvalidTaskSpecificationException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskStorageException;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.TaskInfo;
@@ -43,6 +44,7 @@ public class TaskCopy implements AutoCloseable {
   private String copyId;
   private TaskConfig config;
   private TaskInfo info;
+  private ExecutionPlans plans;
   private TwoPhaseLatch latch = new TwoPhaseLatch();
 
   /**
@@ -52,7 +54,8 @@ public class TaskCopy implements AutoCloseable {
    * @param taskId the ID of the task itself
    * @param copyId the unique ID for this copy
    * @param config information for tasks
-   * @throws InvalidTaskSpecificationException if we can't load the task specification
+   * @throws InvalidTaskSpecificationException if we can't load the task specification or one of
+   *     its commands is invalid
    * @throws TaskStorageException if the task cannot be accessed
    */
   TaskCopy(String taskId, String copyId, TaskConfig config)
@@ -61,6 +64,7 @@ public class TaskCopy implements AutoCloseable {
     this.copyId = copyId;
     this.config = config;
     this.info = TaskInfos.load(taskId, config.getTaskCopyDir(copyId));
+    this.plans = ExecutionPlans.compile(info);
   }
 
   public String getCopyId() {
@@ -71,6 +75,11 @@ public class TaskCopy implements AutoCloseable {
     return info;
   }
 
+  /** The executions of the task, parsed ready to run. */
+  public ExecutionPlans getPlans() {
+    return plans;
+  }
+
   public File getLocation() {
     return config.getTaskCopyDir(copyId);
   }
@@ -22,6 +22,7 @@ import com.google.common.collect.ImmutableMap;
 import java.io.File;
 import java.net.URI;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.jgit.api.Git;
@@ -34,12 +35,12 @@ import uk.ac.cam.cl.dtg.teaching.pottery.config.TaskConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerExecResponse;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerExecResponse.Status;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
+import uk.ac.cam.cl.dtg.teaching.pottery.containers.ExecutionPlan;
 import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.InvalidTaskSpecificationException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskCopyNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskStorageException;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.BuilderInfo;
-import uk.ac.cam.cl.dtg.teaching.pottery.model.Execution;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.TaskInfo;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.Job;
@@ -65,6 +66,11 @@ public class TaskCopyBuilder {
    * asynchronously.
    */
   private volatile TaskCopy taskCopy;
+  /**
+   * Completes with the final job status once the most recently scheduled build has finished.
+   * Incomplete if the build hasn't been scheduled yet.
+   */
+  private volatile CompletableFuture<Integer> completion = new CompletableFuture<>();
 
   /**
    * Instances of this class should be created by the Task object only. The task object has to
@@ -98,6 +104,11 @@ public class TaskCopyBuilder {
           public String getDescription() {
             return "Copy files into copy of task " + taskId;
           }
+
+          @Override
+          public String getType() {
+            return "task.copyFiles";
+          }
         };
     this.compileTests =
         new Job() {
@@ -119,6 +130,20 @@ public class TaskCopyBuilder {
           public String getDescription() {
             return "Compile tests for task " + taskId;
           }
+
+          @Override
+          public String getType() {
+            return "task.compileTests";
+          }
+
+          @Override
+          public void retriesExhausted() {
+            builderInfo.setException(
+                new TaskStorageException(
+                    "Gave up compiling tests for task " + taskId
+                        + " because the container API was unavailable"));
+            builderInfo.setStatus(BuilderInfo.STATUS_FAILURE);
+          }
         };
   }
 
@@ -134,6 +159,7 @@ public class TaskCopyBuilder {
     if (taskConfig.getTaskCopyDir(copyId).exists()) {
       result.taskCopy = new TaskCopy(taskId, copyId, taskConfig);
       result.builderInfo.setStatus(BuilderInfo.STATUS_SUCCESS);
+      result.completion = CompletableFuture.completedFuture(Job.STATUS_OK);
     } else {
       throw new TaskCopyNotFoundException(
           "Task copy " + copyId + " for task " + taskId + " not found");
@@ -145,6 +171,7 @@ public class TaskCopyBuilder {
   static TaskCopyBuilder createSuccessPlaceholder(String taskId, TaskConfig taskConfig) {
     TaskCopyBuilder result = new TaskCopyBuilder("HEAD", taskId, null, null, taskConfig);
     result.builderInfo.setStatus(BuilderInfo.STATUS_SUCCESS);
+    result.completion = CompletableFuture.completedFuture(Job.STATUS_OK);
     return result;
   }
 
@@ -156,6 +183,7 @@ public class TaskCopyBuilder {
       String taskId, TaskConfig taskConfig, Exception e) {
     TaskCopyBuilder result = new TaskCopyBuilder("INVALID", taskId, null, null, taskConfig);
     result.builderInfo.setException(e);
+    result.completion = CompletableFuture.completedFuture(Job.STATUS_FAILED);
     return result;
   }
 
@@ -174,11 +202,19 @@ public class TaskCopyBuilder {
     synchronized (builderInfo) {
       if (isReplacable()) {
         builderInfo.setStatus(BuilderInfo.STATUS_SCHEDULED);
-        w.schedule(copyFiles, compileTests, continuation);
+        completion = w.schedule(copyFiles, compileTests, continuation);
       }
     }
   }
 
+  /**
+   * A future which completes with STATUS_OK if the build succeeds or STATUS_FAILED if it doesn't.
+   * Use getBuilderInfo for the details.
+   */
+  CompletableFuture<Integer> getCompletion() {
+    return completion;
+  }
+
   BuilderInfo getBuilderInfo() {
     return builderInfo;
   }
@@ -230,7 +266,7 @@ public class TaskCopyBuilder {
 
     builderInfo.setStatus(BuilderInfo.STATUS_COMPILING_TESTS);
 
-    for (Execution compileStep : taskInfo.getTaskCompilation()) {
+    for (ExecutionPlan compileStep : taskCopy.getPlans().getCompilation()) {
       ContainerExecResponse r = containerManager.execTaskCompilation(taskCopy.getLocation(),
           compileStep);
 
@@ -290,7 +326,7 @@ public class TaskCopyBuilder {
         final AtomicBoolean failedAsExpected = new AtomicBoolean(false);
 
         int result = containerManager.runStepsAndOutput(
-            taskCopy, testCodeFolder, taskInfo, variant, new ContainerManager.StepRunnerCallback() {
+            taskCopy, testCodeFolder, variant, new ContainerManager.StepRunnerCallback() {
 
           @Override
           public void setStatus(String status) {
@@ -0,0 +1,75 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.WorkerConfig;
+
+/**
+ * Decides whether the worker can accept new submissions. Work is turned away once the smoothed
+ * queue wait exceeds the configured limit or the queue is too long, so that the queue stays short
+ * enough to drain and the submissions already in it still finish in reasonable time. The smoothed
+ * wait only changes when queued jobs start, so it is ignored while the queue is empty.
+ */
+@Singleton
+public class AdmissionControl {
+
+  private final Worker worker;
+  private final WorkerConfig config;
+
+  @Inject
+  public AdmissionControl(Worker worker, WorkerConfig config) {
+    this.worker = worker;
+    this.config = config;
+  }
+
+  /**
+   * Check whether new work should be accepted.
+   *
+   * @return zero if new work may be scheduled, otherwise an estimate of the number of seconds until
+   *     the worker will have room for it
+   */
+  public long getRetryAfterSeconds() {
+    return computeRetryAfterSeconds(
+        worker.getQueueDepth(), worker.getSmoothedWaitTime(), config);
+  }
+
+  static long computeRetryAfterSeconds(int queueDepth, long smoothedWaitMs, WorkerConfig config) {
+    boolean overloaded = false;
+    long retryAfterMs = 0;
+    long maxWaitMs = config.getAdmissionMaxWaitMs();
+    if (maxWaitMs > 0 && queueDepth > 0 && smoothedWaitMs > maxWaitMs) {
+      // The backlog drains in real time so this is roughly how long until the wait is acceptable
+      overloaded = true;
+      retryAfterMs = smoothedWaitMs - maxWaitMs;
+    }
+    int maxQueueDepth = config.getAdmissionMaxQueueDepth();
+    if (maxQueueDepth > 0 && queueDepth >= maxQueueDepth) {
+      // Time for enough of the queue to start that there is room for one more job
+      overloaded = true;
+      long excess = queueDepth - maxQueueDepth + 1;
+      retryAfterMs = Math.max(retryAfterMs, smoothedWaitMs * excess / queueDepth);
+    }
+    if (!overloaded) {
+      return 0;
+    }
+    return Math.max(1, (retryAfterMs + 999) / 1000);
+  }
+}
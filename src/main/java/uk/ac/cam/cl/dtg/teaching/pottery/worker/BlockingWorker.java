@@ -19,7 +19,10 @@
 package uk.ac.cam.cl.dtg.teaching.pottery.worker;
 
 import com.google.common.collect.ImmutableList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
 import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.JobStatus;
@@ -57,19 +60,29 @@ public class BlockingWorker implements Worker {
     return 0;
   }
 
+  @Override
+  public int getQueueDepth() {
+    return 0;
+  }
+
   @Override
   public List<JobStatus> getQueue() {
     return ImmutableList.of();
   }
 
   @Override
-  public void schedule(Job... jobs) {
-    for (Job j : jobs) {
-      int result = j.execute(taskIndex, repoFactory, containerManager, database);
-      if (result != Job.STATUS_OK) {
-        return;
+  public CompletableFuture<Integer> schedule(JobGraph graph) {
+    Set<JobGraph.Node> succeeded = new HashSet<>();
+    for (JobGraph.Node node : graph.getNodes()) {
+      if (succeeded.containsAll(node.getDependencies())) {
+        int result = node.getJob().execute(taskIndex, repoFactory, containerManager, database);
+        if (result == Job.STATUS_OK) {
+          succeeded.add(node);
+        }
       }
     }
+    return CompletableFuture.completedFuture(
+        succeeded.size() == graph.getNodes().size() ? Job.STATUS_OK : Job.STATUS_FAILED);
   }
 
   @Override
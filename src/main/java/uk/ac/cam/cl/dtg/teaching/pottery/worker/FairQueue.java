@@ -0,0 +1,182 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.WorkerConfig;
+
+/**
+ * Fairness between the repos and tasks which jobs belong to.
+ *
+ * <p>Each repo and task has a virtual clock recording the deadline given to its most recent job.
+ * A new job's deadline is pushed back to at least one spacing interval after the clocks of its
+ * repo and task, so a repo with many queued jobs has them spread out in time and a job from a
+ * lightly loaded repo is served ahead of most of them. This is the VirtualClock form of weighted
+ * fair queuing with the spacing acting as the inverse weight. A job is never pushed back by more
+ * than {@link JobPriority#getMaxFairShareDelayMs()}, so fairness can't put it behind newly
+ * scheduled work of a less urgent class.
+ *
+ * <p>Optionally the number of jobs which may run at once for a single repo or task is capped. A job
+ * over the cap is parked (without holding a thread) and resubmitted when a job with the same key
+ * finishes.
+ */
+class FairQueue {
+
+  /** Only prune stale clocks once there are this many of them. */
+  private static final int PRUNE_THRESHOLD = 1024;
+
+  private final WorkerConfig config;
+  private final Map<String, Long> clocks = new HashMap<>();
+  private final Map<String, Integer> inFlight = new HashMap<>();
+  private final Map<String, Deque<Runnable>> parked = new HashMap<>();
+
+  FairQueue(WorkerConfig config) {
+    this.config = config;
+  }
+
+  private static String repoKey(Job job) {
+    return job.getRepoId() == null ? null : "repo:" + job.getRepoId();
+  }
+
+  private static String taskKey(Job job) {
+    return job.getTaskId() == null ? null : "task:" + job.getTaskId();
+  }
+
+  /**
+   * Work out how much later than its priority deadline this job should be served and advance the
+   * clocks of its repo and task accordingly.
+   *
+   * @param job the first job of a newly scheduled chain
+   * @param deadline the virtual deadline given by the job's priority
+   * @return the additional delay in milliseconds to add to the deadline of each job in the chain
+   */
+  synchronized long getFairShareDelay(Job job, long deadline) {
+    long fairDeadline = deadline;
+    String repoKey = repoKey(job);
+    String taskKey = taskKey(job);
+    if (repoKey != null && config.getFairRepoSpacingMs() > 0) {
+      fairDeadline = Math.max(fairDeadline, nextSlot(repoKey, config.getFairRepoSpacingMs()));
+    } else {
+      repoKey = null;
+    }
+    if (taskKey != null && config.getFairTaskSpacingMs() > 0) {
+      fairDeadline = Math.max(fairDeadline, nextSlot(taskKey, config.getFairTaskSpacingMs()));
+    } else {
+      taskKey = null;
+    }
+    long maxDelay = job.getPriority().getMaxFairShareDelayMs();
+    if (fairDeadline - deadline > maxDelay) {
+      fairDeadline = deadline + maxDelay;
+    }
+    if (repoKey != null) {
+      clocks.put(repoKey, fairDeadline);
+    }
+    if (taskKey != null) {
+      clocks.put(taskKey, fairDeadline);
+    }
+    if (clocks.size() > PRUNE_THRESHOLD) {
+      pruneClocks(deadline);
+    }
+    return fairDeadline - deadline;
+  }
+
+  private long nextSlot(String key, long spacingMs) {
+    Long clock = clocks.get(key);
+    return clock == null ? Long.MIN_VALUE : clock + spacingMs;
+  }
+
+  /** Remove clocks which are too far in the past to affect a new job. */
+  private void pruneClocks(long now) {
+    long maxSpacing = Math.max(config.getFairRepoSpacingMs(), config.getFairTaskSpacingMs());
+    Iterator<Map.Entry<String, Long>> i = clocks.entrySet().iterator();
+    while (i.hasNext()) {
+      if (i.next().getValue() + maxSpacing < now) {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Record that this job is starting if its repo and task are under their in-flight caps.
+   *
+   * @param job the job which is about to run
+   * @param resubmit called to requeue the job if it can't start now
+   * @return true if the job can run, false if it has been parked
+   */
+  synchronized boolean tryStart(Job job, Runnable resubmit) {
+    String repoKey = repoKey(job);
+    String taskKey = taskKey(job);
+    if (isFull(repoKey, config.getMaxInFlightPerRepo())) {
+      park(repoKey, resubmit);
+      return false;
+    }
+    if (isFull(taskKey, config.getMaxInFlightPerTask())) {
+      park(taskKey, resubmit);
+      return false;
+    }
+    increment(repoKey);
+    increment(taskKey);
+    return true;
+  }
+
+  /**
+   * Record that this job has finished.
+   *
+   * @return the parked jobs which should now be resubmitted
+   */
+  synchronized List<Runnable> finish(Job job) {
+    List<Runnable> result = new ArrayList<>();
+    for (String key : new String[] {repoKey(job), taskKey(job)}) {
+      if (key == null) {
+        continue;
+      }
+      inFlight.computeIfPresent(key, (k, v) -> v == 1 ? null : v - 1);
+      Deque<Runnable> waiting = parked.remove(key);
+      if (waiting != null) {
+        result.addAll(waiting);
+      }
+    }
+    return result;
+  }
+
+  /** Number of jobs currently waiting for their repo or task to drop below its cap. */
+  synchronized int getParkedCount() {
+    return parked.values().stream().mapToInt(Deque::size).sum();
+  }
+
+  private boolean isFull(String key, int cap) {
+    return key != null && cap > 0 && inFlight.getOrDefault(key, 0) >= cap;
+  }
+
+  private void increment(String key) {
+    if (key != null) {
+      inFlight.merge(key, 1, Integer::sum);
+    }
+  }
+
+  private void park(String key, Runnable resubmit) {
+    parked.computeIfAbsent(key, k -> new ArrayDeque<>()).add(resubmit);
+  }
+}
@@ -29,6 +29,9 @@ public interface Job {
   int STATUS_FAILED = 1;
   int STATUS_RETRY = 2;
 
+  /** Default limit on the number of times a job is attempted before the worker gives up on it. */
+  int DEFAULT_MAX_ATTEMPTS = 20;
+
   /**
    * Run the required task.
    *
@@ -50,4 +53,68 @@ public interface Job {
    * @return the job description
    */
   String getDescription();
+
+  /**
+   * Scheduling class of the job. Workers which support priorities will run interactive jobs ahead
+   * of background and maintenance jobs.
+   *
+   * @return the priority of the job
+   */
+  default JobPriority getPriority() {
+    return JobPriority.BACKGROUND;
+  }
+
+  /**
+   * The kind of job this is, for example "submission.execute". Workers keep separate timing
+   * statistics for each type.
+   *
+   * @return the type of the job
+   */
+  default String getType() {
+    return "other";
+  }
+
+  /**
+   * The repo this job is working on. Workers use this to share capacity fairly between repos.
+   *
+   * @return the repoId or null if the job doesn't belong to a repo
+   */
+  default String getRepoId() {
+    return null;
+  }
+
+  /**
+   * The task this job is working on. Workers use this to share capacity fairly between tasks.
+   *
+   * @return the taskId or null if the job doesn't belong to a task
+   */
+  default String getTaskId() {
+    return null;
+  }
+
+  /**
+   * The stage of processing this job belongs to. Workers which have separate pools for each stage
+   * will run the job in the pool for this stage.
+   *
+   * @return the stage of the job
+   */
+  default JobStage getStage() {
+    return JobStage.EXECUTE;
+  }
+
+  /**
+   * Maximum number of times this job may be attempted. Each time it returns STATUS_RETRY counts as
+   * one attempt.
+   *
+   * @return the maximum number of attempts
+   */
+  default int getMaxAttempts() {
+    return DEFAULT_MAX_ATTEMPTS;
+  }
+
+  /**
+   * Called by the worker if it gives up on the job because it has asked to be retried too many
+   * times. Use this to record the failure somewhere the user will see it.
+   */
+  default void retriesExhausted() {}
 }
@@ -0,0 +1,115 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A set of jobs with dependencies between them. A job is run once all of the jobs it depends on
+ * have completed with STATUS_OK. If any of them fails (or gives up retrying) then the job is
+ * skipped, along with everything that depends on it. Jobs with no path between them in the graph
+ * may be run at the same time.
+ *
+ * <p>A job can only depend on jobs which were added before it, so the graph can't contain cycles.
+ * Don't add to a graph once it has been scheduled.
+ */
+public class JobGraph {
+
+  private final List<Node> nodes = new ArrayList<>();
+
+  /** A job in the graph. */
+  public static final class Node {
+    private final JobGraph graph;
+    private final Job job;
+    private final int index;
+    private final ImmutableList<Node> dependencies;
+    private final List<Node> dependents = new ArrayList<>();
+
+    private Node(JobGraph graph, Job job, int index, ImmutableList<Node> dependencies) {
+      this.graph = graph;
+      this.job = job;
+      this.index = index;
+      this.dependencies = dependencies;
+    }
+
+    public Job getJob() {
+      return job;
+    }
+
+    /** Position of this node in the order it was added to the graph. */
+    int getIndex() {
+      return index;
+    }
+
+    List<Node> getDependencies() {
+      return dependencies;
+    }
+
+    List<Node> getDependents() {
+      return Collections.unmodifiableList(dependents);
+    }
+  }
+
+  /**
+   * Add a job to the graph.
+   *
+   * @param job the job to add
+   * @param dependencies the jobs which must complete successfully before this one runs
+   * @return the node for this job, for use as a dependency of later jobs
+   */
+  public Node add(Job job, Node... dependencies) {
+    for (Node d : dependencies) {
+      if (d.graph != this) {
+        throw new IllegalArgumentException(
+            "Dependency " + d.job.getDescription() + " belongs to a different graph");
+      }
+    }
+    Node node = new Node(this, job, nodes.size(), ImmutableList.copyOf(dependencies));
+    for (Node d : dependencies) {
+      d.dependents.add(node);
+    }
+    nodes.add(node);
+    return node;
+  }
+
+  /**
+   * Create a graph which runs the jobs one after another, stopping at the first one which doesn't
+   * succeed.
+   */
+  public static JobGraph chain(Job... jobs) {
+    JobGraph graph = new JobGraph();
+    Node previous = null;
+    for (Job job : jobs) {
+      previous = previous == null ? graph.add(job) : graph.add(job, previous);
+    }
+    return graph;
+  }
+
+  /** All the nodes in the order they were added, which is an order that respects dependencies. */
+  List<Node> getNodes() {
+    return Collections.unmodifiableList(nodes);
+  }
+
+  boolean isEmpty() {
+    return nodes.isEmpty();
+  }
+}
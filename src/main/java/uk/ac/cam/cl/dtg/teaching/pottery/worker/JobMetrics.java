@@ -0,0 +1,76 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Histograms of how long jobs wait in the queue, how long they run for and how many attempts they
+ * need, kept separately for each job type.
+ */
+class JobMetrics {
+
+  private static class TypeMetrics {
+    private final Histogram waitMs = new Histogram();
+    private final Histogram runMs = new Histogram();
+    private final Histogram attempts = new Histogram();
+  }
+
+  private final ConcurrentHashMap<String, TypeMetrics> metrics = new ConcurrentHashMap<>();
+
+  private TypeMetrics get(String type) {
+    return metrics.computeIfAbsent(type, t -> new TypeMetrics());
+  }
+
+  void recordWait(String type, long waitMs) {
+    get(type).waitMs.record(waitMs);
+  }
+
+  void recordRun(String type, long runMs) {
+    get(type).runMs.record(runMs);
+  }
+
+  /** Record the number of attempts a job needed once it has succeeded, failed or given up. */
+  void recordAttempts(String type, int attempts) {
+    get(type).attempts.record(attempts);
+  }
+
+  /** Summary of the histograms for each job type. */
+  Map<String, Map<String, Long>> toMap() {
+    Map<String, Map<String, Long>> result = new TreeMap<>();
+    for (Map.Entry<String, TypeMetrics> e : metrics.entrySet()) {
+      Map<String, Long> summary = new TreeMap<>();
+      summarise(summary, "waitMs", e.getValue().waitMs);
+      summarise(summary, "runMs", e.getValue().runMs);
+      summarise(summary, "attempts", e.getValue().attempts);
+      result.put(e.getKey(), summary);
+    }
+    return result;
+  }
+
+  private static void summarise(Map<String, Long> summary, String name, Histogram histogram) {
+    summary.put(name + ".count", histogram.getCount());
+    summary.put(name + ".p50", histogram.getPercentile(50));
+    summary.put(name + ".p95", histogram.getPercentile(95));
+    summary.put(name + ".p99", histogram.getPercentile(99));
+    summary.put(name + ".max", histogram.getMax());
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduling class of a job. Jobs in a more urgent class are run before jobs in a less urgent
+ * class, but each class only gets a fixed head start: a job which has been waiting for longer than
+ * its aging offset is treated as if it was interactive so that background work is never starved.
+ */
+public enum JobPriority {
+
+  /** Work that a user is waiting on, e.g. testing a submission. */
+  INTERACTIVE(0),
+
+  /** Work that nobody is polling for right now, e.g. building a copy of a task. */
+  BACKGROUND(TimeUnit.SECONDS.toMillis(30)),
+
+  /** Housekeeping which can wait until the worker is otherwise idle, e.g. deleting files. */
+  MAINTENANCE(TimeUnit.MINUTES.toMillis(2));
+
+  private final long agingOffsetMs;
+
+  JobPriority(long agingOffsetMs) {
+    this.agingOffsetMs = agingOffsetMs;
+  }
+
+  /**
+   * Compute the virtual deadline for a job of this class. The worker runs jobs in order of their
+   * virtual deadline.
+   *
+   * @param enqueueTime the time (in milliseconds) at which the job was scheduled
+   * @return the time after which this job should be run in preference to newly scheduled
+   *     interactive work
+   */
+  long getVirtualDeadline(long enqueueTime) {
+    return enqueueTime + agingOffsetMs;
+  }
+
+  /**
+   * The most that fair sharing between repos and tasks may push back the deadline of a job of this
+   * class. This is the gap to the aging offset of the next less urgent class, so that a job is
+   * never put behind work of that class which was scheduled at the same time.
+   *
+   * @return the maximum delay in milliseconds
+   */
+  long getMaxFairShareDelayMs() {
+    JobPriority[] classes = values();
+    if (ordinal() == classes.length - 1) {
+      return Long.MAX_VALUE;
+    }
+    return classes[ordinal() + 1].agingOffsetMs - agingOffsetMs;
+  }
+}
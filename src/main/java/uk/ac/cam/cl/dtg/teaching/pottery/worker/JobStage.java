@@ -0,0 +1,35 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+/**
+ * The kind of resource a job mostly waits on. A staged worker gives each stage its own queue and
+ * threads so that, for example, checking out the next submission can proceed whilst the current
+ * one is running in a container.
+ */
+public enum JobStage {
+  /** Cloning or otherwise reading git repositories. */
+  CHECKOUT,
+
+  /** Running containers. */
+  EXECUTE,
+
+  /** Writing results to the database. */
+  PERSIST
+}
@@ -0,0 +1,96 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.WorkerConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
+import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
+
+/**
+ * Worker which divides repos between a fixed number of single threaded lanes by hashing the
+ * repoId. Every job for a repo runs on the same lane, so jobs for one repo run one at a time in
+ * queue order and don't contend with each other for the repo's lock, while jobs for repos on
+ * different lanes run in parallel.
+ *
+ * <p>Jobs which don't belong to a repo (such as building task copies) run on the ordinary pool,
+ * which is the one controlled by rebuildThreadPool and the autoscaler. The number of lanes is
+ * fixed from {@link WorkerConfig} since changing it would move repos between lanes.
+ */
+@Singleton
+public class PartitionedWorker extends ThreadPoolWorker {
+
+  private final ImmutableList<ThreadPoolExecutor> lanes;
+
+  /** Creates a new PartitionedWorker. */
+  @Inject
+  public PartitionedWorker(
+      TaskIndex taskIndex,
+      RepoFactory repoFactory,
+      ContainerManager containerManager,
+      Database database,
+      WorkerConfig config) {
+    super(taskIndex, repoFactory, containerManager, database, config);
+    if (config.getPartitionLanes() < 1) {
+      throw new IllegalArgumentException("Partitioned worker must have at least one lane");
+    }
+    ImmutableList.Builder<ThreadPoolExecutor> builder = ImmutableList.builder();
+    for (int i = 0; i < config.getPartitionLanes(); i++) {
+      builder.add(createThreadPool(1));
+    }
+    this.lanes = builder.build();
+  }
+
+  @Override
+  protected ThreadPoolExecutor getThreadPool(Job job) {
+    String repoId = job.getRepoId();
+    if (repoId == null) {
+      return super.getThreadPool(job);
+    }
+    return lanes.get(Math.floorMod(repoId.hashCode(), lanes.size()));
+  }
+
+  @Override
+  public Map<String, String> getStatistics() {
+    Map<String, String> result = new TreeMap<>(super.getStatistics());
+    for (int i = 0; i < lanes.size(); i++) {
+      ThreadPoolExecutor lane = lanes.get(i);
+      String prefix = "lane." + i + ".";
+      result.put(prefix + "activeThreads", String.valueOf(lane.getActiveCount()));
+      result.put(prefix + "queueSize", String.valueOf(lane.getQueue().size()));
+      result.put(prefix + "completedJobs", String.valueOf(lane.getCompletedTaskCount()));
+    }
+    return result;
+  }
+
+  @Override
+  public void stop() {
+    super.stop();
+    for (ThreadPoolExecutor lane : lanes) {
+      lane.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.WorkerConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
+import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
+
+/**
+ * Worker with a separate queue and pool of threads for each {@link JobStage}. A chain of jobs
+ * moves from pool to pool as it progresses, so the checkout of one submission and the storing of
+ * another's result don't have to wait for a thread which is running a container.
+ *
+ * <p>The size of the execute pool is the one controlled by rebuildThreadPool and the autoscaler.
+ * The other pools have fixed sizes from {@link WorkerConfig}.
+ */
+@Singleton
+public class StagedWorker extends ThreadPoolWorker {
+
+  private final Map<JobStage, ThreadPoolExecutor> stagePools = new EnumMap<>(JobStage.class);
+
+  /** Creates a new StagedWorker. */
+  @Inject
+  public StagedWorker(
+      TaskIndex taskIndex,
+      RepoFactory repoFactory,
+      ContainerManager containerManager,
+      Database database,
+      WorkerConfig config) {
+    super(taskIndex, repoFactory, containerManager, database, config);
+    stagePools.put(JobStage.CHECKOUT, createThreadPool(config.getCheckoutThreads()));
+    stagePools.put(JobStage.PERSIST, createThreadPool(config.getPersistThreads()));
+  }
+
+  @Override
+  protected ThreadPoolExecutor getThreadPool(JobStage stage) {
+    ThreadPoolExecutor pool = stagePools.get(stage);
+    return pool != null ? pool : super.getThreadPool(stage);
+  }
+
+  @Override
+  public Map<String, String> getStatistics() {
+    Map<String, String> result = new TreeMap<>(super.getStatistics());
+    for (JobStage stage : JobStage.values()) {
+      ThreadPoolExecutor pool = getThreadPool(stage);
+      String prefix = "stage." + stage.name().toLowerCase() + ".";
+      result.put(prefix + "numThreads", String.valueOf(pool.getCorePoolSize()));
+      result.put(prefix + "activeThreads", String.valueOf(pool.getActiveCount()));
+      result.put(prefix + "queueSize", String.valueOf(pool.getQueue().size()));
+      result.put(prefix + "completedJobs", String.valueOf(pool.getCompletedTaskCount()));
+    }
+    return result;
+  }
+
+  @Override
+  public void stop() {
+    super.stop();
+    for (ThreadPoolExecutor pool : stagePools.values()) {
+      pool.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.WorkerConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
+import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
+
+/**
+ * Worker which starts a thread for every scheduled job rather than queueing jobs for a small pool.
+ * Most of the time in a job is spent blocked on git, the database or the container API so this
+ * lets checkouts and database work for waiting submissions overlap with running containers. The
+ * containers running at once should be limited with the maxConcurrentContainers and
+ * containerMemoryBudgetMegabytes parameters instead of the number of threads.
+ *
+ * <p>Idle threads exit after a minute. The thread count is capped as a safety measure; if the cap
+ * is reached then jobs queue in priority order as they do in {@link ThreadPoolWorker}.
+ *
+ * <p>Requests to resize the pool, whether from the API or the autoscaler, are ignored.
+ */
+@Singleton
+public class ThreadPerJobWorker extends ThreadPoolWorker {
+
+  /** Upper bound on the number of threads, to protect the server if something goes wrong. */
+  private static final int MAX_THREADS = 256;
+
+  private static final long IDLE_THREAD_TIMEOUT_SECONDS = 60;
+
+  private final ContainerManager containerManager;
+
+  /** Creates a new ThreadPerJobWorker. */
+  @Inject
+  public ThreadPerJobWorker(
+      TaskIndex taskIndex,
+      RepoFactory repoFactory,
+      ContainerManager containerManager,
+      Database database,
+      WorkerConfig config) {
+    super(taskIndex, repoFactory, containerManager, database, config, createThreadPool());
+    this.containerManager = containerManager;
+  }
+
+  /**
+   * The container limit if there is one. Otherwise jobs are only limited by the CPU so assume one
+   * per core.
+   */
+  @Override
+  public int getMaxConcurrency() {
+    int limit = containerManager == null ? 0 : containerManager.getMaxConcurrentContainers();
+    return limit > 0 ? limit : Runtime.getRuntime().availableProcessors();
+  }
+
+  /** Does nothing: the concurrency of this worker is limited by the container limits instead. */
+  @Override
+  public void rebuildThreadPool(int numThreads) {
+    LOG.debug("Ignoring request to resize thread-per-job worker to {} threads", numThreads);
+  }
+
+  private static ThreadPoolExecutor createThreadPool() {
+    ThreadPoolExecutor threadPool =
+        new ThreadPoolExecutor(
+            MAX_THREADS,
+            MAX_THREADS,
+            IDLE_THREAD_TIMEOUT_SECONDS,
+            TimeUnit.SECONDS,
+            new PriorityBlockingQueue<>());
+    threadPool.allowCoreThreadTimeOut(true);
+    return threadPool;
+  }
+}
@@ -18,36 +18,74 @@
 
 package uk.ac.cam.cl.dtg.teaching.pottery.worker;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
+import java.util.Set;
 import java.util.TreeSet;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.WorkerConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
 import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.JobStatus;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
 
+/**
+ * Worker which runs jobs on a fixed size pool of threads. Waiting jobs are held in a priority
+ * queue ordered by the virtual deadline of their {@link JobPriority} so that interactive work
+ * overtakes queued background work.
+ *
+ * <p>Deadlines are also adjusted by a {@link FairQueue} so that a single busy repo or task can't
+ * starve the others, and the number of jobs running at once for one repo or task can be capped.
+ *
+ * <p>Jobs which ask to be retried are handed to a separate scheduler and only re-enter the queue
+ * once their backoff delay has expired, so waiting for a retry doesn't occupy a pool thread.
+ */
 @Singleton
 public class ThreadPoolWorker implements Worker {
 
   protected static final Logger LOG = LoggerFactory.getLogger(ThreadPoolWorker.class);
 
+  /** Delay before the first retry of a job. Each subsequent retry doubles this. */
+  private static final long INITIAL_RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(2);
+
+  /** Upper bound on the delay between retries of a job. */
+  private static final long MAX_RETRY_DELAY_MS = TimeUnit.MINUTES.toMillis(1);
+
   private final SortedSet<JobStatus> queue = new TreeSet<>();
   private final TaskIndex taskIndex;
   private final RepoFactory repoFactory;
   private final ContainerManager containerManager;
   private final Database database;
   private final Object smoothedWaitTimeMutex = new Object();
+  private final AtomicLong sequenceNumber = new AtomicLong(0);
+  private final AtomicInteger queuedJobs = new AtomicInteger(0);
+  private final JobMetrics jobMetrics = new JobMetrics();
+  private final ScheduledExecutorService retryScheduler =
+      Executors.newSingleThreadScheduledExecutor();
+
+  /** Graphs which have been scheduled and haven't completed yet. */
+  private final Set<GraphRun> activeRuns = ConcurrentHashMap.newKeySet();
 
-  private ExecutorService threadPool;
+  private final ThreadPoolExecutor threadPool;
+  private final FairQueue fairQueue;
   private int numThreads;
   private long smoothedWaitTime = 0;
 
@@ -57,29 +95,69 @@ public class ThreadPoolWorker implements Worker {
       TaskIndex taskIndex,
       RepoFactory repoFactory,
       ContainerManager containerManager,
-      Database database) {
+      Database database,
+      WorkerConfig config) {
+    this(taskIndex, repoFactory, containerManager, database, config, createThreadPool(1));
+  }
+
+  /** Creates a new ThreadPoolWorker which runs jobs on the given executor. */
+  protected ThreadPoolWorker(
+      TaskIndex taskIndex,
+      RepoFactory repoFactory,
+      ContainerManager containerManager,
+      Database database,
+      WorkerConfig config,
+      ThreadPoolExecutor threadPool) {
     super();
-    this.threadPool = Executors.newFixedThreadPool(1);
-    this.numThreads = 1;
+    this.threadPool = threadPool;
+    this.fairQueue = new FairQueue(config);
+    this.numThreads = threadPool.getMaximumPoolSize();
     this.taskIndex = taskIndex;
     this.repoFactory = repoFactory;
     this.containerManager = containerManager;
     this.database = database;
   }
 
+  /**
+   * Change the number of threads in the pool. Running jobs are not interrupted: if the pool shrinks
+   * then surplus threads exit once they finish their current job.
+   */
   @Override
   public synchronized void rebuildThreadPool(int numThreads) {
-    final List<Runnable> pending = this.threadPool.shutdownNow();
-    try {
-      this.threadPool.awaitTermination(1, TimeUnit.MINUTES);
-    } catch (InterruptedException e) {
-      e.printStackTrace();
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("Thread pool must have at least one thread");
     }
-    this.threadPool = Executors.newFixedThreadPool(numThreads);
-    this.numThreads = numThreads;
-    for (Runnable r : pending) {
-      this.threadPool.execute(r);
+    // The core size must never exceed the maximum so change them in the appropriate order
+    if (numThreads > threadPool.getMaximumPoolSize()) {
+      threadPool.setMaximumPoolSize(numThreads);
+      threadPool.setCorePoolSize(numThreads);
+    } else {
+      threadPool.setCorePoolSize(numThreads);
+      threadPool.setMaximumPoolSize(numThreads);
     }
+    LOG.info("Resized thread pool from {} to {} threads", this.numThreads, numThreads);
+    this.numThreads = numThreads;
+  }
+
+  /**
+   * The executor to run jobs of the given stage on. Subclasses can override this to send
+   * different kinds of job to different pools.
+   */
+  protected ThreadPoolExecutor getThreadPool(JobStage stage) {
+    return threadPool;
+  }
+
+  /**
+   * The executor to run the given job on. By default this is the pool for the job's stage.
+   * Subclasses can override this to route jobs on other properties such as their repo.
+   */
+  protected ThreadPoolExecutor getThreadPool(Job job) {
+    return getThreadPool(job.getStage());
+  }
+
+  protected static ThreadPoolExecutor createThreadPool(int numThreads) {
+    return new ThreadPoolExecutor(
+        numThreads, numThreads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>());
   }
 
   @Override
@@ -87,6 +165,23 @@ public class ThreadPoolWorker implements Worker {
     return numThreads;
   }
 
+  @Override
+  public int getQueueDepth() {
+    return queuedJobs.get();
+  }
+
+  @Override
+  public Map<String, Map<String, Long>> getJobMetrics() {
+    return jobMetrics.toMap();
+  }
+
+  /** Submit a job iteration to the appropriate pool. */
+  private void enqueue(JobIteration iteration) {
+    iteration.submitTime = System.currentTimeMillis();
+    queuedJobs.incrementAndGet();
+    getThreadPool(iteration.node.getJob()).execute(iteration);
+  }
+
   @Override
   public List<JobStatus> getQueue() {
     synchronized (queue) {
@@ -95,13 +190,35 @@ public class ThreadPoolWorker implements Worker {
   }
 
   /**
-   * Schedule a sequence of jobs.
+   * Schedule a graph of jobs. The jobs with no dependencies are queued straight away and the others
+   * as their dependencies complete.
    *
-   * @param jobs the jobs to be run in sequence (if a job fails then we stop there)
+   * @param graph the jobs to run
+   * @return a future which completes with the outcome of the graph
    */
   @Override
-  public synchronized void schedule(Job... jobs) {
-    threadPool.execute(new JobIteration(jobs, 0, false, System.currentTimeMillis()));
+  public synchronized CompletableFuture<Integer> schedule(JobGraph graph) {
+    if (graph.isEmpty()) {
+      return CompletableFuture.completedFuture(Job.STATUS_OK);
+    }
+    long now = System.currentTimeMillis();
+    Job first = graph.getNodes().get(0).getJob();
+    long fairShareDelay =
+        fairQueue.getFairShareDelay(first, first.getPriority().getVirtualDeadline(now));
+    GraphRun run = new GraphRun(graph, now, fairShareDelay);
+    activeRuns.add(run);
+    run.completion.whenComplete((result, e) -> activeRuns.remove(run));
+    for (JobGraph.Node node : graph.getNodes()) {
+      if (node.getDependencies().isEmpty()) {
+        enqueue(new JobIteration(run, node, 1));
+      }
+    }
+    return run.completion;
+  }
+
+  @Override
+  public Map<String, String> getStatistics() {
+    return ImmutableMap.of("fairQueue.parkedJobs", String.valueOf(fairQueue.getParkedCount()));
   }
 
   @Override
@@ -111,71 +228,214 @@ public class ThreadPoolWorker implements Worker {
     }
   }
 
+  /**
+   * Stop running jobs. Jobs which are queued, parked or waiting to be retried are dropped and the
+   * graphs they belong to complete with STATUS_FAILED so that nothing waits for them forever.
+   */
   @Override
   public void stop() {
     LOG.info("Shutting down thread pool");
+    retryScheduler.shutdownNow();
     threadPool.shutdownNow();
+    for (GraphRun run : activeRuns) {
+      run.abandon();
+    }
+  }
+
+  /**
+   * Compute how long to wait before the next attempt of a job. The delay grows exponentially with
+   * the number of attempts so far and has random jitter added so that jobs which failed together
+   * don't all retry together.
+   *
+   * @param attempt the number of attempts made so far (starting at 1)
+   * @return the delay in milliseconds
+   */
+  static long getRetryDelayMs(int attempt) {
+    long delay =
+        Math.min(MAX_RETRY_DELAY_MS, INITIAL_RETRY_DELAY_MS << Math.min(attempt - 1, 20));
+    return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+  }
+
+  private void scheduleRetry(GraphRun run, JobGraph.Node node, int attempt) {
+    Job job = node.getJob();
+    if (attempt >= job.getMaxAttempts()) {
+      LOG.error("Giving up on job {} after {} attempts", job.getDescription(), attempt);
+      jobMetrics.recordAttempts(job.getType(), attempt);
+      job.retriesExhausted();
+      run.failed(node);
+      return;
+    }
+    long delay = getRetryDelayMs(attempt);
+    LOG.info("Retrying job {} in {}ms", job.getDescription(), delay);
+    JobIteration retry = new JobIteration(run, node, attempt + 1);
+    retryScheduler.schedule(() -> enqueue(retry), delay, TimeUnit.MILLISECONDS);
   }
 
-  private class JobIteration implements Runnable {
-    private Job[] jobs;
-    private int index;
+  /** The progress of one scheduled graph of jobs. */
+  private static class GraphRun {
+    /** The time at which the graph was scheduled. */
+    private final long enqueueTime;
+
+    /** The delay added to the graph's deadlines for fairness between repos. */
+    private final long fairShareDelay;
+
+    /** Number of dependencies of each node which have not completed yet. */
+    private final AtomicIntegerArray remainingDependencies;
+
+    /** Set to 1 for each node once it has succeeded or it is known that it will never run. */
+    private final AtomicIntegerArray settled;
+
+    private final AtomicInteger unsettledNodes;
+
+    private volatile boolean anyFailed = false;
+
+    private final CompletableFuture<Integer> completion = new CompletableFuture<>();
+
+    GraphRun(JobGraph graph, long enqueueTime, long fairShareDelay) {
+      this.enqueueTime = enqueueTime;
+      this.fairShareDelay = fairShareDelay;
+      List<JobGraph.Node> nodes = graph.getNodes();
+      this.remainingDependencies = new AtomicIntegerArray(nodes.size());
+      for (JobGraph.Node node : nodes) {
+        remainingDependencies.set(node.getIndex(), node.getDependencies().size());
+      }
+      this.settled = new AtomicIntegerArray(nodes.size());
+      this.unsettledNodes = new AtomicInteger(nodes.size());
+    }
+
+    /** Record that this node has completed successfully. */
+    void succeeded(JobGraph.Node node) {
+      settle(node);
+    }
+
+    /** Record that this node has failed, so neither it nor anything depending on it will run. */
+    void failed(JobGraph.Node node) {
+      anyFailed = true;
+      skip(node);
+    }
+
+    private void skip(JobGraph.Node node) {
+      if (settle(node)) {
+        for (JobGraph.Node dependent : node.getDependents()) {
+          skip(dependent);
+        }
+      }
+    }
+
+    private boolean settle(JobGraph.Node node) {
+      if (!settled.compareAndSet(node.getIndex(), 0, 1)) {
+        return false;
+      }
+      if (unsettledNodes.decrementAndGet() == 0) {
+        completion.complete(anyFailed ? Job.STATUS_FAILED : Job.STATUS_OK);
+      }
+      return true;
+    }
+
+    /** Give up on the graph because the worker is stopping. */
+    void abandon() {
+      anyFailed = true;
+      completion.complete(Job.STATUS_FAILED);
+    }
+
+    /**
+     * Record that one of the dependencies of this node has completed successfully.
+     *
+     * @return true if the node is now ready to run
+     */
+    boolean dependencyCompleted(JobGraph.Node node) {
+      return remainingDependencies.decrementAndGet(node.getIndex()) == 0;
+    }
+  }
+
+  private class JobIteration implements Runnable, Comparable<JobIteration> {
+    private GraphRun run;
+    private JobGraph.Node node;
     private JobStatus status;
-    private boolean withPause;
-    private long enqueueTime;
+    private int attempt;
+    private long virtualDeadline;
+    private long sequence;
+    private volatile long submitTime;
 
     /**
-     * Create an iteration ready to execute the nth item of the jobs list.
+     * Create an iteration ready to execute a job from a graph.
      *
-     * @param jobs an array of jobs to execute
-     * @param index the index of the job to execute from the array
-     * @param withPause set to true if you want a 2 second pause before running the job (e.g. for
-     *     retries)
+     * @param run the scheduled graph the job belongs to
+     * @param node the node holding the job to execute
+     * @param attempt the number of times this job has been attempted including this one
      */
-    JobIteration(Job[] jobs, int index, boolean withPause, long enqeueTime) {
+    JobIteration(GraphRun run, JobGraph.Node node, int attempt) {
       super();
-      this.jobs = jobs;
-      this.index = index;
-      this.withPause = withPause;
-      this.status = new JobStatus(jobs[index].getDescription());
-      this.enqueueTime = enqeueTime;
+      this.run = run;
+      this.node = node;
+      this.attempt = attempt;
+      this.status = new JobStatus(node.getJob().getDescription());
+      this.virtualDeadline =
+          node.getJob().getPriority().getVirtualDeadline(run.enqueueTime) + run.fairShareDelay;
+      this.sequence = sequenceNumber.incrementAndGet();
       synchronized (queue) {
         queue.add(status);
       }
     }
 
+    @Override
+    public int compareTo(JobIteration o) {
+      // Later jobs in a graph keep the enqueue time of the graph so that work that has started is
+      // finished before newer work of the same priority
+      int result = Long.compare(virtualDeadline, o.virtualDeadline);
+      return result != 0 ? result : Long.compare(sequence, o.sequence);
+    }
+
+    private void resubmitParked() {
+      queuedJobs.incrementAndGet();
+      getThreadPool(node.getJob()).execute(this);
+    }
+
     @Override
     public void run() {
+      queuedJobs.decrementAndGet();
+      Job job = node.getJob();
+      if (!fairQueue.tryStart(job, this::resubmitParked)) {
+        // Parked until another job from the same repo or task finishes
+        return;
+      }
       status.setStatus(JobStatus.STATUS_RUNNING);
       long startTime = System.currentTimeMillis();
-      if (withPause) {
-        try {
-          Thread.sleep(2000);
-        } catch (InterruptedException e) {
-          LOG.error("Interrupted", e);
-        }
-      }
+      jobMetrics.recordWait(job.getType(), startTime - submitTime);
       try {
-        int result = jobs[index].execute(taskIndex, repoFactory, containerManager, database);
+        int result = job.execute(taskIndex, repoFactory, containerManager, database);
+        jobMetrics.recordRun(job.getType(), System.currentTimeMillis() - startTime);
         if (result == Job.STATUS_OK) {
-          if (index < jobs.length - 1) {
-            threadPool.execute(new JobIteration(jobs, index + 1, false, enqueueTime));
+          for (JobGraph.Node dependent : node.getDependents()) {
+            if (run.dependencyCompleted(dependent)) {
+              enqueue(new JobIteration(run, dependent, 1));
+            }
           }
+          run.succeeded(node);
         } else if (result == Job.STATUS_RETRY) {
-          threadPool.execute(new JobIteration(jobs, index, true, enqueueTime));
+          scheduleRetry(run, node, attempt);
+        } else {
+          run.failed(node);
+        }
+        if (result == Job.STATUS_OK || result == Job.STATUS_FAILED) {
+          jobMetrics.recordAttempts(job.getType(), attempt);
         }
 
-        if ((result == Job.STATUS_OK || result == Job.STATUS_FAILED) && index == 0) {
+        if ((result == Job.STATUS_OK || result == Job.STATUS_FAILED) && node.getIndex() == 0) {
           // We've run the first step to completion so update the waitTime
           synchronized (smoothedWaitTimeMutex) {
             smoothedWaitTime =
-                ((startTime - enqueueTime) >> 3) + smoothedWaitTime - (smoothedWaitTime >> 3);
+                ((startTime - run.enqueueTime) >> 3) + smoothedWaitTime - (smoothedWaitTime >> 3);
           }
         }
 
       } catch (Exception e) {
         LOG.error("Unhandled exception in worker", e);
+        run.failed(node);
       } finally {
+        for (Runnable r : fairQueue.finish(job)) {
+          r.run();
+        }
         synchronized (queue) {
           queue.remove(status);
         }
@@ -18,7 +18,10 @@
 
 package uk.ac.cam.cl.dtg.teaching.pottery.worker;
 
+import com.google.common.collect.ImmutableMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import uk.ac.cam.cl.dtg.teaching.pottery.Stoppable;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.JobStatus;
 
@@ -28,12 +31,55 @@ public interface Worker extends Stoppable {
 
   int getNumThreads();
 
+  /**
+   * The number of jobs this worker will run at once. This is the number of threads unless
+   * something else limits it.
+   */
+  default int getMaxConcurrency() {
+    return getNumThreads();
+  }
+
   List<JobStatus> getQueue();
 
-  void schedule(Job... jobs);
+  /** Number of jobs waiting for a thread (not including those currently running). */
+  int getQueueDepth();
+
+  /**
+   * Schedule a sequence of jobs.
+   *
+   * @param jobs the jobs to be run in sequence (if a job fails then we stop there)
+   * @return a future which completes with STATUS_OK once every job has succeeded, or STATUS_FAILED
+   *     once the sequence has stopped at a job which failed
+   */
+  default CompletableFuture<Integer> schedule(Job... jobs) {
+    return schedule(JobGraph.chain(jobs));
+  }
+
+  /**
+   * Schedule a graph of jobs. Each job runs once the jobs it depends on have succeeded.
+   *
+   * @param graph the jobs to run
+   * @return a future which completes with STATUS_OK once every job has succeeded, or STATUS_FAILED
+   *     once a job has failed and everything still able to run has finished
+   */
+  CompletableFuture<Integer> schedule(JobGraph graph);
 
   long getSmoothedWaitTime();
 
+  /**
+   * Percentiles of queue wait time, run time and attempts for each type of job.
+   *
+   * @return a map from job type to named values
+   */
+  default Map<String, Map<String, Long>> getJobMetrics() {
+    return ImmutableMap.of();
+  }
+
+  /** Additional statistics about this worker to include in the server status. */
+  default Map<String, String> getStatistics() {
+    return ImmutableMap.of();
+  }
+
   @Override
   void stop();
 }
@@ -0,0 +1,128 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.Stoppable;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.WorkerConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
+
+/**
+ * Periodically adjusts the size of the worker's thread pool. Threads are added one at a time while
+ * jobs are queueing for longer than the target wait time, and removed one at a time when the queue
+ * has been empty for two consecutive checks or when the container API is overloaded.
+ */
+@Singleton
+public class WorkerAutoscaler implements Stoppable {
+
+  protected static final Logger LOG = LoggerFactory.getLogger(WorkerAutoscaler.class);
+
+  private final Worker worker;
+  private final ContainerManager containerManager;
+  private final WorkerConfig config;
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  private boolean wasIdle = false;
+
+  /** Create a new autoscaler. Call start() to begin adjusting the pool. */
+  @Inject
+  public WorkerAutoscaler(Worker worker, ContainerManager containerManager, WorkerConfig config) {
+    this.worker = worker;
+    this.containerManager = containerManager;
+    this.config = config;
+  }
+
+  /** Start autoscaling if it is enabled in the configuration. */
+  public void start() {
+    if (!config.isAutoscaleEnabled()) {
+      return;
+    }
+    LOG.info(
+        "Autoscaling worker between {} and {} threads",
+        config.getAutoscaleMinThreads(),
+        config.getAutoscaleMaxThreads());
+    scheduler.scheduleWithFixedDelay(
+        this::adjust,
+        config.getAutoscaleIntervalMs(),
+        config.getAutoscaleIntervalMs(),
+        TimeUnit.MILLISECONDS);
+  }
+
+  private void adjust() {
+    try {
+      int current = worker.getNumThreads();
+      int queueDepth = worker.getQueueDepth();
+      int target =
+          computeTargetThreads(
+              current,
+              queueDepth,
+              wasIdle,
+              worker.getSmoothedWaitTime(),
+              containerManager.getSmoothedCallTime(),
+              config);
+      wasIdle = queueDepth == 0;
+      if (target != current) {
+        worker.rebuildThreadPool(target);
+      }
+    } catch (RuntimeException e) {
+      LOG.error("Failed to adjust worker thread pool", e);
+    }
+  }
+
+  /**
+   * Decide how many threads the pool should have.
+   *
+   * @param current the current number of threads
+   * @param queueDepth the number of jobs waiting for a thread
+   * @param wasIdle true if the queue was also empty at the previous check
+   * @param smoothedWaitMs the smoothed time jobs have waited before starting
+   * @param smoothedCallMs the smoothed time taken by calls to the container API
+   * @param config the autoscaling limits
+   * @return the new number of threads
+   */
+  static int computeTargetThreads(
+      int current,
+      int queueDepth,
+      boolean wasIdle,
+      long smoothedWaitMs,
+      long smoothedCallMs,
+      WorkerConfig config) {
+    int target = current;
+    if (smoothedCallMs > config.getAutoscaleMaxCallTimeMs()) {
+      target = current - 1;
+    } else if (queueDepth > 0 && smoothedWaitMs > config.getAutoscaleTargetWaitMs()) {
+      target = current + 1;
+    } else if (queueDepth == 0 && wasIdle) {
+      target = current - 1;
+    }
+    return Math.max(
+        config.getAutoscaleMinThreads(), Math.min(config.getAutoscaleMaxThreads(), target));
+  }
+
+  @Override
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+}
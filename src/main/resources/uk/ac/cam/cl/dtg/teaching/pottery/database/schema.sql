@@ -82,6 +82,40 @@ CREATE TABLE tasks (
 
 ALTER TABLE tasks OWNER TO pottery;
 
+--
+-- Name: pendingsubmissions; Type: TABLE; Schema: public; Owner: pottery
+--
+
+CREATE TABLE pendingsubmissions (
+    repoid character varying(255) NOT NULL,
+    tag character varying(255) NOT NULL,
+    priority character varying(255) NOT NULL,
+    started boolean DEFAULT false NOT NULL,
+    datescheduled timestamp without time zone NOT NULL,
+    owner character varying(255),
+    leaseexpiry timestamp without time zone,
+    cancelled boolean DEFAULT false NOT NULL
+);
+
+
+ALTER TABLE pendingsubmissions OWNER TO pottery;
+
+--
+-- Name: submissioncache; Type: TABLE; Schema: public; Owner: pottery
+--
+
+CREATE TABLE submissioncache (
+    copyid character varying(255) NOT NULL,
+    variant character varying(255) NOT NULL,
+    treesha character varying(255) NOT NULL,
+    output text,
+    errormessage text,
+    lastused timestamp without time zone NOT NULL
+);
+
+
+ALTER TABLE submissioncache OWNER TO pottery;
+
 --
 -- Name: repos_pkey; Type: CONSTRAINT; Schema: public; Owner: pottery
 --
@@ -106,6 +140,29 @@ ALTER TABLE ONLY tasks
     ADD CONSTRAINT tasks_pkey PRIMARY KEY (taskid);
 
 
+--
+-- Name: pendingsubmissions_pkey; Type: CONSTRAINT; Schema: public; Owner: pottery
+--
+
+ALTER TABLE ONLY pendingsubmissions
+    ADD CONSTRAINT pendingsubmissions_pkey PRIMARY KEY (repoid, tag);
+
+
+--
+-- Name: submissioncache_pkey; Type: CONSTRAINT; Schema: public; Owner: pottery
+--
+
+ALTER TABLE ONLY submissioncache
+    ADD CONSTRAINT submissioncache_pkey PRIMARY KEY (copyid, variant, treesha);
+
+
+--
+-- Name: submissioncache_lastused; Type: INDEX; Schema: public; Owner: pottery
+--
+
+CREATE INDEX submissioncache_lastused ON submissioncache USING btree (lastused);
+
+
 --
 -- Name: public; Type: ACL; Schema: -; Owner: postgres
 --
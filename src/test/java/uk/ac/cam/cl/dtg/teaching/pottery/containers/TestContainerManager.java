@@ -0,0 +1,245 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.containers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.ContainerEnvConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerExecResponse.Status;
+import uk.ac.cam.cl.dtg.teaching.pottery.containers.ExecutionPlans.StepPlan;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.InvalidTaskSpecificationException;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.Execution;
+
+public class TestContainerManager {
+
+  private File testRootDir;
+  private FakeBackend backend;
+  private ContainerManager containerManager;
+
+  /** Create a container manager which runs steps on a fake backend. */
+  @Before
+  public void setup() throws IOException {
+    testRootDir = Files.createTempDir().getCanonicalFile();
+    ContainerEnvConfig config = new ContainerEnvConfig(testRootDir.getPath());
+    FileUtil.mkdirIfNotExists(config.getTempRoot());
+    backend = new FakeBackend();
+    containerManager = new ContainerManager(config, backend);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    containerManager.stop();
+    FileUtil.deleteRecursive(testRootDir);
+  }
+
+  @Test
+  public void getStepDependencies_followsReferencesAndSharedSubmission()
+      throws InvalidTaskSpecificationException {
+    // ARRANGE
+    ImmutableList<StepPlan> steps =
+        ImmutableList.of(
+            step("compile", "compile @SUBMISSION@"),
+            step("lint", "lint @SHARED@"),
+            step("test", "test @SUBMISSION@", "compile", "lint"),
+            step("report", "report @test@", "compile", "lint", "test"));
+
+    // ACT
+    ImmutableList<ImmutableSet<Integer>> dependencies =
+        ContainerManager.getStepDependencies(steps);
+
+    // ASSERT
+    assertThat(dependencies.get(0)).isEmpty();
+    assertThat(dependencies.get(1)).isEmpty();
+    assertThat(dependencies.get(2)).containsExactly(0);
+    assertThat(dependencies.get(3)).containsExactly(2);
+  }
+
+  @Test
+  public void runStepsConcurrently_runsIndependentStepsTogetherAndDependentStepsInOrder()
+      throws Exception {
+    // ARRANGE
+    ImmutableList<StepPlan> steps =
+        ImmutableList.of(
+            step("compile", "compile @SUBMISSION@"),
+            step("lint", "lint @SHARED@"),
+            step("test", "test @SUBMISSION@", "compile", "lint"),
+            step("report", "report @test@", "compile", "lint", "test"));
+    // compile can only finish once lint has started, so they have to run at the same time
+    backend.blockUntilStarted("compile", "lint");
+    Map<String, ContainerExecResponse> stepResults = new HashMap<>();
+
+    // ACT
+    boolean succeeded =
+        containerManager.runStepsConcurrently(
+            name -> new File(testRootDir, name),
+            testRootDir,
+            steps,
+            "default",
+            new NoOpCallback(),
+            new CancellationToken(),
+            stepResults);
+
+    // ASSERT
+    assertThat(succeeded).isTrue();
+    assertThat(stepResults.keySet()).containsExactly("compile", "lint", "test", "report");
+    List<String> events = backend.events;
+    assertThat(events.indexOf("start test")).isGreaterThan(events.indexOf("end compile"));
+    assertThat(events.indexOf("start report")).isGreaterThan(events.indexOf("end test"));
+  }
+
+  @Test
+  public void runStepsConcurrently_stopsStartingStepsAfterFailure() throws Exception {
+    // ARRANGE
+    ImmutableList<StepPlan> steps =
+        ImmutableList.of(
+            step("compile", "compile @SUBMISSION@"),
+            step("test", "test @SUBMISSION@", "compile"));
+    backend.fail("compile");
+
+    // ACT
+    boolean succeeded =
+        containerManager.runStepsConcurrently(
+            name -> new File(testRootDir, name),
+            testRootDir,
+            steps,
+            "default",
+            new NoOpCallback(),
+            new CancellationToken(),
+            new HashMap<>());
+
+    // ASSERT
+    assertThat(succeeded).isTrue();
+    assertThat(backend.events).containsExactly("start compile", "end compile");
+  }
+
+  private static StepPlan step(String name, String program, String... earlierSteps)
+      throws InvalidTaskSpecificationException {
+    ImmutableSet<String> knownBindings =
+        ImmutableSet.<String>builder()
+            .addAll(ContainerManager.STEP_BINDINGS)
+            .add(earlierSteps)
+            .build();
+    return new StepPlan(
+        name, ExecutionPlan.compile(new Execution("image", program, null), knownBindings));
+  }
+
+  private static class NoOpCallback implements ContainerManager.StepRunnerCallback {
+    @Override
+    public void setStatus(String status) {}
+
+    @Override
+    public void recordErrorReason(ContainerExecResponse response, String stepName) {}
+
+    @Override
+    public void setOutput(String output) {}
+  }
+
+  /** Records when each command starts and ends instead of running it. */
+  private static class FakeBackend implements ContainerBackend {
+    private final List<String> events = new CopyOnWriteArrayList<>();
+    private final Map<String, CountDownLatch> started = new HashMap<>();
+    private final Map<String, String> blockedUntil = new HashMap<>();
+    private final List<String> failing = new CopyOnWriteArrayList<>();
+
+    FakeBackend() {
+      for (String name : ImmutableList.of("compile", "lint", "test", "report")) {
+        started.put(name, new CountDownLatch(1));
+      }
+    }
+
+    void blockUntilStarted(String program, String otherProgram) {
+      blockedUntil.put(program, otherProgram);
+    }
+
+    void fail(String program) {
+      failing.add(program);
+    }
+
+    @Override
+    public ContainerExecResponse executeContainer(
+        ExecutionConfig executionConfig, CancellationToken cancellationToken) {
+      String program = executionConfig.command().get(0);
+      events.add("start " + program);
+      started.get(program).countDown();
+      String other = blockedUntil.get(program);
+      try {
+        if (other != null && !started.get(other).await(10, TimeUnit.SECONDS)) {
+          return ContainerExecResponse.create(Status.FAILED_TIMEOUT, program, 0);
+        }
+      } catch (InterruptedException e) {
+        return ContainerExecResponse.create(Status.FAILED_CANCELLED, program, 0);
+      }
+      events.add("end " + program);
+      return ContainerExecResponse.create(
+          failing.contains(program) ? Status.FAILED_EXITCODE : Status.COMPLETED, program, 0);
+    }
+
+    @Override
+    public ApiStatus getApiStatus() {
+      return ApiStatus.OK;
+    }
+
+    @Override
+    public long getSmoothedCallTime() {
+      return 0;
+    }
+
+    @Override
+    public ImmutableMap<String, Long> getSmoothedCallTimes() {
+      return ImmutableMap.of();
+    }
+
+    @Override
+    public long getSmoothedTimeoutOvershoot() {
+      return 0;
+    }
+
+    @Override
+    public String getVersion() {
+      return "fake";
+    }
+
+    @Override
+    public void setTimeoutMultiplier(int multiplier) {}
+
+    @Override
+    public String getInternalMountPath() {
+      return "/mnt";
+    }
+
+    @Override
+    public void stop() {}
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.containers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class TestContainerReaper {
+
+  /** Records each deletion and fails the first failures of them. */
+  private static class FakeDeleter implements ContainerReaper.Deleter {
+    private final List<String> attempts = new CopyOnWriteArrayList<>();
+    private final int failures;
+    private final RuntimeException failure;
+    private final CountDownLatch latch;
+
+    FakeDeleter(int failures, RuntimeException failure, int expectedAttempts) {
+      this.failures = failures;
+      this.failure = failure;
+      this.latch = new CountDownLatch(expectedAttempts);
+    }
+
+    @Override
+    public void delete(String containerId) {
+      attempts.add(containerId);
+      latch.countDown();
+      if (attempts.size() <= failures) {
+        throw failure;
+      }
+    }
+
+    boolean await() throws InterruptedException {
+      return latch.await(10, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void reap_deletesContainer() throws Exception {
+    // ARRANGE
+    FakeDeleter deleter = new FakeDeleter(0, null, 1);
+    ContainerReaper reaper = new ContainerReaper(deleter, 10);
+
+    // ACT
+    reaper.reap("container");
+
+    // ASSERT
+    assertThat(deleter.await()).isTrue();
+    assertThat(deleter.attempts).containsExactly("container");
+    reaper.stop();
+  }
+
+  @Test
+  public void reap_retriesFailedDeletion() throws Exception {
+    // ARRANGE
+    FakeDeleter deleter = new FakeDeleter(2, new RuntimeException("Busy"), 3);
+    ContainerReaper reaper = new ContainerReaper(deleter, 10);
+
+    // ACT
+    reaper.reap("container");
+
+    // ASSERT
+    assertThat(deleter.await()).isTrue();
+    Thread.sleep(100);
+    assertThat(deleter.attempts).containsExactly("container", "container", "container");
+    reaper.stop();
+  }
+
+  @Test
+  public void reap_givesUpAfterMaxAttempts() throws Exception {
+    // ARRANGE
+    FakeDeleter deleter =
+        new FakeDeleter(
+            Integer.MAX_VALUE, new RuntimeException("Busy"), ContainerReaper.MAX_ATTEMPTS);
+    ContainerReaper reaper = new ContainerReaper(deleter, 10);
+
+    // ACT
+    reaper.reap("container");
+
+    // ASSERT
+    assertThat(deleter.await()).isTrue();
+    Thread.sleep(100);
+    assertThat(deleter.attempts).hasSize(ContainerReaper.MAX_ATTEMPTS);
+    reaper.stop();
+    assertThat(deleter.attempts).hasSize(ContainerReaper.MAX_ATTEMPTS);
+  }
+
+  @Test
+  public void reap_doesNotRetryMissingContainer() throws Exception {
+    // ARRANGE
+    FakeDeleter deleter =
+        new FakeDeleter(1, new RuntimeException("No such container: container"), 1);
+    ContainerReaper reaper = new ContainerReaper(deleter, 10);
+
+    // ACT
+    reaper.reap("container");
+
+    // ASSERT
+    assertThat(deleter.await()).isTrue();
+    Thread.sleep(100);
+    assertThat(deleter.attempts).hasSize(1);
+    reaper.stop();
+  }
+
+  @Test
+  public void stop_deletesContainerWaitingForRetry() throws Exception {
+    // ARRANGE
+    FakeDeleter deleter = new FakeDeleter(1, new RuntimeException("Busy"), 1);
+    ContainerReaper reaper = new ContainerReaper(deleter, TimeUnit.MINUTES.toMillis(10));
+    reaper.reap("container");
+    assertThat(deleter.await()).isTrue();
+
+    // ACT
+    long start = System.currentTimeMillis();
+    reaper.stop();
+
+    // ASSERT
+    assertThat(deleter.attempts).containsExactly("container", "container");
+    assertThat(System.currentTimeMillis() - start).isLessThan(TimeUnit.SECONDS.toMillis(10));
+  }
+}
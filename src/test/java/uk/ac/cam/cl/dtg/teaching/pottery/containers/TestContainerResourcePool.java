@@ -0,0 +1,155 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.containers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Test;
+
+public class TestContainerResourcePool {
+
+  @Test
+  public void acquire_runsContainerLargerThanBudgetOnItsOwn() throws Exception {
+    // ARRANGE
+    ContainerResourcePool pool = new ContainerResourcePool(0, 1000);
+
+    // ACT
+    long reserved = pool.acquire(4000);
+    CompletableFuture<Long> small = acquireAsync(pool, 10);
+
+    // ASSERT
+    assertThat(reserved).isEqualTo(1000);
+    assertThat(isWaiting(small)).isTrue();
+    pool.release(reserved);
+    assertThat(small.get(10, TimeUnit.SECONDS)).isEqualTo(10);
+  }
+
+  @Test
+  public void acquire_admitsSmallContainerAlongsideLargeOne() throws Exception {
+    // ARRANGE
+    ContainerResourcePool pool = new ContainerResourcePool(2, 1000);
+    pool.acquire(800);
+
+    // ACT
+    CompletableFuture<Long> large = acquireAsync(pool, 500);
+    CompletableFuture<Long> small = acquireAsync(pool, 200);
+
+    // ASSERT
+    assertThat(small.get(10, TimeUnit.SECONDS)).isEqualTo(200);
+    assertThat(isWaiting(large)).isTrue();
+    assertThat(pool.getReservedMemoryMegabytes()).isEqualTo(1000);
+  }
+
+  @Test
+  public void acquire_waitsForContainerLimit() throws Exception {
+    // ARRANGE
+    ContainerResourcePool pool = new ContainerResourcePool(1, 0);
+    long reserved = pool.acquire(100);
+
+    // ACT
+    CompletableFuture<Long> next = acquireAsync(pool, 100);
+
+    // ASSERT
+    assertThat(isWaiting(next)).isTrue();
+    assertThat(pool.getQueueLength()).isEqualTo(1);
+    pool.release(reserved);
+    assertThat(next.get(10, TimeUnit.SECONDS)).isEqualTo(100);
+    assertThat(pool.getRunningContainers()).isEqualTo(1);
+  }
+
+  @Test
+  public void release_returnsBudgetAfterFailedExecution() throws Exception {
+    // ARRANGE
+    ContainerResourcePool pool = new ContainerResourcePool(1, 1000);
+
+    // ACT
+    long reserved = pool.acquire(600);
+    try {
+      throw new IllegalStateException("Container failed");
+    } catch (IllegalStateException e) {
+      // expected
+    } finally {
+      pool.release(reserved);
+    }
+
+    // ASSERT
+    assertThat(pool.getRunningContainers()).isEqualTo(0);
+    assertThat(pool.getReservedMemoryMegabytes()).isEqualTo(0);
+    assertThat(acquireAsync(pool, 1000).get(10, TimeUnit.SECONDS)).isEqualTo(1000);
+  }
+
+  @Test
+  public void acquire_interruptedWaiterLeavesQueue() throws Exception {
+    // ARRANGE
+    ContainerResourcePool pool = new ContainerResourcePool(1, 0);
+    long reserved = pool.acquire(100);
+    Thread waiter =
+        new Thread(
+            () -> {
+              try {
+                pool.acquire(100);
+              } catch (InterruptedException e) {
+                // expected
+              }
+            });
+    waiter.start();
+    while (pool.getQueueLength() == 0) {
+      Thread.sleep(10);
+    }
+
+    // ACT
+    waiter.interrupt();
+    waiter.join(10_000);
+
+    // ASSERT
+    assertThat(pool.getQueueLength()).isEqualTo(0);
+    assertThat(pool.getRunningContainers()).isEqualTo(1);
+    pool.release(reserved);
+    assertThat(acquireAsync(pool, 100).get(10, TimeUnit.SECONDS)).isEqualTo(100);
+  }
+
+  private static CompletableFuture<Long> acquireAsync(
+      ContainerResourcePool pool, long memoryMegabytes) {
+    CompletableFuture<Long> result = new CompletableFuture<>();
+    new Thread(
+            () -> {
+              try {
+                result.complete(pool.acquire(memoryMegabytes));
+              } catch (InterruptedException e) {
+                result.completeExceptionally(e);
+              }
+            })
+        .start();
+    return result;
+  }
+
+  private static boolean isWaiting(CompletableFuture<Long> acquired)
+      throws InterruptedException, ExecutionException {
+    try {
+      acquired.get(200, TimeUnit.MILLISECONDS);
+      return false;
+    } catch (TimeoutException e) {
+      return true;
+    }
+  }
+}
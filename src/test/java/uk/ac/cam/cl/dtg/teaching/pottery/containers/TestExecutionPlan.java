@@ -0,0 +1,184 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.containers;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.InvalidTaskSpecificationException;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.Execution;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.Step;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.TaskInfo;
+
+public class TestExecutionPlan {
+
+  @Test
+  public void compile_splitsCommandIntoArgumentsKeepingQuotedSpaces()
+      throws InvalidTaskSpecificationException {
+    // ARRANGE
+    Execution execution = new Execution("image", "run  --flag \"two words\" 'and more'", null);
+
+    // ACT
+    ExecutionPlan plan = ExecutionPlan.compile(execution, ImmutableSet.of());
+
+    // ASSERT
+    assertThat(plan.getCommand(ImmutableMap.of()))
+        .containsExactly("run", "--flag", "\"two words\"", "'and more'")
+        .inOrder();
+    assertThat(plan.getBindingNames()).isEmpty();
+  }
+
+  @Test
+  public void getCommand_substitutesBindingsWithoutSplittingValues()
+      throws InvalidTaskSpecificationException {
+    // ARRANGE
+    Execution execution =
+        new Execution("image", "@STEP@/run.sh --in=@SUBMISSION@/src @VARIANT@", null);
+    ExecutionPlan plan = ExecutionPlan.compile(execution, ContainerManager.STEP_BINDINGS);
+
+    // ACT
+    List<String> command =
+        plan.getCommand(
+            ImmutableMap.of(
+                "STEP", "/mnt/step",
+                "SUBMISSION", "/mnt/code",
+                "VARIANT", "has spaces"));
+
+    // ASSERT
+    assertThat(command)
+        .containsExactly("/mnt/step/run.sh", "--in=/mnt/code/src", "has spaces")
+        .inOrder();
+    assertThat(plan.getBindingNames())
+        .containsExactly("STEP", "SUBMISSION", "VARIANT")
+        .inOrder();
+  }
+
+  @Test
+  public void withArguments_addsEachStringAsOneArgument()
+      throws InvalidTaskSpecificationException {
+    // ARRANGE
+    ExecutionPlan plan =
+        ExecutionPlan.compile(
+            new Execution("image", "@TASK@/output.sh", null), ContainerManager.OUTPUT_BINDINGS);
+
+    // ACT
+    ExecutionPlan extended = plan.withArguments(ImmutableList.of("a b", "@compile@"));
+    Map<String, String> values = ImmutableMap.of("TASK", "/mnt/task", "compile", "/mnt/c");
+
+    // ASSERT
+    assertThat(extended.getCommand(values))
+        .containsExactly("/mnt/task/output.sh", "a b", "/mnt/c")
+        .inOrder();
+    assertThat(extended.getBindingNames()).containsExactly("TASK", "compile").inOrder();
+  }
+
+  @Test
+  public void compile_rejectsUnknownBinding() {
+    // ARRANGE
+    Execution execution = new Execution("image", "@STEP@/run.sh @NOPE@", null);
+
+    // ACT
+    try {
+      ExecutionPlan.compile(execution, ContainerManager.STEP_BINDINGS);
+      fail("compile should reject the unknown binding NOPE");
+    } catch (InvalidTaskSpecificationException e) {
+      // ASSERT
+      assertThat(e.getMessage()).contains("NOPE");
+    }
+  }
+
+  @Test
+  public void compilePlans_allowsStepToUseEarlierStep() throws InvalidTaskSpecificationException {
+    // ARRANGE
+    TaskInfo taskInfo =
+        taskInfo(
+            ImmutableList.of(
+                step("compile", "@STEP@/compile.sh"), step("test", "@STEP@/test.sh @compile@")),
+            "@TASK@/output.sh @test@");
+
+    // ACT
+    ExecutionPlans plans = ExecutionPlans.compile(taskInfo);
+
+    // ASSERT
+    assertThat(plans.getSteps("default")).hasSize(2);
+    assertThat(plans.getSteps("default").get(1).getPlan().getBindingNames())
+        .containsExactly("STEP", "compile");
+  }
+
+  @Test
+  public void compilePlans_rejectsForwardReferenceToLaterStep() {
+    // ARRANGE
+    TaskInfo taskInfo =
+        taskInfo(
+            ImmutableList.of(
+                step("compile", "@STEP@/compile.sh @test@"), step("test", "@STEP@/test.sh")),
+            "@TASK@/output.sh");
+
+    // ACT
+    try {
+      ExecutionPlans.compile(taskInfo);
+      fail("compile should reject a step which refers to a later step");
+    } catch (InvalidTaskSpecificationException e) {
+      // ASSERT
+      assertThat(e.getMessage()).contains("compile");
+    }
+  }
+
+  @Test
+  public void compilePlans_rejectsUnknownBindingInOutput() {
+    // ARRANGE
+    TaskInfo taskInfo =
+        taskInfo(ImmutableList.of(step("compile", "@STEP@/compile.sh")), "@TASK@/out.sh @STEP@");
+
+    // ACT
+    try {
+      ExecutionPlans.compile(taskInfo);
+      fail("compile should reject the output using the STEP binding");
+    } catch (InvalidTaskSpecificationException e) {
+      // ASSERT
+      assertThat(e.getMessage()).contains("output");
+    }
+  }
+
+  private static Step step(String name, String program) {
+    return new Step(name, ImmutableMap.of("default", new Execution("image", program, null)));
+  }
+
+  private static TaskInfo taskInfo(List<Step> steps, String outputProgram) {
+    return new TaskInfo(
+        TaskInfo.TYPE_ALGORITHM,
+        "Test task",
+        ImmutableSet.of("correctness"),
+        "easy",
+        0,
+        "Test task",
+        ImmutableList.of(),
+        ImmutableSet.of("default"),
+        ImmutableMap.of(),
+        ImmutableList.of(new Execution("image", "@TASK@/compile.sh", null)),
+        steps,
+        ImmutableMap.of("default", new Execution("image", outputProgram, null)));
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.containers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class TestSessionOutputListener {
+
+  @Test
+  public void getResult_isNullUntilMarkerArrives() {
+    // ARRANGE
+    SessionOutputListener listener = new SessionOutputListener(1000);
+    listener.expect("nonce");
+
+    // ACT
+    listener.onWebSocketText("hello\n");
+    listener.onWebSocketText("\nnon");
+
+    // ASSERT
+    assertThat(listener.getResult()).isNull();
+    assertThat(listener.getOutput()).isEqualTo("hello\n\nnon");
+  }
+
+  @Test
+  public void getResult_findsMarkerSplitAcrossMessages() {
+    // ARRANGE
+    SessionOutputListener listener = new SessionOutputListener(1000);
+    listener.expect("nonce");
+
+    // ACT
+    listener.onWebSocketText("hello\n\nno");
+    listener.onWebSocketText("nce 3");
+    listener.onWebSocketText("\n");
+
+    // ASSERT
+    assertThat(listener.getResult().getExitCode()).isEqualTo(3);
+    assertThat(listener.getResult().getOutput()).isEqualTo("hello\n");
+  }
+
+  @Test
+  public void getResult_ignoresMarkerForOtherNonce() {
+    // ARRANGE
+    SessionOutputListener listener = new SessionOutputListener(1000);
+    listener.expect("nonce");
+
+    // ACT
+    listener.onWebSocketText("\nguess 0\n");
+
+    // ASSERT
+    assertThat(listener.getResult()).isNull();
+  }
+
+  @Test
+  public void expect_discardsEarlierOutput() {
+    // ARRANGE
+    SessionOutputListener listener = new SessionOutputListener(1000);
+    listener.expect("first");
+    listener.onWebSocketText("one\nfirst 0\n");
+
+    // ACT
+    listener.expect("second");
+    listener.onWebSocketText("two\nsecond 1\n");
+
+    // ASSERT
+    assertThat(listener.getResult().getOutput()).isEqualTo("two");
+    assertThat(listener.getResult().getExitCode()).isEqualTo(1);
+  }
+
+  @Test
+  public void getResult_truncatesLongOutput() {
+    // ARRANGE
+    SessionOutputListener listener = new SessionOutputListener(10);
+    listener.expect("nonce");
+
+    // ACT
+    for (int i = 0; i < 100; i++) {
+      listener.onWebSocketText("0123456789");
+    }
+    listener.onWebSocketText("\nnonce 0\n");
+
+    // ASSERT
+    assertThat(listener.getResult().getExitCode()).isEqualTo(0);
+    assertThat(listener.getResult().getOutput()).startsWith("0123456789\n[output truncated");
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.containers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTimeoutWheel {
+
+  // One revolution of the wheel takes 160ms
+  private static final long TICK_MS = 20;
+  private static final int WHEEL_SIZE = 8;
+
+  private TimeoutWheel wheel;
+
+  @Before
+  public void setup() {
+    wheel = new TimeoutWheel(2, TICK_MS, WHEEL_SIZE);
+  }
+
+  @After
+  public void tearDown() {
+    wheel.stop();
+  }
+
+  @Test
+  public void schedule_firesOnTimeWithinFirstRevolution() throws Exception {
+    // ACT
+    long lateness = firingLateness(70);
+
+    // ASSERT
+    assertThat(lateness).isAtLeast(0L);
+    assertThat(lateness).isLessThan(TICK_MS * WHEEL_SIZE);
+  }
+
+  @Test
+  public void schedule_firesOnTimeBeyondOneRevolution() throws Exception {
+    // ACT
+    long lateness = firingLateness(350);
+
+    // ASSERT
+    assertThat(lateness).isAtLeast(0L);
+    assertThat(lateness).isLessThan(TICK_MS * WHEEL_SIZE);
+  }
+
+  @Test
+  public void schedule_firesOnTimeAfterWholeRevolutions() throws Exception {
+    // ACT
+    long lateness = firingLateness(2 * TICK_MS * WHEEL_SIZE);
+
+    // ASSERT
+    assertThat(lateness).isAtLeast(0L);
+    assertThat(lateness).isLessThan(TICK_MS * WHEEL_SIZE);
+  }
+
+  @Test
+  public void schedule_firesImmediatelyWithoutDelay() throws Exception {
+    // ACT
+    long lateness = firingLateness(0);
+
+    // ASSERT
+    assertThat(lateness).isAtLeast(0L);
+    assertThat(lateness).isLessThan(TICK_MS * WHEEL_SIZE);
+  }
+
+  @Test
+  public void cancel_stopsActionRunning() throws Exception {
+    // ARRANGE
+    AtomicBoolean ran = new AtomicBoolean(false);
+    TimeoutWheel.Timeout timeout =
+        wheel.schedule(
+            50,
+            TimeUnit.MILLISECONDS,
+            () -> {
+              ran.set(true);
+              return true;
+            });
+
+    // ACT
+    boolean cancelled = timeout.cancel();
+    Thread.sleep(200);
+
+    // ASSERT
+    assertThat(cancelled).isTrue();
+    assertThat(ran.get()).isFalse();
+    assertThat(timeout.hasFired()).isFalse();
+  }
+
+  @Test
+  public void cancel_failsOnceFired() throws Exception {
+    // ARRANGE
+    CompletableFuture<Boolean> ran = new CompletableFuture<>();
+    TimeoutWheel.Timeout timeout =
+        wheel.schedule(10, TimeUnit.MILLISECONDS, () -> ran.complete(true));
+    ran.get(10, TimeUnit.SECONDS);
+
+    // ACT
+    boolean cancelled = timeout.cancel();
+
+    // ASSERT
+    assertThat(cancelled).isFalse();
+    assertThat(timeout.hasFired()).isTrue();
+  }
+
+  @Test
+  public void hasFired_isFalseWhenActionReturnsFalse() throws Exception {
+    // ARRANGE
+    CompletableFuture<Boolean> ran = new CompletableFuture<>();
+    TimeoutWheel.Timeout timeout =
+        wheel.schedule(
+            10,
+            TimeUnit.MILLISECONDS,
+            () -> {
+              ran.complete(true);
+              return false;
+            });
+    ran.get(10, TimeUnit.SECONDS);
+
+    // ACT
+    boolean fired = timeout.hasFired();
+
+    // ASSERT
+    assertThat(fired).isFalse();
+  }
+
+  @Test
+  public void recordOvershoot_keepsSmoothedAverage() {
+    // ACT
+    wheel.recordOvershoot(800);
+    wheel.recordOvershoot(800);
+
+    // ASSERT
+    assertThat(wheel.getSmoothedOvershoot()).isEqualTo(100 + 100 - 12);
+  }
+
+  /** Schedule a timeout and return how long after its deadline its action ran. */
+  private long firingLateness(long delayMs) throws Exception {
+    CompletableFuture<Long> firedAt = new CompletableFuture<>();
+    long deadline = System.currentTimeMillis() + delayMs;
+    wheel.schedule(
+        delayMs, TimeUnit.MILLISECONDS, () -> firedAt.complete(System.currentTimeMillis()));
+    return firedAt.get(10, TimeUnit.SECONDS) - deadline;
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.containers;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+
+public class TestWarmContainerPool {
+
+  private File testRootDir;
+
+  @Before
+  public void setup() throws IOException {
+    testRootDir = Files.createTempDir().getCanonicalFile();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtil.deleteRecursive(testRootDir);
+  }
+
+  @Test
+  public void writeScript_quotesArguments() throws IOException, InterruptedException {
+    // ARRANGE
+    File script = new File(testRootDir, "run");
+
+    // ACT
+    WarmContainerPool.writeScript(script, ImmutableList.of("echo", "it's $HOME"));
+
+    // ASSERT
+    assertThat(run("sh", script.getPath())).isEqualTo("it's $HOME\n");
+    assertThat(new File(testRootDir, "run.tmp").exists()).isFalse();
+  }
+
+  @Test
+  public void start_runsScriptInWaitingShell() throws IOException, InterruptedException {
+    // ARRANGE
+    File fifo = new File(testRootDir, "start");
+    File script = new File(testRootDir, "run");
+    WarmContainerPool.makeFifo(fifo);
+    Process waiting =
+        new ProcessBuilder("sh", "-c", "read line < " + fifo + " && exec sh " + script).start();
+    WarmContainerPool.writeScript(script, ImmutableList.of("echo", "started"));
+
+    // ACT
+    WarmContainerPool.start(fifo);
+
+    // ASSERT
+    assertThat(waiting.waitFor(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(new String(waiting.getInputStream().readAllBytes(), UTF_8)).isEqualTo("started\n");
+  }
+
+  @Test
+  public void start_doesNotBlockWithoutReader() throws IOException {
+    // ARRANGE
+    File fifo = new File(testRootDir, "start");
+    WarmContainerPool.makeFifo(fifo);
+
+    // ACT
+    WarmContainerPool.start(fifo);
+
+    // ASSERT
+    assertThat(fifo.exists()).isTrue();
+  }
+
+  @Test
+  public void recover_movesContentsBack() throws IOException {
+    // ARRANGE
+    File host = new File(testRootDir, "submission");
+    File slotDir = createSlot(host);
+    Files.asCharSink(new File(slotDir, "0/code.txt"), UTF_8).write("code");
+
+    // ACT
+    WarmContainerPool.recover(new File(testRootDir, "warm"));
+
+    // ASSERT
+    assertThat(Files.asCharSource(new File(host, "code.txt"), UTF_8).read()).isEqualTo("code");
+    assertThat(slotDir.exists()).isFalse();
+  }
+
+  @Test
+  public void recover_keepsScratchDirectoryIfContentsCantBeMovedBack() throws IOException {
+    // ARRANGE
+    File host = new File(testRootDir, "submission");
+    File slotDir = createSlot(host);
+    Files.asCharSink(new File(slotDir, "0/code.txt"), UTF_8).write("moved");
+    Files.asCharSink(new File(host, "code.txt"), UTF_8).write("existing");
+
+    // ACT
+    WarmContainerPool.recover(new File(testRootDir, "warm"));
+
+    // ASSERT
+    assertThat(Files.asCharSource(new File(slotDir, "0/code.txt"), UTF_8).read())
+        .isEqualTo("moved");
+  }
+
+  @Test
+  public void recover_deletesScratchDirectoryWithNothingToMoveBack() throws IOException {
+    // ARRANGE
+    File slotDir = new File(testRootDir, "warm/container2");
+    FileUtil.mkdirIfNotExists(new File(slotDir, "0"));
+    Files.asCharSink(new File(slotDir, "0/lib.txt"), UTF_8).write("lib");
+
+    // ACT
+    WarmContainerPool.recover(new File(testRootDir, "warm"));
+
+    // ASSERT
+    assertThat(slotDir.exists()).isFalse();
+  }
+
+  private File createSlot(File host) throws IOException {
+    FileUtil.mkdirIfNotExists(host);
+    File slotDir = new File(testRootDir, "warm/container1");
+    FileUtil.mkdirIfNotExists(new File(slotDir, "0"));
+    Files.asCharSink(new File(slotDir, "moved"), UTF_8).write("0\t" + host.getPath() + "\n");
+    return slotDir;
+  }
+
+  private static String run(String... command) throws IOException, InterruptedException {
+    Process process = new ProcessBuilder(command).start();
+    process.waitFor(10, TimeUnit.SECONDS);
+    return new String(process.getInputStream().readAllBytes(), UTF_8);
+  }
+}
@@ -93,6 +93,10 @@ class TestEnvironment {
     return repoConfig;
   }
 
+  RepoFactory getRepoFactory() {
+    return repoFactory;
+  }
+
   Worker getWorker() {
     return worker;
   }
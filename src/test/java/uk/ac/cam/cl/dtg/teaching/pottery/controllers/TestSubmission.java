@@ -25,11 +25,13 @@ import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.Date;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.TransactionQueryRunner;
 import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.CriterionNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoExpiredException;
@@ -42,12 +44,15 @@ import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.SubmissionStorageException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskStorageException;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.Submission;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.PendingSubmissions;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.Repo;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.Task;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.JobPriority;
 
 public class TestSubmission {
 
   private File testRootDir;
+  private Task task;
   private Repo repo;
   private TestEnvironment testEnvironment;
 
@@ -61,7 +66,7 @@ public class TestSubmission {
     this.testRootDir = Files.createTempDir().getCanonicalFile();
     this.testEnvironment = new TestEnvironment(testRootDir.getPath());
 
-    Task task = testEnvironment.createNoOpTask();
+    this.task = testEnvironment.createNoOpTask();
     this.repo = testEnvironment.createRepo(task);
   }
 
@@ -80,6 +85,124 @@ public class TestSubmission {
     assertThat(submission).contains("\"status\":\"PENDING\"");
   }
 
+  @Test
+  public void scheduleSubmission_removesJournalEntryWhenComplete()
+      throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
+          SQLException {
+    String tag = repo.createNewTag();
+    Database database = testEnvironment.getDatabase();
+    repo.scheduleSubmission(tag, testEnvironment.getWorker(), database);
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      assertThat(PendingSubmissions.getAll(q)).isEmpty();
+    }
+  }
+
+  @Test
+  public void reschedulePendingSubmissions_runsJournalledSubmission()
+      throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
+          SubmissionNotFoundException, SQLException {
+    // ARRANGE
+    String tag = repo.createNewTag();
+    Database database = testEnvironment.getDatabase();
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      PendingSubmissions.upsert(repo.getRepoId(), tag, JobPriority.INTERACTIVE, new Date(), q);
+      q.commit();
+    }
+
+    // ACT
+    testEnvironment.getRepoFactory().reschedulePendingSubmissions(testEnvironment.getWorker());
+
+    // ASSERT
+    assertThat(repo.getSubmission(tag, database)).contains(tag);
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      assertThat(PendingSubmissions.getAll(q)).isEmpty();
+    }
+  }
+
+  @Test
+  public void queueSubmission_isPendingUntilClaimed()
+      throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
+          SubmissionNotFoundException, SQLException {
+    // ARRANGE
+    String tag = repo.createNewTag();
+    Database database = testEnvironment.getDatabase();
+
+    // ACT
+    repo.queueSubmission(tag, database, JobPriority.BACKGROUND);
+
+    // ASSERT
+    assertThat(repo.getSubmission(tag, database)).contains("\"status\":\"PENDING\"");
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      assertThat(PendingSubmissions.get(repo.getRepoId(), tag, q).getPriority())
+          .isEqualTo(JobPriority.BACKGROUND);
+    }
+  }
+
+  @Test
+  public void scheduleSubmission_usesCachedResultForSameCode()
+      throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
+          SubmissionNotFoundException, RepoNotFoundException, TaskNotFoundException,
+          InterruptedException {
+    // ARRANGE
+    testEnvironment.getRepoConfig().setSubmissionCacheTasks(task.getTaskId());
+    Database database = testEnvironment.getDatabase();
+    String firstTag = repo.createNewTag();
+    repo.scheduleSubmission(firstTag, testEnvironment.getWorker(), database);
+    String firstOutput = repo.getSubmission(firstTag, database);
+    Repo otherRepo = testEnvironment.createRepo(task);
+    String tag = otherRepo.createNewTag();
+    testEnvironment.getContainerBackend().block();
+    Thread scheduleThread =
+        new Thread(
+            () -> {
+              try {
+                otherRepo.scheduleSubmission(tag, testEnvironment.getWorker(), database);
+              } catch (RepoExpiredException | SubmissionStorageException | RepoStorageException e) {
+                throw new RuntimeException(e);
+              }
+            });
+
+    // ACT
+    scheduleThread.start();
+    scheduleThread.join(10000);
+
+    // ASSERT
+    try {
+      assertThat(scheduleThread.isAlive()).isFalse();
+      String submission = otherRepo.getSubmission(tag, database);
+      assertThat(submission).isEqualTo(firstOutput);
+      assertThat(submission).doesNotContain(repo.getRepoId());
+    } finally {
+      testEnvironment.getContainerBackend().unblock();
+      scheduleThread.join();
+    }
+  }
+
+  @Test
+  public void reschedulePendingSubmissions_removesJournalEntryOnCacheHit()
+      throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
+          RepoNotFoundException, TaskNotFoundException, SQLException {
+    // ARRANGE
+    testEnvironment.getRepoConfig().setSubmissionCacheTasks(task.getTaskId());
+    Database database = testEnvironment.getDatabase();
+    repo.scheduleSubmission(repo.createNewTag(), testEnvironment.getWorker(), database);
+    Repo otherRepo = testEnvironment.createRepo(task);
+    String tag = otherRepo.createNewTag();
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      PendingSubmissions.upsert(
+          otherRepo.getRepoId(), tag, JobPriority.INTERACTIVE, new Date(), q);
+      q.commit();
+    }
+
+    // ACT
+    testEnvironment.getRepoFactory().reschedulePendingSubmissions(testEnvironment.getWorker());
+
+    // ASSERT
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      assertThat(PendingSubmissions.getAll(q)).isEmpty();
+    }
+  }
+
   @Test
   public void deleteSubmission_succeeds()
       throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
@@ -96,6 +219,48 @@ public class TestSubmission {
     }
   }
 
+  @Test
+  public void cancelSubmission_stopsRunningContainer()
+      throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
+          SubmissionNotFoundException, InterruptedException, SQLException {
+    // ARRANGE
+    String tag = repo.createNewTag();
+    Database database = testEnvironment.getDatabase();
+    testEnvironment.getContainerBackend().block();
+    Thread scheduleThread =
+        new Thread(
+            () -> {
+              try {
+                repo.scheduleSubmission(tag, testEnvironment.getWorker(), database);
+              } catch (RepoExpiredException | SubmissionStorageException | RepoStorageException e) {
+                throw new RuntimeException(e);
+              }
+            });
+    scheduleThread.start();
+    testEnvironment.getContainerBackend().waitForBlocked();
+
+    // ACT
+    repo.cancelSubmission(tag, database);
+    scheduleThread.join(10000);
+
+    // ASSERT
+    try {
+      assertThat(scheduleThread.isAlive()).isFalse();
+      try (TransactionQueryRunner q = database.getQueryRunner()) {
+        assertThat(PendingSubmissions.getAll(q)).isEmpty();
+      }
+      try {
+        repo.cancelSubmission(tag, database);
+        fail("cancelSubmission should throw SubmissionNotFoundException once stored");
+      } catch (SubmissionNotFoundException e) {
+        assertThat(e).hasMessageThat().contains(tag);
+      }
+    } finally {
+      testEnvironment.getContainerBackend().unblock();
+      scheduleThread.join();
+    }
+  }
+
   @Test
   public void deleteSubmission_failsWhenBlocked()
       throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
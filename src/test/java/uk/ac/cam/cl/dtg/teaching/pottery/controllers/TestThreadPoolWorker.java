@@ -0,0 +1,474 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.controllers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.WorkerConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
+import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.Job;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.JobGraph;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.JobPriority;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.JobStage;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.PartitionedWorker;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.StagedWorker;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.ThreadPerJobWorker;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.ThreadPoolWorker;
+
+public class TestThreadPoolWorker {
+
+  private ThreadPoolWorker worker;
+
+  @Before
+  public void setup() {
+    worker = new ThreadPoolWorker(null, null, null, null, new WorkerConfig());
+  }
+
+  @After
+  public void tearDown() {
+    worker.stop();
+  }
+
+  @Test
+  public void schedule_runsInteractiveJobsFirst() throws InterruptedException {
+    // ARRANGE
+    CountDownLatch blocker = new CountDownLatch(1);
+    CountDownLatch finished = new CountDownLatch(3);
+    List<String> order = new CopyOnWriteArrayList<>();
+    Action done = finished::countDown;
+    worker.schedule(new TestJob("blocker", JobPriority.INTERACTIVE, blocker::await));
+
+    // ACT
+    worker.schedule(new TestJob("maintenance", JobPriority.MAINTENANCE, done, order));
+    worker.schedule(new TestJob("background", JobPriority.BACKGROUND, done, order));
+    worker.schedule(new TestJob("interactive", JobPriority.INTERACTIVE, done, order));
+    blocker.countDown();
+
+    // ASSERT
+    assertThat(finished.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(order).containsExactly("interactive", "background", "maintenance").inOrder();
+  }
+
+  @Test
+  public void schedule_fairSharingDoesNotPutInteractiveJobsBehindMaintenance()
+      throws InterruptedException {
+    // ARRANGE
+    WorkerConfig config = new WorkerConfig();
+    config.setFairRepoSpacingMs(1_000);
+    ThreadPoolWorker fairWorker = new ThreadPoolWorker(null, null, null, null, config);
+    CountDownLatch blocker = new CountDownLatch(1);
+    CountDownLatch finished = new CountDownLatch(201);
+    List<String> order = new CopyOnWriteArrayList<>();
+    Action done = finished::countDown;
+    fairWorker.schedule(new TestJob("blocker", JobPriority.INTERACTIVE, blocker::await));
+
+    // ACT
+    fairWorker.schedule(new TestJob("maintenance", JobPriority.MAINTENANCE, done, order));
+    // Without a cap the spacing would push the last of these 200 seconds back
+    for (int i = 0; i < 200; i++) {
+      fairWorker.schedule(new RepoJob("interactive" + i, "busy", done, order));
+    }
+    blocker.countDown();
+
+    // ASSERT
+    try {
+      assertThat(finished.await(10, TimeUnit.SECONDS)).isTrue();
+      assertThat(order.get(order.size() - 1)).isEqualTo("maintenance");
+    } finally {
+      fairWorker.stop();
+    }
+  }
+
+  @Test
+  public void schedule_doesNotBlockPoolWhileWaitingToRetry() throws InterruptedException {
+    // ARRANGE
+    CountDownLatch exhausted = new CountDownLatch(1);
+    CountDownLatch otherRan = new CountDownLatch(1);
+    RetryingJob retrying = new RetryingJob(2, exhausted);
+
+    // ACT
+    worker.schedule(retrying);
+    worker.schedule(new TestJob("other", JobPriority.BACKGROUND, otherRan::countDown));
+
+    // ASSERT
+    assertThat(otherRan.await(500, TimeUnit.MILLISECONDS)).isTrue();
+    assertThat(exhausted.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(retrying.attempts.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void rebuildThreadPool_growsWithoutInterruptingRunningJob() throws InterruptedException {
+    // ARRANGE
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch blocker = new CountDownLatch(1);
+    CountDownLatch finished = new CountDownLatch(1);
+    CountDownLatch otherRan = new CountDownLatch(1);
+    worker.schedule(
+        new TestJob(
+            "blocker",
+            JobPriority.INTERACTIVE,
+            () -> {
+              started.countDown();
+              blocker.await();
+              finished.countDown();
+            }));
+    assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+    // ACT
+    worker.rebuildThreadPool(2);
+    worker.schedule(new TestJob("other", JobPriority.INTERACTIVE, otherRan::countDown));
+
+    // ASSERT
+    assertThat(otherRan.await(10, TimeUnit.SECONDS)).isTrue();
+    blocker.countDown();
+    assertThat(finished.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(worker.getNumThreads()).isEqualTo(2);
+  }
+
+  @Test
+  public void threadPerJobWorker_runsBlockedJobsConcurrently() throws InterruptedException {
+    // ARRANGE
+    ThreadPerJobWorker threadPerJobWorker =
+        new ThreadPerJobWorker(null, null, null, null, new WorkerConfig());
+    CountDownLatch allStarted = new CountDownLatch(3);
+    Action startAndWait =
+        () -> {
+          allStarted.countDown();
+          allStarted.await();
+        };
+
+    try {
+      // ACT
+      for (int i = 0; i < 3; i++) {
+        threadPerJobWorker.schedule(new TestJob("job" + i, JobPriority.BACKGROUND, startAndWait));
+      }
+
+      // ASSERT
+      assertThat(allStarted.await(10, TimeUnit.SECONDS)).isTrue();
+    } finally {
+      threadPerJobWorker.stop();
+    }
+  }
+
+  @Test
+  public void stagedWorker_runsCheckoutWhilstExecutePoolIsBusy() throws InterruptedException {
+    // ARRANGE
+    StagedWorker stagedWorker = new StagedWorker(null, null, null, null, new WorkerConfig());
+    CountDownLatch blocker = new CountDownLatch(1);
+    CountDownLatch checkedOut = new CountDownLatch(1);
+    stagedWorker.schedule(new TestJob("container", JobPriority.INTERACTIVE, blocker::await));
+
+    try {
+      // ACT
+      stagedWorker.schedule(
+          new TestJob("checkout", JobPriority.INTERACTIVE, checkedOut::countDown) {
+            @Override
+            public JobStage getStage() {
+              return JobStage.CHECKOUT;
+            }
+          });
+
+      // ASSERT
+      assertThat(checkedOut.await(10, TimeUnit.SECONDS)).isTrue();
+    } finally {
+      blocker.countDown();
+      stagedWorker.stop();
+    }
+  }
+
+  @Test
+  public void schedule_interleavesJobsFromBusyRepo() throws InterruptedException {
+    // ARRANGE
+    WorkerConfig config = new WorkerConfig();
+    config.setFairRepoSpacingMs(5_000);
+    ThreadPoolWorker fairWorker = new ThreadPoolWorker(null, null, null, null, config);
+    CountDownLatch blocker = new CountDownLatch(1);
+    CountDownLatch finished = new CountDownLatch(4);
+    List<String> order = new CopyOnWriteArrayList<>();
+    Action done = finished::countDown;
+    fairWorker.schedule(new TestJob("blocker", JobPriority.INTERACTIVE, blocker::await));
+
+    // ACT
+    fairWorker.schedule(new RepoJob("busy1", "busy", done, order));
+    fairWorker.schedule(new RepoJob("busy2", "busy", done, order));
+    fairWorker.schedule(new RepoJob("busy3", "busy", done, order));
+    fairWorker.schedule(new RepoJob("light", "light", done, order));
+    blocker.countDown();
+
+    // ASSERT
+    try {
+      assertThat(finished.await(10, TimeUnit.SECONDS)).isTrue();
+      assertThat(order).containsExactly("busy1", "light", "busy2", "busy3").inOrder();
+    } finally {
+      fairWorker.stop();
+    }
+  }
+
+  @Test
+  public void getJobMetrics_recordsAttemptsOfRetriedJob() throws InterruptedException {
+    // ARRANGE
+    CountDownLatch exhausted = new CountDownLatch(1);
+
+    // ACT
+    worker.schedule(new RetryingJob(2, exhausted));
+    assertThat(exhausted.await(10, TimeUnit.SECONDS)).isTrue();
+
+    // ASSERT
+    Map<String, Long> metrics = worker.getJobMetrics().get("other");
+    assertThat(metrics).containsEntry("runMs.count", 2L);
+    assertThat(metrics).containsEntry("attempts.p50", 2L);
+    assertThat(worker.getQueueDepth()).isEqualTo(0);
+  }
+
+  @Test
+  public void scheduleGraph_runsBranchesConcurrentlyThenJoin()
+      throws InterruptedException, ExecutionException, TimeoutException {
+    // ARRANGE
+    worker.rebuildThreadPool(2);
+    CountDownLatch bothBranchesStarted = new CountDownLatch(2);
+    Action startAndWait =
+        () -> {
+          bothBranchesStarted.countDown();
+          bothBranchesStarted.await();
+        };
+    List<String> order = new CopyOnWriteArrayList<>();
+    JobGraph graph = new JobGraph();
+    JobGraph.Node root = graph.add(new TestJob("root", JobPriority.INTERACTIVE, () -> {}, order));
+    JobGraph.Node left =
+        graph.add(new TestJob("left", JobPriority.INTERACTIVE, startAndWait, order), root);
+    JobGraph.Node right =
+        graph.add(new TestJob("right", JobPriority.INTERACTIVE, startAndWait, order), root);
+    graph.add(new TestJob("join", JobPriority.INTERACTIVE, () -> {}, order), left, right);
+
+    // ACT
+    int result = worker.schedule(graph).get(10, TimeUnit.SECONDS);
+
+    // ASSERT
+    assertThat(result).isEqualTo(Job.STATUS_OK);
+    assertThat(order).hasSize(4);
+    assertThat(order.get(0)).isEqualTo("root");
+    assertThat(order.get(3)).isEqualTo("join");
+  }
+
+  @Test
+  public void schedule_completesWithFailureAndSkipsRestOfChain()
+      throws InterruptedException, ExecutionException, TimeoutException {
+    // ARRANGE
+    List<String> order = new CopyOnWriteArrayList<>();
+    TestJob failing =
+        new TestJob("failing", JobPriority.INTERACTIVE, () -> {}, order) {
+          @Override
+          public int execute(
+              TaskIndex taskIndex,
+              RepoFactory repoFactory,
+              ContainerManager containerManager,
+              Database database) {
+            super.execute(taskIndex, repoFactory, containerManager, database);
+            return STATUS_FAILED;
+          }
+        };
+
+    // ACT
+    int result =
+        worker
+            .schedule(failing, new TestJob("next", JobPriority.INTERACTIVE, () -> {}, order))
+            .get(10, TimeUnit.SECONDS);
+
+    // ASSERT
+    assertThat(result).isEqualTo(Job.STATUS_FAILED);
+    assertThat(order).containsExactly("failing");
+  }
+
+  @Test
+  public void stop_completesQueuedAndRetryingGraphs()
+      throws InterruptedException, ExecutionException, TimeoutException {
+    // ARRANGE
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch blocker = new CountDownLatch(1);
+    RetryingJob retrying = new RetryingJob(10, new CountDownLatch(1));
+    CompletableFuture<Integer> retryingResult = worker.schedule(retrying);
+    worker.schedule(
+        new TestJob(
+            "blocker",
+            JobPriority.INTERACTIVE,
+            () -> {
+              started.countDown();
+              blocker.await();
+            }));
+    CompletableFuture<Integer> queuedResult =
+        worker.schedule(new TestJob("queued", JobPriority.BACKGROUND, () -> {}));
+    assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+    // ACT
+    worker.stop();
+
+    // ASSERT
+    assertThat(queuedResult.get(10, TimeUnit.SECONDS)).isEqualTo(Job.STATUS_FAILED);
+    assertThat(retryingResult.get(10, TimeUnit.SECONDS)).isEqualTo(Job.STATUS_FAILED);
+  }
+
+  @Test
+  public void partitionedWorker_runsSameRepoInOrderAndOtherReposInParallel()
+      throws InterruptedException {
+    // ARRANGE
+    WorkerConfig config = new WorkerConfig();
+    config.setPartitionLanes(2);
+    PartitionedWorker partitioned = new PartitionedWorker(null, null, null, null, config);
+    CountDownLatch blocker = new CountDownLatch(1);
+    CountDownLatch otherRepoRan = new CountDownLatch(1);
+    CountDownLatch finished = new CountDownLatch(1);
+    List<String> order = new CopyOnWriteArrayList<>();
+    // "a" and "b" hash to different lanes
+    partitioned.schedule(new RepoJob("a1", "a", blocker::await, order));
+
+    // ACT
+    partitioned.schedule(new RepoJob("a2", "a", finished::countDown, order));
+    partitioned.schedule(new RepoJob("b1", "b", otherRepoRan::countDown, order));
+
+    // ASSERT
+    try {
+      assertThat(otherRepoRan.await(10, TimeUnit.SECONDS)).isTrue();
+      assertThat(order).doesNotContain("a2");
+      blocker.countDown();
+      assertThat(finished.await(10, TimeUnit.SECONDS)).isTrue();
+      assertThat(order.indexOf("a2")).isGreaterThan(order.indexOf("a1"));
+    } finally {
+      partitioned.stop();
+    }
+  }
+
+  private interface Action {
+    void run() throws InterruptedException;
+  }
+
+  private static class TestJob implements Job {
+    private final String name;
+    private final JobPriority priority;
+    private final Action action;
+    private final List<String> order;
+
+    TestJob(String name, JobPriority priority, Action action) {
+      this(name, priority, action, null);
+    }
+
+    TestJob(String name, JobPriority priority, Action action, List<String> order) {
+      this.name = name;
+      this.priority = priority;
+      this.action = action;
+      this.order = order;
+    }
+
+    @Override
+    public int execute(
+        TaskIndex taskIndex,
+        RepoFactory repoFactory,
+        ContainerManager containerManager,
+        Database database) {
+      if (order != null) {
+        order.add(name);
+      }
+      try {
+        action.run();
+      } catch (InterruptedException e) {
+        return STATUS_RETRY;
+      }
+      return STATUS_OK;
+    }
+
+    @Override
+    public String getDescription() {
+      return name;
+    }
+
+    @Override
+    public JobPriority getPriority() {
+      return priority;
+    }
+  }
+
+  private static class RepoJob extends TestJob {
+    private final String repoId;
+
+    RepoJob(String name, String repoId, Action action, List<String> order) {
+      super(name, JobPriority.INTERACTIVE, action, order);
+      this.repoId = repoId;
+    }
+
+    @Override
+    public String getRepoId() {
+      return repoId;
+    }
+  }
+
+  private static class RetryingJob implements Job {
+    private final int maxAttempts;
+    private final CountDownLatch exhausted;
+    private final AtomicInteger attempts = new AtomicInteger(0);
+
+    RetryingJob(int maxAttempts, CountDownLatch exhausted) {
+      this.maxAttempts = maxAttempts;
+      this.exhausted = exhausted;
+    }
+
+    @Override
+    public int execute(
+        TaskIndex taskIndex,
+        RepoFactory repoFactory,
+        ContainerManager containerManager,
+        Database database) {
+      attempts.incrementAndGet();
+      return STATUS_RETRY;
+    }
+
+    @Override
+    public String getDescription() {
+      return "retrying";
+    }
+
+    @Override
+    public JobPriority getPriority() {
+      return JobPriority.INTERACTIVE;
+    }
+
+    @Override
+    public int getMaxAttempts() {
+      return maxAttempts;
+    }
+
+    @Override
+    public void retriesExhausted() {
+      exhausted.countDown();
+    }
+  }
+}
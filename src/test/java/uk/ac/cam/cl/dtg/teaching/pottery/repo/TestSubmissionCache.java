@@ -0,0 +1,168 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Date;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.cam.cl.dtg.teaching.pottery.TransactionQueryRunner;
+import uk.ac.cam.cl.dtg.teaching.pottery.controllers.InMemoryDatabase;
+import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.Submission;
+
+public class TestSubmissionCache {
+
+  private Database database;
+
+  @Before
+  public void setup() throws IOException {
+    database = new InMemoryDatabase();
+  }
+
+  @Test
+  public void lookup_returnsNullForMissingEntry() throws SQLException {
+    // ACT
+    Submission result;
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      result = SubmissionCache.lookup("copy", "variant", "tree", "repo", "tag", new Date(), q);
+    }
+
+    // ASSERT
+    assertThat(result).isNull();
+  }
+
+  @Test
+  public void lookup_returnsStoredResultForNewSubmission() throws SQLException {
+    // ARRANGE
+    Date now = new Date(1_000_000);
+    put("copy", "tree", "output", 1_000);
+
+    // ACT
+    Submission result;
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      result = SubmissionCache.lookup("copy", "variant", "tree", "repo2", "tag2", now, q);
+    }
+
+    // ASSERT
+    assertThat(result.getRepoId()).isEqualTo("repo2");
+    assertThat(result.getTag()).isEqualTo("tag2");
+    assertThat(result.getOutput()).isEqualTo("output");
+    assertThat(result.getErrorMessage()).isEqualTo("error");
+    assertThat(result.getStatus()).isEqualTo(Submission.STATUS_COMPLETE);
+    assertThat(result.getDateScheduled()).isEqualTo(now);
+  }
+
+  @Test
+  public void lookup_doesNotMatchOtherCopy() throws SQLException {
+    // ARRANGE
+    put("copy", "tree", "output", 1_000);
+
+    // ACT
+    Submission result;
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      result = SubmissionCache.lookup("copy2", "variant", "tree", "repo", "tag", new Date(), q);
+    }
+
+    // ASSERT
+    assertThat(result).isNull();
+  }
+
+  @Test
+  public void put_replacesExistingEntry() throws SQLException {
+    // ARRANGE
+    put("copy", "tree", "old", 1_000);
+
+    // ACT
+    put("copy", "tree", "new", 2_000);
+
+    // ASSERT
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      assertThat(
+              SubmissionCache.lookup("copy", "variant", "tree", "repo", "tag", new Date(), q)
+                  .getOutput())
+          .isEqualTo("new");
+    }
+  }
+
+  @Test
+  public void evict_removesLeastRecentlyUsedEntries() throws SQLException {
+    // ARRANGE
+    put("copy", "tree1", "output1", 1_000);
+    put("copy", "tree2", "output2", 2_000);
+    put("copy", "tree3", "output3", 3_000);
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      SubmissionCache.lookup("copy", "variant", "tree1", "repo", "tag", new Date(4_000), q);
+      q.commit();
+    }
+
+    // ACT
+    int removed;
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      removed = SubmissionCache.evict(2, q);
+      q.commit();
+    }
+
+    // ASSERT
+    assertThat(removed).isEqualTo(1);
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      assertThat(SubmissionCache.lookup("copy", "variant", "tree1", "repo", "tag", new Date(), q))
+          .isNotNull();
+      assertThat(SubmissionCache.lookup("copy", "variant", "tree2", "repo", "tag", new Date(), q))
+          .isNull();
+      assertThat(SubmissionCache.lookup("copy", "variant", "tree3", "repo", "tag", new Date(), q))
+          .isNotNull();
+    }
+  }
+
+  @Test
+  public void evict_keepsEverythingWhenUnderLimit() throws SQLException {
+    // ARRANGE
+    put("copy", "tree1", "output1", 1_000);
+    put("copy", "tree2", "output2", 2_000);
+
+    // ACT
+    int removed;
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      removed = SubmissionCache.evict(2, q);
+      q.commit();
+    }
+
+    // ASSERT
+    assertThat(removed).isEqualTo(0);
+  }
+
+  private void put(String copyId, String treeSha, String output, long lastUsed)
+      throws SQLException {
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      SubmissionCache.put(
+          copyId,
+          "variant",
+          treeSha,
+          new Submission(
+              "repo", "tag", output, 0, "error", Submission.STATUS_COMPLETE, new Date(), false),
+          new Date(lastUsed),
+          q);
+      q.commit();
+    }
+  }
+}
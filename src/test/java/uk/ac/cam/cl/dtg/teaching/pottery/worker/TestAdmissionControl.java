@@ -0,0 +1,86 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 Andrew Rice (acr31@cam.ac.uk), BlueOptima Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.cam.cl.dtg.teaching.pottery.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.WorkerConfig;
+
+public class TestAdmissionControl {
+
+  private WorkerConfig config;
+
+  @Before
+  public void setup() {
+    config = new WorkerConfig();
+    config.setAdmissionMaxWaitMs(10_000);
+    config.setAdmissionMaxQueueDepth(10);
+  }
+
+  @Test
+  public void computeRetryAfterSeconds_admitsWhenUnderLimits() {
+    // ACT
+    long retryAfter = AdmissionControl.computeRetryAfterSeconds(5, 5_000, config);
+
+    // ASSERT
+    assertThat(retryAfter).isEqualTo(0);
+  }
+
+  @Test
+  public void computeRetryAfterSeconds_rejectsWhenWaitTooLong() {
+    // ACT
+    long retryAfter = AdmissionControl.computeRetryAfterSeconds(1, 15_500, config);
+
+    // ASSERT
+    assertThat(retryAfter).isEqualTo(6);
+  }
+
+  @Test
+  public void computeRetryAfterSeconds_ignoresStaleWaitWhenQueueEmpty() {
+    // ACT
+    long retryAfter = AdmissionControl.computeRetryAfterSeconds(0, 60_000, config);
+
+    // ASSERT
+    assertThat(retryAfter).isEqualTo(0);
+  }
+
+  @Test
+  public void computeRetryAfterSeconds_rejectsWhenQueueFull() {
+    // ACT
+    long retryAfter = AdmissionControl.computeRetryAfterSeconds(12, 6_000, config);
+
+    // ASSERT
+    // Three of the twelve jobs must start, which takes a quarter of the wait
+    assertThat(retryAfter).isEqualTo(2);
+  }
+
+  @Test
+  public void computeRetryAfterSeconds_admitsEverythingWhenDisabled() {
+    // ARRANGE
+    WorkerConfig disabled = new WorkerConfig();
+
+    // ACT
+    long retryAfter = AdmissionControl.computeRetryAfterSeconds(1_000, 600_000, disabled);
+
+    // ASSERT
+    assertThat(retryAfter).isEqualTo(0);
+  }
+}